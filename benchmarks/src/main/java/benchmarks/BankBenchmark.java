@@ -0,0 +1,98 @@
+package benchmarks;
+
+import bank.Account;
+import bank.Bank;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Bank hot paths : getAccount, newAccount, deposit and withdraw.
+ * The bank holds bookSize accounts. deposit/withdraw run on an account per thread,
+ * and on a single account shared by all the threads (hot account).
+ * Number of threads : JMH -t option.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Dlog.level=WARN"})
+public class BankBenchmark {
+    private static final AtomicInteger THREAD_NO = new AtomicInteger();
+
+    @Param({"inprocess", "rmi"})
+    LocalMarket.Mode mode;
+
+    @Param({"1000", "100000"})
+    int bookSize;
+
+    LocalMarket local;
+    Bank bank;
+    Account hot;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        local = LocalMarket.start();
+        bank = local.bank(mode);
+        for (int i = 0; i < bookSize; i++)
+            local.bankImpl.newAccount("account" + i);
+        local.bankImpl.newAccount("hot").deposit(1e9f);
+        hot = bank.getAccount("hot");
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        local.stop();
+    }
+
+    @State(Scope.Thread)
+    public static class ThreadState {
+        int threadNo;
+        int next;
+        Account own;
+
+        @Setup(Level.Trial)
+        public void setUp(BankBenchmark benchmark) throws Exception {
+            threadNo = THREAD_NO.getAndIncrement();
+            benchmark.local.bankImpl.newAccount("own" + threadNo).deposit(1e9f);
+            own = benchmark.bank.getAccount("own" + threadNo);
+        }
+    }
+
+    @Benchmark
+    public Account getAccount(ThreadState t) throws Exception {
+        return bank.getAccount("account" + (t.next++ % bookSize));
+    }
+
+    @Benchmark
+    public Account newAccount(ThreadState t) throws Exception {
+        // Grows the bank by one account per call
+        return bank.newAccount("new" + t.threadNo + "-" + t.next++);
+    }
+
+    @Benchmark
+    public void depositWithdraw(ThreadState t) throws Exception {
+        t.own.deposit(1);
+        t.own.withdraw(1);
+    }
+
+    @Benchmark
+    public void hotDepositWithdraw() throws Exception {
+        hot.deposit(1);
+        hot.withdraw(1);
+    }
+}
@@ -0,0 +1,35 @@
+package benchmarks;
+
+import client.Trader;
+
+import java.rmi.RemoteException;
+import java.rmi.server.UnicastRemoteObject;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Trader living in the benchmark JVM : callbacks are only counted
+ */
+@SuppressWarnings("serial")
+final class BenchTrader extends UnicastRemoteObject implements Trader {
+    private final String name;
+    final AtomicLong callbacks = new AtomicLong();
+
+    BenchTrader(String name) throws RemoteException {
+        super();
+        this.name = name;
+    }
+
+    @Override
+    public void callback(String message) {
+        callbacks.incrementAndGet();
+    }
+
+    @Override
+    public String getClientName() {
+        return name;
+    }
+
+    void unexport() throws RemoteException {
+        UnicastRemoteObject.unexportObject(this, true);
+    }
+}
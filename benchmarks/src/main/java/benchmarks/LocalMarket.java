@@ -0,0 +1,91 @@
+package benchmarks;
+
+import bank.Bank;
+import bank.BankImpl;
+import market.Market;
+import market.MarketServer;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.rmi.NoSuchObjectException;
+import java.rmi.RemoteException;
+import java.rmi.registry.LocateRegistry;
+import java.rmi.registry.Registry;
+import java.rmi.server.UnicastRemoteObject;
+
+/**
+ * A bank and a market in this JVM, bound in a registry on a free port.
+ * Both are reachable directly (in-process) or through their stubs (loopback RMI).
+ */
+public final class LocalMarket {
+    static final String BANK = "Nordea";
+    static final String MARKET = "Market";
+
+    final Registry registry;
+    final BankImpl bankImpl;
+    final MarketServer marketImpl;
+    final Bank bankStub;
+    final Market marketStub;
+
+    private LocalMarket(Registry registry, int port, BankImpl bankImpl, MarketServer marketImpl) throws Exception {
+        this.registry = registry;
+        this.bankImpl = bankImpl;
+        this.marketImpl = marketImpl;
+        // Through a registry stub : the local registry would give the server objects themselves
+        Registry remote = LocateRegistry.getRegistry("localhost", port);
+        this.bankStub = (Bank) remote.lookup(BANK);
+        this.marketStub = (Market) remote.lookup(MARKET);
+    }
+
+    static LocalMarket start() throws Exception {
+        int port = freePort();
+        Registry registry = LocateRegistry.createRegistry(port);
+        BankImpl bank = new BankImpl(BANK);
+        registry.rebind(BANK, bank);
+        // In memory market (no journal), connected to the bank through the registry like MarketServer.main
+        MarketServer market = new MarketServer(BANK, port);
+        registry.rebind(MARKET, market);
+        return new LocalMarket(registry, port, bank, market);
+    }
+
+    Bank bank(Mode mode) {
+        return (mode == Mode.rmi) ? bankStub : bankImpl;
+    }
+
+    Market market(Mode mode) {
+        return (mode == Mode.rmi) ? marketStub : marketImpl;
+    }
+
+    void stop() throws RemoteException {
+        unexport(marketImpl);
+        // Accounts are remote objects too : exported objects keep the JVM alive
+        for (String name : bankImpl.listAccounts()) {
+            if (name != null)
+                unexport(bankImpl.getAccount(name));
+        }
+        unexport(bankImpl);
+        unexport(registry);
+    }
+
+    private static void unexport(java.rmi.Remote object) {
+        try {
+            UnicastRemoteObject.unexportObject(object, true);
+        } catch (NoSuchObjectException e) {
+            // Already done
+        }
+    }
+
+    private static int freePort() throws IOException {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+
+    /**
+     * How the benchmark reaches the servers
+     */
+    public enum Mode {
+        inprocess, // Direct calls on the server objects
+        rmi        // Calls through the stubs, over loopback
+    }
+}
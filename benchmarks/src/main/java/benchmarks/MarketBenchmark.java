@@ -0,0 +1,177 @@
+package benchmarks;
+
+import bank.Bank;
+import market.Item;
+import market.Market;
+import market.RejectedException;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Market hot paths : sell, buy, wish and unregister.
+ *
+ * The book is filled with bookSize items (on bookSize / 10 names) and as many wishes
+ * priced below every item sold here, so sell() looks the wishes up without matching them.
+ * A trader places one wish per name at most : the book wishes come from 10 traders,
+ * and wish() places each wish on a new name.
+ * Number of threads : JMH -t option (e.g. java -jar benchmarks.jar MarketBenchmark -t 8).
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Dlog.level=WARN", "-Dmarket.lease.ms=3600000"})
+public class MarketBenchmark {
+    // Prices of the items sold by the benchmark are above the prices of the book
+    private static final float PRICE_OFFSET = 1_000_000;
+    private static final int PRICES_PER_THREAD = 100_000;
+    private static final int OWN_ENTRIES = 10;
+    private static final AtomicInteger TRADER_NO = new AtomicInteger();
+
+    @Param({"inprocess", "rmi"})
+    LocalMarket.Mode mode;
+
+    @Param({"1000", "100000"})
+    int bookSize;
+
+    LocalMarket local;
+    List<BenchTrader> bookTraders = new ArrayList<>();
+    Market market;
+    Bank bank;
+    int names;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        local = LocalMarket.start();
+        market = local.market(mode);
+        bank = local.bank(mode);
+        names = Math.max(bookSize / 10, 1);
+
+        // The book : items and wishes of other traders (added in process, faster)
+        for (int i = 0; i < bookSize; i++) {
+            int round = i / names;
+            if (round == bookTraders.size()) {
+                BenchTrader book = new BenchTrader("book" + round);
+                local.bankImpl.newAccount("book" + round);
+                local.marketImpl.register("book" + round, book);
+                bookTraders.add(book);
+            }
+            BenchTrader book = bookTraders.get(round);
+            local.marketImpl.sell(new Item(name(i), round), book);
+            local.marketImpl.wish(new Item(name(i), -1 - round), book);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        for (BenchTrader book : bookTraders)
+            book.unexport();
+        local.stop();
+    }
+
+    String name(int i) {
+        return "item" + (i % names);
+    }
+
+    /**
+     * A registered trader per benchmark thread, with money.
+     * Its own items and wishes are removed before each iteration (unregister).
+     */
+    @State(Scope.Thread)
+    public static class TraderState {
+        BenchTrader trader;
+        String name;
+        int threadNo;
+        int next;
+
+        @Setup(Level.Trial)
+        public void setUp(MarketBenchmark benchmark) throws Exception {
+            threadNo = TRADER_NO.getAndIncrement();
+            name = "trader" + threadNo;
+            trader = new BenchTrader(name);
+            benchmark.local.bankImpl.newAccount(name).deposit(1e9f);
+            benchmark.local.bankImpl.newAccount(name + "-u"); // unregister()
+            benchmark.market.register(name, trader);
+        }
+
+        // Not in an iteration teardown : it may run after the teardown of the market
+        @Setup(Level.Iteration)
+        public void clear(MarketBenchmark benchmark) throws Exception {
+            benchmark.market.unregister(name);
+            benchmark.market.register(name, trader);
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() throws Exception {
+            trader.unexport();
+        }
+
+        /**
+         * @return an item no other thread sells (exact float prices)
+         */
+        Item nextItem(MarketBenchmark benchmark) {
+            int k = next++;
+            return new Item(benchmark.name(k), PRICE_OFFSET + threadNo * PRICES_PER_THREAD + k % PRICES_PER_THREAD);
+        }
+    }
+
+    @Benchmark
+    public Item sell(TraderState t) throws Exception {
+        Item item = t.nextItem(this);
+        try {
+            market.sell(item, t.trader);
+        } catch (RejectedException e) {
+            // Same price again after PRICES_PER_THREAD sells in an iteration
+        }
+        return item;
+    }
+
+    @Benchmark
+    public Item sellThenBuy(TraderState t) throws Exception {
+        Item item = t.nextItem(this);
+        market.sell(item, t.trader);
+        market.buy(item, t.trader);
+        return item;
+    }
+
+    @Benchmark
+    public Item wish(TraderState t) throws Exception {
+        Item item = new Item("wish" + t.threadNo + "-" + t.next++, 1);
+        market.wish(item, t.trader);
+        return item;
+    }
+
+    /**
+     * Registers a trader, lists OWN_ENTRIES items and wishes, and leaves the market
+     */
+    @Benchmark
+    public void unregister(TraderState t) throws Exception {
+        String name = t.name + "-u";
+        market.unregister(t.name);
+        market.register(name, t.trader);
+        for (int i = 0; i < OWN_ENTRIES; i++) {
+            Item item = t.nextItem(this);
+            market.sell(item, t.trader);
+            market.wish(new Item("wish" + i, item.getPrice()), t.trader);
+        }
+        market.unregister(name);
+        market.register(t.name, t.trader);
+    }
+}
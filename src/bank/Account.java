@@ -9,4 +9,11 @@ public interface Account extends Remote {
     public void deposit(float value) throws RemoteException, RejectedException;
 
     public void withdraw(float value) throws RemoteException, RejectedException;
+
+    // Idempotent deposit and withdraw : requestId is chosen by the client, unique for it (e.g. a UUID).
+    // A call sent again with the same requestId is not run twice : it gets the outcome of the first one,
+    // while the bank remembers it (recent calls only) => safe to retry after a timeout
+    public void deposit(float value, String requestId) throws RemoteException, RejectedException;
+
+    public void withdraw(float value, String requestId) throws RemoteException, RejectedException;
 }
@@ -1,49 +1,163 @@
 package bank;
 
+import dedup.DedupCache;
+import log.Logger;
+
+import java.io.IOException;
 import java.rmi.RemoteException;
 import java.rmi.server.UnicastRemoteObject;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicLong;
 
 @SuppressWarnings("serial")
 public class AccountImpl extends UnicastRemoteObject implements Account {
-    private float balance = 0;
+    private static final Logger LOG = Logger.getLogger(AccountImpl.class);
+
+    // Balance in cents : exact amounts, updated without lock (compare and set)
+    private final AtomicLong balance;
     private String name;
+    private final BankJournal journal; // null => not persistent
+    private final BankMetrics metrics;
+    private final DedupCache dedup;
 
     /**
      * Constructs a persistently named object.
      */
     public AccountImpl(String name) throws RemoteException {
+        this(name, null, BankMetrics.DETACHED, new DedupCache(BankImpl.DEDUP_SIZE, BankImpl.DEDUP_TTL_MILLIS), 0);
+    }
+
+    /**
+     * @param journal where the money moves are written (null = nowhere)
+     * @param metrics metrics of the bank, where the calls are recorded
+     * @param dedup outcomes of the money moves with a request id (shared by the accounts of the bank)
+     * @param cents initial balance (recovered from the journal)
+     */
+    AccountImpl(String name, BankJournal journal, BankMetrics metrics, DedupCache dedup, long cents)
+            throws RemoteException {
         super();
         this.name = name;
+        this.journal = journal;
+        this.metrics = metrics;
+        this.dedup = dedup;
+        this.balance = new AtomicLong(cents);
     }
 
     @Override
-    public synchronized void deposit(float value) throws RemoteException,
-            RejectedException {
-        if (value < 0) {
-            throw new RejectedException("Rejected: Account " + name + ": Illegal value: " + value);
-        }
-        balance += value;
-        System.out.println("Transaction: Account " + name + ": deposit: $" + value + ", balance: $"
-                + balance);
+    public void deposit(float value) throws RemoteException, RejectedException {
+        deposit(value, null);
+    }
+
+    @Override
+    public void deposit(float value, String requestId) throws RemoteException, RejectedException {
+        BankMetrics.record(metrics.deposit, () -> once("deposit", requestId, () -> {
+            long cents = toCents(value);
+            depositCents(cents);
+            if (journal != null)
+                commit(journal.deposit(name, cents));
+        }));
     }
 
     @Override
-    public synchronized void withdraw(float value) throws RemoteException,
-            RejectedException {
-        if (value < 0) {
-            throw new RejectedException("Rejected: Account " + name + ": Illegal value: " + value);
+    public void withdraw(float value) throws RemoteException, RejectedException {
+        withdraw(value, null);
+    }
+
+    @Override
+    public void withdraw(float value, String requestId) throws RemoteException, RejectedException {
+        BankMetrics.record(metrics.withdraw, () -> once("withdraw", requestId, () -> {
+            long cents = toCents(value);
+            withdrawCents(cents);
+            if (journal != null)
+                commit(journal.withdraw(name, cents));
+        }));
+    }
+
+    /**
+     * Runs a money move once for its request id : a duplicate gets the outcome of the first call
+     * @param operation name of the move (a request id is only valid for one operation)
+     * @param requestId id chosen by the client, null = always run
+     */
+    private void once(String operation, String requestId, BankMetrics.Action action)
+            throws RemoteException, RejectedException {
+        Exception failure = dedup.run((requestId == null) ? null : name + "/" + operation + "/" + requestId,
+                action::run);
+        if (failure == null)
+            return;
+        if (failure instanceof RejectedException)
+            throw (RejectedException) failure;
+        if (failure instanceof RemoteException)
+            throw (RemoteException) failure;
+        throw (RuntimeException) failure;
+    }
+
+    @Override
+    public float getBalance() throws RemoteException {
+        long start = System.nanoTime();
+        float dollars = toDollars(balance.get());
+        metrics.getBalance.succeeded(start);
+        return dollars;
+    }
+
+    void depositCents(long cents) throws RejectedException {
+        long newBalance;
+        long oldBalance;
+        do {
+            oldBalance = balance.get();
+            newBalance = oldBalance + cents;
+            if (newBalance < oldBalance) {
+                throw new RejectedException(RejectedException.BALANCE_OVERFLOW, "Rejected: Account " + name
+                        + ": Balance overflow on deposit: "
+                        + toDollars(cents));
+            }
+        } while (!balance.compareAndSet(oldBalance, newBalance));
+        LOG.info("Transaction: Account {}: deposit: ${}, balance: ${}", name, toDollars(cents),
+                toDollars(newBalance));
+    }
+
+    void withdrawCents(long cents) throws RejectedException {
+        long newBalance;
+        long oldBalance;
+        do {
+            oldBalance = balance.get();
+            newBalance = oldBalance - cents;
+            if (newBalance < 0) {
+                throw new RejectedException(RejectedException.INSUFFICIENT_FUNDS, "Rejected: Account " + name
+                        + ": Negative balance on withdraw: " + toDollars(newBalance));
+            }
+        } while (!balance.compareAndSet(oldBalance, newBalance));
+        LOG.info("Transaction: Account {}: withdraw: ${}, balance: ${}", name, toDollars(cents),
+                toDollars(newBalance));
+    }
+
+    /**
+     * Waits until a journal event is durable
+     */
+    void commit(CompletableFuture<?> event) throws RemoteException {
+        try {
+            BankJournal.await(event);
+        } catch (IOException e) {
+            throw new RemoteException("Account " + name + ": journal write failed", e);
         }
-        if ((balance - value) < 0) {
-            throw new RejectedException("Rejected: Account " + name
-                    + ": Negative balance on withdraw: " + (balance - value));
+    }
+
+    long getBalanceCents() {
+        return balance.get();
+    }
+
+    /**
+     * Converts an amount received from a client (float, in $) into cents
+     * @throws RejectedException if the amount is negative or not a number
+     */
+    long toCents(float value) throws RejectedException {
+        if (!(value >= 0) || Float.isInfinite(value)) {
+            throw new RejectedException(RejectedException.ILLEGAL_VALUE, "Rejected: Account " + name
+                    + ": Illegal value: " + value);
         }
-        balance -= value;
-        System.out.println("Transaction: Account " + name + ": withdraw: $" + value + ", balance: $"
-                + balance);
+        return Math.round((double) value * 100);
     }
 
-    @Override
-    public synchronized float getBalance() throws RemoteException {
-        return balance;
+    static float toDollars(long cents) {
+        return cents / 100f;
     }
 }
@@ -11,4 +11,17 @@ public interface Bank extends Remote {
     public boolean deleteAccount(String name) throws RemoteException;
 
     public String[] listAccounts() throws RemoteException;
+
+    // Moves money from an account to another one, in a single call : all or nothing
+    public void transfer(String from, String to, float amount) throws RemoteException, RejectedException;
+
+    // Idempotent transfer : transferId is chosen by the client, unique for it (at most MAX_TRANSFER_ID chars).
+    // A transfer sent again with the same transferId is done once : it gets the outcome of the first one
+    // (done, or aborted : TRANSFER_ABORTED), while the bank remembers it (recent transfers only, kept across
+    // restarts) ; a transfer rejected (no account, not enough money...) is not remembered and can run again.
+    // => safe to send again when the outcome is unknown (RemoteException)
+    public void transfer(String from, String to, float amount, String transferId)
+            throws RemoteException, RejectedException;
+
+    public static final int MAX_TRANSFER_ID = 256;
 }
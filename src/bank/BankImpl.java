@@ -1,58 +1,456 @@
 package bank;
 
+import dedup.DedupCache;
+import log.Logger;
+
+import java.io.IOException;
 import java.rmi.RemoteException;
 import java.rmi.server.UnicastRemoteObject;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
 
 @SuppressWarnings("serial")
-public class BankImpl extends UnicastRemoteObject implements Bank {
+public class BankImpl extends UnicastRemoteObject implements BankShard {
+    private static final Logger LOG = Logger.getLogger(BankImpl.class);
+    // Ids of the transfers ended on this shard, kept for the transfers sent again
+    // and the reconciliation (see ShardedBank)
+    static final int SETTLED_MEMORY = 100_000;
+    // Outcomes of the deposits and withdraws with a request id : how many, how long they are kept
+    static final int DEDUP_SIZE = Integer.getInteger("bank.dedup.size", 100_000);
+    static final long DEDUP_TTL_MILLIS = Long.getLong("bank.dedup.ttl.ms", 600_000);
+
     private String bankName;
-    private Map<String, Account> accounts = new HashMap<>();
+    // Concurrent => no bank lock : creations and deletions only lock their own name
+    private Map<String, Account> accounts = new ConcurrentHashMap<>();
+    private final BankJournal journal; // null => accounts kept in memory only
+    // Money moves sent again by the clients (same request id) : shared by the accounts
+    private final DedupCache dedup = new DedupCache(DEDUP_SIZE, DEDUP_TTL_MILLIS);
+    // Calls and number of accounts, seen in JMX
+    private final BankMetrics metrics = new BankMetrics(accounts, dedup);
+    // Sharded bank : accounts owned by this shard (null = all)
+    private final HashRing ring;
+    private final int shard;
+    // Cross-shard transfers (journaled) : money held on this shard, by transfer id
+    private final Map<String, Hold> held = new ConcurrentHashMap<>();
+    // Transfers ended on this shard, by transfer id : done (true) or never to be (false). Transfers with an id
+    // within the shard (done), to this shard (credited, or aborted by the reconciliation) and from this
+    // shard (released, or cancelled)
+    private final Map<String, CompletableFuture<Boolean>> settled = Collections.synchronizedMap(
+            new LinkedHashMap<String, CompletableFuture<Boolean>>() {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, CompletableFuture<Boolean>> eldest) {
+                    return size() > SETTLED_MEMORY;
+                }
+            });
+
+    private static final class Hold {
+        final String name;
+        final String to;
+        final long cents;
+        final long time = System.nanoTime();
+        // Completes once the money is held (or the hold failed) : the retries wait for it
+        // (false : the transfer had already ended, credited)
+        final CompletableFuture<Boolean> done = new CompletableFuture<>();
+
+        Hold(String name, String to, long cents) {
+            this.name = name;
+            this.to = to;
+            this.cents = cents;
+        }
+    }
 
     public BankImpl(String bankName) throws RemoteException {
         super();
         this.bankName = bankName;
+        this.journal = null;
+        this.ring = null;
+        this.shard = 0;
+        metrics.register(bankName);
+    }
+
+    /**
+     * Persistent bank : accounts are recovered from the journal, and every change is written in it
+     * @param journal
+     * @throws IOException if the journal cannot be read
+     */
+    BankImpl(String bankName, BankJournal journal) throws RemoteException, IOException {
+        this(bankName, journal, 0, 1);
+    }
+
+    /**
+     * Shard of a bank : only creates the accounts it owns (see ShardedBank)
+     * @param bankName name of the shard
+     * @param journal where the accounts of the shard are saved (null = nowhere)
+     * @param shard this shard, from 0 to shards - 1
+     * @param shards number of shards of the bank
+     * @throws IOException if the journal cannot be read
+     */
+    BankImpl(String bankName, BankJournal journal, int shard, int shards) throws RemoteException, IOException {
+        super();
+        if (shard < 0 || shard >= shards)
+            throw new IllegalArgumentException("Illegal shard " + shard + " among " + shards);
+        this.bankName = bankName;
+        this.journal = journal;
+        this.ring = (shards > 1) ? new HashRing(shards) : null;
+        this.shard = shard;
+        if (journal != null) {
+            for (Map.Entry<String, Long> account : journal.recover().entrySet()) {
+                String name = account.getKey();
+                accounts.put(name, new AccountImpl(name, journal, metrics, dedup, account.getValue()));
+            }
+            for (Map.Entry<String, BankJournal.HeldTransfer> transfer : journal.getHeld().entrySet()) {
+                BankJournal.HeldTransfer t = transfer.getValue();
+                Hold hold = new Hold(t.from, t.to, t.cents);
+                hold.done.complete(Boolean.TRUE);
+                held.put(transfer.getKey(), hold);
+            }
+            for (Map.Entry<String, Boolean> transfer : journal.getSettled().entrySet())
+                settled.put(transfer.getKey(), CompletableFuture.completedFuture(transfer.getValue()));
+            if (!held.isEmpty())
+                LOG.info("Bank: {} {} transfers held, waiting for their reconciliation", bankName, held.size());
+            journal.start();
+        }
+        metrics.register(bankName);
+    }
+
+    @Override
+    public String[] listAccounts() {
+        long start = System.nanoTime();
+        String[] names = accounts.keySet().toArray(new String[1]);
+        metrics.listAccounts.succeeded(start);
+        return names;
+    }
+
+    @Override
+    public Account newAccount(String name) throws RemoteException,
+            RejectedException {
+        return BankMetrics.record(metrics.newAccount, () -> createAccount(name));
+    }
+
+    private Account createAccount(String name) throws RemoteException, RejectedException {
+        if (ring != null && ring.shardOf(name) != shard)
+            throw new RejectedException(RejectedException.WRONG_SHARD, "Rejected: Bank: " + bankName
+                    + " Account for: " + name + " belongs to another shard");
+
+        AccountImpl account = new AccountImpl(name, journal, metrics, dedup, 0);
+        // No bank lock, only the name is locked : the account is visible once its creation is queued
+        // in the journal (before any of its money moves)
+        CompletableFuture<?>[] event = new CompletableFuture<?>[1];
+        Account existing = accounts.computeIfAbsent(name, n -> {
+            if (journal != null)
+                event[0] = journal.newAccount(n);
+            return account;
+        });
+        if (existing != account) {
+            UnicastRemoteObject.unexportObject(account, true);
+            LOG.info("Account [{}] exists!!!", name);
+            throw new RejectedException(RejectedException.ACCOUNT_EXISTS, "Rejected: Bank: " + bankName
+                    + " Account for: " + name + " already exists: " + existing);
+        }
+        // Wait for the journal outside of the lock => other creations are written in the same fsync
+        if (event[0] != null)
+            account.commit(event[0]);
+        LOG.info("Bank: {} Account: {} has been created for {}", bankName, account, name);
+        return account;
     }
 
     @Override
-    public synchronized String[] listAccounts() {
-        return accounts.keySet().toArray(new String[1]);
+    public Account getAccount(String name) {
+        long start = System.nanoTime();
+        Account account = accounts.get(name);
+        metrics.getAccount.succeeded(start);
+        return account;
     }
 
     @Override
-    public synchronized Account newAccount(String name) throws RemoteException,
+    public void transfer(String from, String to, float amount) throws RemoteException,
             RejectedException {
+        BankMetrics.record(metrics.transfer, () -> move(from, to, amount));
+    }
+
+    @Override
+    public void transfer(String from, String to, float amount, String transferId) throws RemoteException,
+            RejectedException {
+        BankMetrics.record(metrics.transfer, () -> {
+            checkTransferId(transferId);
+            // Once per transfer id : sent again, it gets the outcome of the first call, once known
+            CompletableFuture<Boolean> outcome = new CompletableFuture<>();
+            CompletableFuture<Boolean> first = settled.putIfAbsent(transferId, outcome);
+            if (first != null) {
+                if (!await(first))
+                    throw aborted(transferId);
+                return; // Already done
+            }
+            AccountImpl source;
+            long cents;
+            try {
+                source = account(from);
+                cents = source.toCents(amount);
+                move(source, account(to), cents);
+            } catch (RejectedException | RuntimeException e) {
+                // Not done : not remembered, may be sent again
+                settled.remove(transferId, outcome);
+                outcome.completeExceptionally(e);
+                throw e;
+            }
+            // Done from now on, even if the journal fails (=> bank stopped, see BankJournal)
+            outcome.complete(Boolean.TRUE);
+            if (journal != null)
+                source.commit(journal.transfer(transferId, from, to, cents));
+        });
+    }
+
+    private void move(String from, String to, float amount) throws RemoteException, RejectedException {
+        AccountImpl source = account(from);
+        AccountImpl destination = account(to);
+        long cents = source.toCents(amount);
+        move(source, destination, cents);
+        // A single event for both accounts
+        if (journal != null)
+            source.commit(journal.transfer(from, to, cents));
+    }
+
+    private static void move(AccountImpl source, AccountImpl destination, long cents) throws RejectedException {
+        // No lock : the withdraw checks the balance and is done first (compare and set),
+        // the deposit can then only fail on overflow => the money goes back to the source
+        source.withdrawCents(cents);
+        try {
+            destination.depositCents(cents);
+        } catch (RejectedException e) {
+            source.depositCents(cents);
+            throw e;
+        }
+    }
+
+    /**
+     * @throws RejectedException NO_ACCOUNT if there is no account of that name on this shard
+     */
+    private AccountImpl account(String name) throws RejectedException {
         AccountImpl account = (AccountImpl) accounts.get(name);
-        if (account != null) {
-            System.out.println("Account [" + name + "] exists!!!");
-            throw new RejectedException("Rejected: Bank: " + bankName
-                    + " Account for: " + name + " already exists: " + account);
-        }
-        account = new AccountImpl(name);
-        accounts.put(name, account);
-        System.out.println("Bank: " + bankName + " Account: " + account
-                + " has been created for " + name);
+        if (account == null)
+            throw new RejectedException(RejectedException.NO_ACCOUNT, "Rejected: Bank: " + bankName
+                    + " No account for: " + name);
         return account;
     }
 
+    /**
+     * @throws RejectedException ILLEGAL_VALUE if the transfer id is missing or too long to be journaled
+     */
+    private void checkTransferId(String transferId) throws RejectedException {
+        if (transferId == null || transferId.length() > MAX_TRANSFER_ID)
+            throw new RejectedException(RejectedException.ILLEGAL_VALUE, "Rejected: Bank: " + bankName
+                    + " Illegal transfer id: " + ((transferId == null) ? "none" : "longer than "
+                    + MAX_TRANSFER_ID + " chars"));
+    }
+
+    private RejectedException aborted(String transferId) {
+        return new RejectedException(RejectedException.TRANSFER_ABORTED, "Rejected: Bank: " + bankName
+                + " Transfer " + transferId + " aborted");
+    }
+
+    // Transfers between shards (BankShard) : the coordinator is ShardedBank
+
     @Override
-    public synchronized Account getAccount(String name) {
-        return accounts.get(name);
+    public boolean hold(String transferId, String from, String to, float amount)
+            throws RemoteException, RejectedException {
+        return BankMetrics.record(metrics.hold, () -> {
+            checkTransferId(transferId);
+            AccountImpl source = account(from);
+            long cents = source.toCents(amount);
+            // Once per transfer id (sent again by the coordinator when the answer was lost) :
+            // a retry gets the outcome of the first call, once known
+            Hold hold = new Hold(from, to, cents);
+            Hold first = held.putIfAbsent(transferId, hold);
+            if (first != null)
+                return await(first.done);
+            // Transfer sent again once ended (released before settled is looked at) : not held twice
+            CompletableFuture<Boolean> ended = settled.get(transferId);
+            if (ended != null) {
+                held.remove(transferId, hold);
+                if (!await(ended)) {
+                    RejectedException e = aborted(transferId);
+                    hold.done.completeExceptionally(e);
+                    throw e;
+                }
+                hold.done.complete(Boolean.FALSE);
+                return false; // Held, credited and released
+            }
+            try {
+                source.withdrawCents(cents);
+            } catch (RejectedException e) {
+                held.remove(transferId, hold);
+                hold.done.completeExceptionally(e);
+                throw e;
+            }
+            try {
+                if (journal != null)
+                    source.commit(journal.hold(transferId, from, to, cents));
+            } catch (RemoteException e) {
+                // Held in memory only : given back by the release of the coordinator
+                hold.done.completeExceptionally(e);
+                throw e;
+            }
+            hold.done.complete(Boolean.TRUE);
+            return true;
+        });
     }
 
     @Override
-    public synchronized boolean deleteAccount(String name) {
-        if (!hasAccount(name)) {
-            return false;
+    public void credit(String transferId, String to, float amount) throws RemoteException, RejectedException {
+        BankMetrics.record(metrics.credit, () -> {
+            checkTransferId(transferId);
+            AccountImpl destination = account(to);
+            long cents = destination.toCents(amount);
+            CompletableFuture<Boolean> outcome = new CompletableFuture<>();
+            CompletableFuture<Boolean> first = settled.putIfAbsent(transferId, outcome);
+            if (first != null) {
+                if (!await(first))
+                    throw aborted(transferId);
+                return; // Already credited
+            }
+            try {
+                destination.depositCents(cents);
+            } catch (RejectedException e) {
+                settled.remove(transferId, outcome);
+                outcome.completeExceptionally(e);
+                throw e;
+            }
+            // Credited from now on, even if the journal fails (=> bank stopped, see BankJournal)
+            outcome.complete(Boolean.TRUE);
+            if (journal != null)
+                destination.commit(journal.credit(transferId, to, cents));
+        });
+    }
+
+    @Override
+    public void release(String transferId, boolean credited) throws RemoteException {
+        try {
+            BankMetrics.record(metrics.release, () -> {
+                Hold hold = held.get(transferId);
+                if (hold == null)
+                    return; // Unknown : never held, or already released
+                try {
+                    hold.done.join();
+                } catch (CompletionException e) {
+                    // Hold rejected => removed, or not journaled => still held
+                }
+                // Ended before it is no longer held : a hold sent again finds it (see hold)
+                settled.putIfAbsent(transferId, CompletableFuture.completedFuture(credited));
+                if (!held.remove(transferId, hold))
+                    return;
+                AccountImpl source = (AccountImpl) accounts.get(hold.name);
+                if (!credited) {
+                    // Not credited => back to the source account
+                    if (source != null)
+                        source.depositCents(hold.cents);
+                    else
+                        LOG.warn("Bank: {} Transfer {} cancelled, account {} deleted", bankName, transferId,
+                                hold.name);
+                }
+                if (journal != null)
+                    commit(journal.release(transferId, hold.name, hold.cents, credited));
+                if (!credited)
+                    LOG.info("Bank: {} Transfer {} cancelled, {} given back", bankName, transferId, hold.name);
+            });
+        } catch (RejectedException e) {
+            // Overflow of the money just taken off => cannot happen
+            throw new IllegalStateException(e);
+        }
+    }
+
+    @Override
+    public boolean settle(String transferId) throws RemoteException {
+        while (true) {
+            CompletableFuture<Boolean> aborted = CompletableFuture.completedFuture(Boolean.FALSE);
+            CompletableFuture<Boolean> first = settled.putIfAbsent(transferId, aborted);
+            if (first == null) {
+                // Never credited => never will be : a late credit is rejected
+                if (journal != null)
+                    commit(journal.abort(transferId));
+                LOG.info("Bank: {} Transfer {} aborted", bankName, transferId);
+                return false;
+            }
+            try {
+                return first.join();
+            } catch (CompletionException e) {
+                // Credit rejected meanwhile => removed, try again
+            }
         }
-        accounts.remove(name);
-        System.out.println("Bank: " + bankName + " Account for " + name
-                + " has been deleted");
-        return true;
     }
 
-    private boolean hasAccount(String name) {
-        return accounts.get(name) != null;
+    @Override
+    public Map<String, String> getHeld(long minAgeMillis) {
+        long now = System.nanoTime();
+        Map<String, String> transfers = new HashMap<>();
+        for (Map.Entry<String, Hold> transfer : held.entrySet()) {
+            Hold hold = transfer.getValue();
+            if (hold.done.isDone() && now - hold.time >= TimeUnit.MILLISECONDS.toNanos(minAgeMillis))
+                transfers.put(transfer.getKey(), hold.to);
+        }
+        return transfers;
+    }
+
+    /**
+     * Waits for the outcome of the first call of a transfer step
+     * @return its result
+     * @throws RejectedException if it was rejected
+     * @throws RemoteException if it failed
+     */
+    private static <T> T await(CompletableFuture<T> outcome) throws RemoteException, RejectedException {
+        try {
+            return outcome.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RejectedException)
+                throw (RejectedException) e.getCause();
+            if (e.getCause() instanceof RemoteException)
+                throw (RemoteException) e.getCause();
+            throw e;
+        }
+    }
+
+    // Waits until a journal event is durable
+    private void commit(CompletableFuture<?> event) throws RemoteException {
+        try {
+            BankJournal.await(event);
+        } catch (IOException e) {
+            throw new RemoteException("Bank " + bankName + ": journal write failed", e);
+        }
+    }
+
+    @Override
+    public boolean deleteAccount(String name) throws RemoteException {
+        long start = System.nanoTime();
+        try {
+            boolean deleted = removeAccount(name);
+            metrics.deleteAccount.succeeded(start);
+            return deleted;
+        } catch (RemoteException | RuntimeException e) {
+            metrics.deleteAccount.failed(start);
+            throw e;
+        }
+    }
+
+    private boolean removeAccount(String name) throws RemoteException {
+        CompletableFuture<?>[] event = new CompletableFuture<?>[1];
+        AccountImpl[] removed = new AccountImpl[1];
+        accounts.computeIfPresent(name, (n, account) -> {
+            removed[0] = (AccountImpl) account;
+            if (journal != null)
+                event[0] = journal.deleteAccount(n);
+            return null;
+        });
+        if (removed[0] == null) {
+            return false;
+        }
+        if (event[0] != null)
+            removed[0].commit(event[0]);
+        LOG.info("Bank: {} Account for {} has been deleted", bankName, name);
+        return true;
     }
 }
@@ -0,0 +1,582 @@
+package bank;
+
+import log.Logger;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.zip.CRC32;
+
+/**
+ * Write-ahead journal of the bank : account creations and deletions, and money moves.
+ *
+ * Events are appended by a single writer thread. All the events waiting when the
+ * writer wakes up are written together and made durable with a single fsync
+ * (group commit) : the callers wait for the fsync of their own event only.
+ *
+ * Every snapshotEvery events, the writer saves the balances of all the accounts in
+ * a snapshot and starts a new journal. The steps of the transfers between shards (BankShard)
+ * are journaled too, with the transfers made with an id : the money held and the transfers
+ * ended are recovered. At startup, the state of the bank is the last snapshot plus the events
+ * of the journal written after it.
+ *
+ * Files (in the journal directory) :
+ * - snapshot : generation g, then (name, balance in cents) for each account, then
+ *   (transfer id, from, to, cents) for each transfer held, then (transfer id, done)
+ *   for each transfer ended (older snapshots stop after the accounts)
+ * - journal-g : events written since the snapshot of generation g
+ * Each record is [length][payload][crc32] : a record torn by a crash is ignored.
+ *
+ * A write or fsync that fails stops the journal for good : the torn batch is cut off, its
+ * events and all the next ones fail. The accounts in memory may then be ahead of the journal
+ * (money moved before its event failed) : only a restart gives back the last durable state.
+ */
+class BankJournal {
+    private static final Logger LOG = Logger.getLogger(BankJournal.class);
+
+    private static final byte NEW_ACCOUNT = 1;
+    private static final byte DELETE_ACCOUNT = 2;
+    private static final byte DEPOSIT = 3;
+    private static final byte WITHDRAW = 4;
+    private static final byte TRANSFER = 5;
+    // Transfers between shards
+    private static final byte HOLD = 6; // Money taken off the source account, held
+    private static final byte RELEASE = 7; // Held money gone (credited on the destination)
+    private static final byte CANCEL = 8; // Held money given back to the source account
+    private static final byte CREDIT = 9; // Destination account credited
+    private static final byte ABORT = 10; // Transfer never to be credited (reconciliation)
+    private static final byte TRANSFER_ONCE = 11; // Transfer within the shard, with a transfer id
+
+    private static final String SNAPSHOT = "snapshot";
+    private static final String JOURNAL_PREFIX = "journal-";
+
+    private final Path directory;
+    private final int snapshotEvery;
+    private final BlockingQueue<Event> queue = new LinkedBlockingQueue<>();
+    // State of the bank as written in the journal (writer thread only) => source of the snapshots
+    private final Map<String, Long> balances = new HashMap<>();
+    private final Map<String, HeldTransfer> held = new LinkedHashMap<>();
+    private final Map<String, Boolean> settled = new LinkedHashMap<String, Boolean>() {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Boolean> eldest) {
+            return size() > BankImpl.SETTLED_MEMORY;
+        }
+    };
+    private long generation = 0;
+    private int eventsSinceSnapshot = 0;
+    private long validLength = 0; // Length of the journal without torn record (recovery)
+    private FileChannel journal;
+    private long journalLength; // Bytes of the journal durable (writer thread only)
+    private volatile IOException failure; // Not null => journal stopped
+    private Thread writer;
+
+    private static final class Event {
+        final byte type;
+        final String name;
+        final String to;
+        final long cents;
+        final String transferId;
+        final CompletableFuture<Void> committed = new CompletableFuture<>();
+
+        Event(byte type, String name, String to, long cents) {
+            this(type, name, to, cents, null);
+        }
+
+        Event(byte type, String name, String to, long cents, String transferId) {
+            this.type = type;
+            this.name = name;
+            this.to = to;
+            this.cents = cents;
+            this.transferId = transferId;
+        }
+    }
+
+    /**
+     * Money held on this shard for a transfer to another shard
+     */
+    static final class HeldTransfer {
+        final String from;
+        final String to;
+        final long cents;
+
+        HeldTransfer(String from, String to, long cents) {
+            this.from = from;
+            this.to = to;
+            this.cents = cents;
+        }
+    }
+
+    /**
+     * @param directory where the snapshot and the journal are kept (created if needed)
+     * @param snapshotEvery number of events between two snapshots
+     */
+    BankJournal(Path directory, int snapshotEvery) throws IOException {
+        this.directory = directory;
+        this.snapshotEvery = snapshotEvery;
+        Files.createDirectories(directory);
+    }
+
+    /**
+     * Rebuilds the state of the bank from the last snapshot and the journal tail,
+     * then opens the journal for the new events.
+     * @return balance (cents) of each account
+     */
+    synchronized Map<String, Long> recover() throws IOException {
+        Path snapshot = directory.resolve(SNAPSHOT);
+        if (Files.exists(snapshot)) {
+            try (DataInputStream in = new DataInputStream(Files.newInputStream(snapshot))) {
+                generation = in.readLong();
+                int count = in.readInt();
+                for (int i = 0; i < count; i++)
+                    balances.put(in.readUTF(), in.readLong());
+                readTransfers(in);
+            }
+        }
+
+        int replayed = 0;
+        Path tail = journalPath(generation);
+        if (Files.exists(tail)) {
+            try (InputStream in = Files.newInputStream(tail)) {
+                replayed = replay(new DataInputStream(in), Files.size(tail));
+            }
+        }
+        deleteOldJournals();
+
+        // Torn record at the end ? => cut, the new events go after the last good one
+        journal = FileChannel.open(tail, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        journal.truncate(validLength);
+        journal.position(validLength);
+        journalLength = validLength;
+        eventsSinceSnapshot = replayed;
+        LOG.info("Bank journal: {} accounts recovered ({} events replayed) from {}",
+                balances.size(), replayed, directory);
+        return new HashMap<>(balances);
+    }
+
+    private void readTransfers(DataInputStream in) throws IOException {
+        int count;
+        try {
+            count = in.readInt();
+        } catch (EOFException e) {
+            return; // Snapshot without transfers
+        }
+        for (int i = 0; i < count; i++)
+            held.put(in.readUTF(), new HeldTransfer(in.readUTF(), in.readUTF(), in.readLong()));
+        count = in.readInt();
+        for (int i = 0; i < count; i++)
+            settled.put(in.readUTF(), in.readBoolean());
+    }
+
+    /**
+     * @return transfers held on this shard, by transfer id (after {@link #recover()})
+     */
+    synchronized Map<String, HeldTransfer> getHeld() {
+        return new LinkedHashMap<>(held);
+    }
+
+    /**
+     * @return transfers ended on this shard, oldest first (after {@link #recover()}) : done, credited or
+     *         released (true), aborted or cancelled (false)
+     */
+    synchronized Map<String, Boolean> getSettled() {
+        return new LinkedHashMap<>(settled);
+    }
+
+    /**
+     * Applies the records of a journal, up to the first torn one
+     * @param in
+     * @param size size of the journal file : a record cannot be longer than what is left
+     * @return number of records applied
+     */
+    private int replay(DataInputStream in, long size) throws IOException {
+        int count = 0;
+        CRC32 crc = new CRC32();
+        while (true) {
+            byte[] payload;
+            try {
+                int length = in.readInt();
+                // Length torn or garbage => not allocated
+                if (length <= 0 || length > size - validLength - 8)
+                    break;
+                payload = new byte[length];
+                in.readFully(payload);
+                crc.reset();
+                crc.update(payload);
+                if (in.readInt() != (int) crc.getValue())
+                    break;
+            } catch (EOFException e) {
+                break;
+            }
+            apply(new DataInputStream(new ByteArrayInputStream(payload)));
+            validLength += 4 + payload.length + 4;
+            count++;
+        }
+        return count;
+    }
+
+    private void apply(DataInputStream record) throws IOException {
+        byte type = record.readByte();
+        String name = hasName(type) ? record.readUTF() : null;
+        String to = hasTo(type) ? record.readUTF() : null;
+        String transferId = hasTransferId(type) ? record.readUTF() : null;
+        long cents = hasAmount(type) ? record.readLong() : 0;
+        apply(type, name, to, cents, transferId);
+    }
+
+    private void apply(byte type, String name, String to, long cents, String transferId) throws IOException {
+        switch (type) {
+            case NEW_ACCOUNT:
+                balances.put(name, 0L);
+                break;
+            case DELETE_ACCOUNT:
+                balances.remove(name);
+                break;
+            case DEPOSIT:
+                balances.computeIfPresent(name, (n, balance) -> balance + cents);
+                break;
+            case WITHDRAW:
+                balances.computeIfPresent(name, (n, balance) -> balance - cents);
+                break;
+            case TRANSFER:
+                balances.computeIfPresent(name, (n, balance) -> balance - cents);
+                balances.computeIfPresent(to, (n, balance) -> balance + cents);
+                break;
+            case HOLD:
+                balances.computeIfPresent(name, (n, balance) -> balance - cents);
+                held.put(transferId, new HeldTransfer(name, to, cents));
+                break;
+            case RELEASE:
+                held.remove(transferId);
+                settled.put(transferId, Boolean.TRUE);
+                break;
+            case CANCEL:
+                held.remove(transferId);
+                settled.put(transferId, Boolean.FALSE);
+                balances.computeIfPresent(name, (n, balance) -> balance + cents);
+                break;
+            case CREDIT:
+                balances.computeIfPresent(name, (n, balance) -> balance + cents);
+                settled.put(transferId, Boolean.TRUE);
+                break;
+            case ABORT:
+                settled.put(transferId, Boolean.FALSE);
+                break;
+            case TRANSFER_ONCE:
+                balances.computeIfPresent(name, (n, balance) -> balance - cents);
+                balances.computeIfPresent(to, (n, balance) -> balance + cents);
+                settled.put(transferId, Boolean.TRUE);
+                break;
+            default:
+                throw new IOException("Unknown journal record type : " + type);
+        }
+    }
+
+    // Fields of a record, after its type : name, to, transfer id, cents
+
+    private static boolean hasName(byte type) {
+        return type != ABORT;
+    }
+
+    private static boolean hasTo(byte type) {
+        return type == TRANSFER || type == HOLD || type == TRANSFER_ONCE;
+    }
+
+    private static boolean hasTransferId(byte type) {
+        return type >= HOLD;
+    }
+
+    private static boolean hasAmount(byte type) {
+        return type == DEPOSIT || type == WITHDRAW || type == TRANSFER || type == HOLD || type == CANCEL
+                || type == CREDIT || type == TRANSFER_ONCE;
+    }
+
+    /**
+     * Starts the writer thread (after {@link #recover()})
+     */
+    synchronized void start() {
+        writer = new Thread(this::writeLoop, "bank-journal");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    // Events : the returned future completes once the event is durable
+
+    CompletableFuture<Void> newAccount(String name) {
+        return append(new Event(NEW_ACCOUNT, name, null, 0));
+    }
+
+    CompletableFuture<Void> deleteAccount(String name) {
+        return append(new Event(DELETE_ACCOUNT, name, null, 0));
+    }
+
+    CompletableFuture<Void> deposit(String name, long cents) {
+        return append(new Event(DEPOSIT, name, null, cents));
+    }
+
+    CompletableFuture<Void> withdraw(String name, long cents) {
+        return append(new Event(WITHDRAW, name, null, cents));
+    }
+
+    CompletableFuture<Void> transfer(String from, String to, long cents) {
+        return append(new Event(TRANSFER, from, to, cents));
+    }
+
+    CompletableFuture<Void> transfer(String transferId, String from, String to, long cents) {
+        return append(new Event(TRANSFER_ONCE, from, to, cents, transferId));
+    }
+
+    CompletableFuture<Void> hold(String transferId, String from, String to, long cents) {
+        return append(new Event(HOLD, from, to, cents, transferId));
+    }
+
+    /**
+     * End of a transfer held : money gone if credited, otherwise given back to the source account
+     */
+    CompletableFuture<Void> release(String transferId, String from, long cents, boolean credited) {
+        return append(credited ? new Event(RELEASE, from, null, 0, transferId)
+                : new Event(CANCEL, from, null, cents, transferId));
+    }
+
+    CompletableFuture<Void> credit(String transferId, String to, long cents) {
+        return append(new Event(CREDIT, to, null, cents, transferId));
+    }
+
+    CompletableFuture<Void> abort(String transferId) {
+        return append(new Event(ABORT, null, null, 0, transferId));
+    }
+
+    private CompletableFuture<Void> append(Event event) {
+        IOException failed = failure;
+        if (failed != null)
+            event.committed.completeExceptionally(failed);
+        else
+            queue.add(event); // Failed by the writer if the journal stops meanwhile
+        return event.committed;
+    }
+
+    /**
+     * Waits until an event is durable
+     * @throws IOException if it could not be written
+     */
+    static void await(CompletableFuture<?> committed) throws IOException {
+        try {
+            committed.join();
+        } catch (CompletionException e) {
+            throw (e.getCause() instanceof IOException) ? (IOException) e.getCause()
+                    : new IOException(e.getCause());
+        }
+    }
+
+    private void writeLoop() {
+        List<Event> batch = new ArrayList<>();
+        while (true) {
+            try {
+                batch.add(queue.take());
+            } catch (InterruptedException e) {
+                return;
+            }
+            queue.drainTo(batch);
+            try {
+                if (failure != null)
+                    throw failure;
+                write(batch);
+                journal.force(false); // One fsync for the whole batch
+            } catch (IOException e) {
+                stop(e);
+                for (Event event : batch)
+                    event.committed.completeExceptionally(failure);
+                batch.clear();
+                continue;
+            }
+            try {
+                // Durable => part of the state of the snapshots
+                for (Event event : batch)
+                    apply(event.type, event.name, event.to, event.cents, event.transferId);
+            } catch (IOException e) {
+                throw new IllegalStateException(e); // Our own events : known types
+            }
+            for (Event event : batch)
+                event.committed.complete(null);
+            eventsSinceSnapshot += batch.size();
+            batch.clear();
+            if (eventsSinceSnapshot >= snapshotEvery) {
+                try {
+                    snapshot();
+                } catch (IOException e) {
+                    stop(e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Stops the journal after a failed write : the end of the batch written (torn) is cut off,
+     * so that nothing is ever appended after a torn record (lost at recovery with all the records after it)
+     */
+    private void stop(IOException e) {
+        if (failure != null)
+            return;
+        failure = e;
+        LOG.error("Bank journal: write failed, journal stopped (restart the bank to recover its last"
+                + " durable state) : {}", e);
+        try {
+            journal.truncate(journalLength);
+            journal.force(false);
+        } catch (IOException t) {
+            LOG.error("Bank journal: torn batch not cut off (ignored by the recovery) : {}", t);
+        }
+    }
+
+    private void write(List<Event> batch) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(64 * batch.size());
+        DataOutputStream out = new DataOutputStream(bytes);
+        ByteArrayOutputStream payloadBytes = new ByteArrayOutputStream(64);
+        DataOutputStream payload = new DataOutputStream(payloadBytes);
+        CRC32 crc = new CRC32();
+        for (Event event : batch) {
+            payloadBytes.reset();
+            payload.writeByte(event.type);
+            if (hasName(event.type))
+                payload.writeUTF(event.name);
+            if (hasTo(event.type))
+                payload.writeUTF(event.to);
+            if (hasTransferId(event.type))
+                payload.writeUTF(event.transferId);
+            if (hasAmount(event.type))
+                payload.writeLong(event.cents);
+            payload.flush();
+            byte[] record = payloadBytes.toByteArray();
+            crc.reset();
+            crc.update(record);
+            out.writeInt(record.length);
+            out.write(record);
+            out.writeInt((int) crc.getValue());
+        }
+        out.flush();
+        ByteBuffer buffer = ByteBuffer.wrap(bytes.toByteArray());
+        while (buffer.hasRemaining())
+            journal.write(buffer);
+        journalLength += buffer.limit();
+    }
+
+    /**
+     * Saves the balances in a new snapshot and starts a new (empty) journal.
+     * Safe against crashes : the old journal is deleted only once the snapshot is in place,
+     * and durably so (fsync of the directory).
+     * @throws IOException if the new journal is in use but maybe not durable (=> journal stopped) ;
+     * a failure before keeps the old snapshot and journal
+     */
+    private void snapshot() throws IOException {
+        long next = generation + 1;
+        Path tmp = directory.resolve(SNAPSHOT + ".tmp");
+        try (FileChannel channel = FileChannel.open(tmp, StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+             DataOutputStream out = new DataOutputStream(
+                     new BufferedOutputStream(Channels.newOutputStream(channel)))) {
+            out.writeLong(next);
+            out.writeInt(balances.size());
+            for (Map.Entry<String, Long> account : balances.entrySet()) {
+                out.writeUTF(account.getKey());
+                out.writeLong(account.getValue());
+            }
+            out.writeInt(held.size());
+            for (Map.Entry<String, HeldTransfer> transfer : held.entrySet()) {
+                out.writeUTF(transfer.getKey());
+                out.writeUTF(transfer.getValue().from);
+                out.writeUTF(transfer.getValue().to);
+                out.writeLong(transfer.getValue().cents);
+            }
+            out.writeInt(settled.size());
+            for (Map.Entry<String, Boolean> transfer : settled.entrySet()) {
+                out.writeUTF(transfer.getKey());
+                out.writeBoolean(transfer.getValue());
+            }
+            out.flush();
+            channel.force(true);
+        } catch (IOException e) {
+            LOG.warn("Bank journal: snapshot {} failed, journal kept : {}", next, e);
+            eventsSinceSnapshot = 0; // Next try later
+            return;
+        }
+
+        // New journal ready before the snapshot is in place (unused until then)
+        FileChannel nextJournal;
+        try {
+            nextJournal = FileChannel.open(journalPath(next), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                    StandardOpenOption.TRUNCATE_EXISTING);
+        } catch (IOException e) {
+            LOG.warn("Bank journal: snapshot {} failed, journal kept : {}", next, e);
+            eventsSinceSnapshot = 0;
+            return;
+        }
+        try {
+            Files.move(tmp, directory.resolve(SNAPSHOT), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            nextJournal.close();
+            LOG.warn("Bank journal: snapshot {} failed, journal kept : {}", next, e);
+            eventsSinceSnapshot = 0;
+            return;
+        }
+
+        FileChannel old = journal;
+        journal = nextJournal;
+        journalLength = 0;
+        generation = next;
+        eventsSinceSnapshot = 0;
+        old.close();
+        // Snapshot and new journal durable before the old journal goes
+        syncDirectory(directory);
+        deleteOldJournals();
+        LOG.info("Bank journal: snapshot {} ({} accounts)", next, balances.size());
+    }
+
+    /**
+     * Makes the creations, renames and deletions of files in a directory durable
+     */
+    static void syncDirectory(Path directory) throws IOException {
+        try (FileChannel channel = FileChannel.open(directory, StandardOpenOption.READ)) {
+            channel.force(true);
+        }
+    }
+
+    private Path journalPath(long generation) {
+        return directory.resolve(JOURNAL_PREFIX + generation);
+    }
+
+    private void deleteOldJournals() throws IOException {
+        try (DirectoryStream<Path> journals = Files.newDirectoryStream(directory, JOURNAL_PREFIX + "*")) {
+            for (Path path : journals) {
+                try {
+                    long g = Long.parseLong(path.getFileName().toString().substring(JOURNAL_PREFIX.length()));
+                    if (g < generation)
+                        Files.delete(path);
+                } catch (NumberFormatException e) {
+                    // Not one of ours
+                }
+            }
+        }
+    }
+}
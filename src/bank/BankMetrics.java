@@ -0,0 +1,97 @@
+package bank;
+
+import dedup.DedupCache;
+import metrics.Jmx;
+import metrics.OperationStats;
+
+import java.rmi.RemoteException;
+import java.util.Collections;
+import java.util.Map;
+
+/**
+ * Metrics of a bank : calls of each Bank, BankShard and Account operation, number of accounts,
+ * requests sent again
+ */
+class BankMetrics implements BankMetricsMXBean {
+    // For the accounts created outside of a bank : counted, never registered
+    static final BankMetrics DETACHED = new BankMetrics(Collections.emptyMap(), null);
+
+    final OperationStats newAccount = new OperationStats("newAccount");
+    final OperationStats getAccount = new OperationStats("getAccount");
+    final OperationStats deleteAccount = new OperationStats("deleteAccount");
+    final OperationStats listAccounts = new OperationStats("listAccounts");
+    final OperationStats transfer = new OperationStats("transfer");
+    final OperationStats deposit = new OperationStats("deposit");
+    final OperationStats withdraw = new OperationStats("withdraw");
+    final OperationStats getBalance = new OperationStats("getBalance");
+    // Transfers between shards
+    final OperationStats hold = new OperationStats("hold");
+    final OperationStats credit = new OperationStats("credit");
+    final OperationStats release = new OperationStats("release");
+
+    private final Map<String, Account> accounts;
+    private final DedupCache dedup;
+
+    BankMetrics(Map<String, Account> accounts, DedupCache dedup) {
+        this.accounts = accounts;
+        this.dedup = dedup;
+    }
+
+    /**
+     * Makes the metrics visible in JMX
+     */
+    void register(String bankName) {
+        Jmx.register("bank:type=Bank,name=" + bankName, this);
+        Jmx.registerOperations("bank:type=Operation,bank=" + bankName, newAccount, getAccount, deleteAccount,
+                listAccounts, transfer, deposit, withdraw, getBalance, hold, credit, release);
+    }
+
+    @Override
+    public int getAccounts() {
+        return accounts.size();
+    }
+
+    @Override
+    public int getRecentRequests() {
+        return dedup.size();
+    }
+
+    @Override
+    public long getDuplicateRequests() {
+        return dedup.getDuplicates();
+    }
+
+    // Body of a remote call
+    interface Call<T> {
+        T run() throws RemoteException, RejectedException;
+    }
+
+    interface Action {
+        void run() throws RemoteException, RejectedException;
+    }
+
+    /**
+     * Runs the body of a remote call, recording its latency and its outcome in the metrics of the operation
+     */
+    static <T> T record(OperationStats stats, Call<T> call) throws RemoteException, RejectedException {
+        long start = System.nanoTime();
+        try {
+            T result = call.run();
+            stats.succeeded(start);
+            return result;
+        } catch (RejectedException e) {
+            stats.rejected(start, e.getReason());
+            throw e;
+        } catch (RemoteException | RuntimeException e) {
+            stats.failed(start);
+            throw e;
+        }
+    }
+
+    static void record(OperationStats stats, Action action) throws RemoteException, RejectedException {
+        record(stats, () -> {
+            action.run();
+            return null;
+        });
+    }
+}
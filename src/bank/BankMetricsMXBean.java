@@ -0,0 +1,14 @@
+package bank;
+
+/**
+ * JMX view of the state of a bank (bank:type=Bank,name=<bank>).
+ * The calls of each operation are in bank:type=Operation,bank=<bank>,name=<operation>.
+ */
+public interface BankMetricsMXBean {
+    int getAccounts();
+
+    // Outcomes of the deposits and withdraws with a request id kept, calls answered with one of them
+    int getRecentRequests();
+
+    long getDuplicateRequests();
+}
@@ -1,19 +1,46 @@
 package bank;
 
+import log.Logger;
+
+import java.nio.file.Paths;
 import java.rmi.Naming;
+import java.rmi.NotBoundException;
 import java.rmi.RemoteException;
 import java.rmi.registry.LocateRegistry;
 import java.security.AccessControlContext;
 import java.security.AccessControlException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
 public class BankServer {
-    private static final String USAGE = "java bank.BankServer <bank_rmi_url> <port>";
+    private static final Logger LOG = Logger.getLogger(BankServer.class);
+    private static final String USAGE = "java [-Dbank.shards=<N> -Dbank.shard=<0..N-1>] bank.BankServer"
+            + " <bank_rmi_url> <port>";
     private static final String BANK = "Nordea";
     private static final int DEFAULT_LOCAL_REGISTRY_PORT_NUMBER = 1099;
+    // Journal of the bank : -Dbank.dir=<directory> (empty = no persistence)
+    private static final String JOURNAL_DIR = System.getProperty("bank.dir", "bank-data");
+    private static final int SNAPSHOT_EVERY = Integer.getInteger("bank.snapshot.every", 100_000);
+    // Sharded bank : this process owns the accounts of shard -Dbank.shard among -Dbank.shards
+    private static final int SHARDS = Integer.getInteger("bank.shards", 1);
+    private static final int SHARD = Integer.getInteger("bank.shard", 0);
+    // Transfers of this shard held longer than that are reconciled : -Dbank.reconcile.ms (0 = never)
+    private static final long RECONCILE_MILLIS = Long.getLong("bank.reconcile.ms", 60_000);
 
     public BankServer(String bankName, int port) {
         try {
-            Bank bankobj = new BankImpl(bankName);
+            // A shard is bound as <bank>-<shard>
+            if (SHARDS > 1)
+                bankName = ShardedBank.shardName(bankName, SHARD);
+            Bank bankobj;
+            if (JOURNAL_DIR.isEmpty()) {
+                bankobj = new BankImpl(bankName, null, SHARD, SHARDS);
+            } else {
+                // Accounts and balances are recovered from the snapshot and the journal
+                bankobj = new BankImpl(bankName, new BankJournal(Paths.get(JOURNAL_DIR, bankName),
+                        SNAPSHOT_EVERY), SHARD, SHARDS);
+            }
             // Register the newly created object at rmiregistry.
             try {
                 LocateRegistry.getRegistry(port).list();
@@ -22,11 +49,34 @@ public class BankServer {
             }
             Naming.rebind(bankName, bankobj);
             System.out.println(bankobj + " is ready.");
+            if (SHARDS > 1 && RECONCILE_MILLIS > 0)
+                startReconciliation(bankName.substring(0, bankName.lastIndexOf('-')), port);
         } catch (Exception e) {
             e.printStackTrace();
         }
     }
 
+    // Ends the transfers held by this shard and left in doubt (see ShardedBank.reconcile)
+    private static void startReconciliation(String bankName, int port) {
+        ScheduledExecutorService reconciliation = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "bank-reconciliation");
+            t.setDaemon(true);
+            return t;
+        });
+        reconciliation.scheduleWithFixedDelay(() -> {
+            try {
+                // Looked up each time : the other shards may start later, or restart
+                Bank bank = ShardedBank.lookup(LocateRegistry.getRegistry(port), bankName);
+                if (bank instanceof ShardedBank)
+                    ((ShardedBank) bank).reconcile(SHARD, RECONCILE_MILLIS);
+            } catch (RemoteException | NotBoundException e) {
+                LOG.warn("Reconciliation of shard {} failed, next try later : {}", SHARD, e.getMessage());
+            } catch (RuntimeException e) {
+                LOG.error("Reconciliation of shard {} failed : {}", SHARD, e);
+            }
+        }, RECONCILE_MILLIS, RECONCILE_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
     public static void main(String[] args) {
         if (args.length > 2 || (args.length > 0 && args[0].equalsIgnoreCase("-h"))) {
             System.out.println(USAGE);
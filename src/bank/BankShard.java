@@ -0,0 +1,35 @@
+package bank;
+
+import java.rmi.RemoteException;
+import java.util.Map;
+
+/**
+ * A bank owning part of the accounts (BankServer -Dbank.shards=N), see ShardedBank.
+ *
+ * A transfer between two shards is done in three steps, without any lock held between them :
+ * the money is held on the shard of the source account, credited on the shard of the
+ * destination account, then released on the first shard (kept if credited, given back
+ * otherwise). Each step can be sent again with the same transfer id, and is journaled.
+ *
+ * A transfer left in doubt (coordinator gone, credit answer lost) stays held until the
+ * reconciliation (ShardedBank.reconcile) settles it on the destination shard : credited, or
+ * aborted so that it never is, then releases it.
+ */
+public interface BankShard extends Bank {
+    // Takes the money off the source account and holds it for the transfer. Sent again once the transfer
+    // has ended : not held again, false if it was credited, rejected (TRANSFER_ABORTED) if it was cancelled
+    public boolean hold(String transferId, String from, String to, float amount)
+            throws RemoteException, RejectedException;
+
+    // Credits the destination account, once per transfer id
+    public void credit(String transferId, String to, float amount) throws RemoteException, RejectedException;
+
+    // Ends the transfer : the held money is gone if credited, otherwise back on the source account
+    public void release(String transferId, boolean credited) throws RemoteException;
+
+    // Ends the doubt about a transfer to this shard : true if credited, otherwise it never will be
+    public boolean settle(String transferId) throws RemoteException;
+
+    // Transfers held on this shard for at least minAgeMillis : transfer id -> destination account
+    public Map<String, String> getHeld(long minAgeMillis) throws RemoteException;
+}
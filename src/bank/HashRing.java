@@ -0,0 +1,62 @@
+package bank;
+
+import java.util.Arrays;
+
+/**
+ * Consistent hashing of the account names over the shards of a bank.
+ *
+ * Each shard puts points on a ring of hashes ; an account belongs to the shard of the
+ * first point at or after the hash of its name. The points of a shard do not depend on
+ * the number of shards : adding a shard would only move the accounts it takes over, but
+ * nothing moves them (nor their journal) : the number of shards of a bank is fixed once
+ * it has accounts.
+ */
+final class HashRing {
+    // More points => more even ranges
+    private static final int POINTS_PER_SHARD = 128;
+
+    private final long[] ring; // (hash << 32) | shard, sorted
+
+    HashRing(int shards) {
+        if (shards < 1)
+            throw new IllegalArgumentException("Illegal number of shards : " + shards);
+        ring = new long[shards * POINTS_PER_SHARD];
+        int i = 0;
+        for (int shard = 0; shard < shards; shard++) {
+            for (int point = 0; point < POINTS_PER_SHARD; point++)
+                ring[i++] = ((long) hash("shard-" + shard + "#" + point) << 32) | shard;
+        }
+        Arrays.sort(ring);
+    }
+
+    int shardOf(String name) {
+        long key = (long) hash(name) << 32;
+        int i = Arrays.binarySearch(ring, key);
+        if (i < 0)
+            i = -i - 1;
+        if (i == ring.length)
+            i = 0; // Wraps around
+        return (int) ring[i];
+    }
+
+    int getShards() {
+        return ring.length / POINTS_PER_SHARD;
+    }
+
+    /**
+     * Stable across JVMs (FNV-1a, then mixed : close names far on the ring)
+     */
+    static int hash(String s) {
+        int h = 0x811C9DC5;
+        for (int i = 0; i < s.length(); i++) {
+            h ^= s.charAt(i);
+            h *= 0x01000193;
+        }
+        h ^= h >>> 16;
+        h *= 0x85EBCA6B;
+        h ^= h >>> 13;
+        h *= 0xC2B2AE35;
+        h ^= h >>> 16;
+        return h;
+    }
+}
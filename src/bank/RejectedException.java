@@ -3,7 +3,35 @@ package bank;
 final public class RejectedException extends Exception {
     private static final long serialVersionUID = -314439670131687936L;
 
-    public RejectedException(String reason) {
-        super(reason);
+    // Reasons of a rejection : short codes, stable (metrics...)
+    public static final String OTHER = "other";
+    public static final String ACCOUNT_EXISTS = "account-exists";
+    public static final String NO_ACCOUNT = "no-account";
+    public static final String INSUFFICIENT_FUNDS = "insufficient-funds";
+    public static final String BALANCE_OVERFLOW = "balance-overflow";
+    public static final String ILLEGAL_VALUE = "illegal-value";
+    public static final String WRONG_SHARD = "wrong-shard";
+    public static final String TRANSFER_ABORTED = "transfer-aborted";
+
+    private final String reason;
+
+    public RejectedException(String message) {
+        this(OTHER, message);
+    }
+
+    /**
+     * @param reason one of the reason codes
+     * @param message
+     */
+    public RejectedException(String reason, String message) {
+        super(message);
+        this.reason = reason;
+    }
+
+    /**
+     * @return the reason code (OTHER if not given, or sent by an older bank)
+     */
+    public String getReason() {
+        return (reason == null) ? OTHER : reason;
     }
 }
@@ -0,0 +1,214 @@
+package bank;
+
+import log.Logger;
+
+import java.rmi.NotBoundException;
+import java.rmi.RemoteException;
+import java.rmi.registry.Registry;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+
+/**
+ * A bank made of several shards (BankServer -Dbank.shards=N), seen as a single bank.
+ *
+ * Each shard owns the accounts of a range of the hash ring (HashRing) : account calls go
+ * to the shard of the account, then straight to the account. A transfer between two
+ * accounts of the same shard is a single call to it ; between two shards, it is coordinated
+ * here in three steps (BankShard) : no lock is held across the shards, and the money is
+ * either on the source account, held for the transfer, or on the destination account.
+ * A transfer left in doubt is ended later by {@link #reconcile(int, long)}.
+ * The shards are bound in the registry as <bank>-0, <bank>-1...
+ *
+ * Not a remote object : it lives in the client (or the market), and calls the shards through RMI.
+ */
+public class ShardedBank implements Bank {
+    private static final Logger LOG = Logger.getLogger(ShardedBank.class);
+    // Steps of a transfer sent again when the answer is lost
+    private static final int RETRIES = 3;
+
+    private final BankShard[] shards;
+    private final HashRing ring;
+
+    /**
+     * @param shards shard i owns the accounts of its points of the ring (HashRing with shards.length shards)
+     */
+    public ShardedBank(BankShard[] shards) {
+        this.shards = shards.clone();
+        this.ring = new HashRing(shards.length);
+    }
+
+    /**
+     * Looks up a bank : the bank bound under that name, or else all its shards
+     * @param registry
+     * @param bankName
+     * @return the bank, or a ShardedBank over <bankName>-0, <bankName>-1...
+     * @throws NotBoundException if neither the bank nor its first shard is bound
+     */
+    public static Bank lookup(Registry registry, String bankName) throws RemoteException, NotBoundException {
+        try {
+            return (Bank) registry.lookup(bankName);
+        } catch (NotBoundException e) {
+            // Sharded ?
+        }
+        Set<String> bound = new HashSet<>(Arrays.asList(registry.list()));
+        List<BankShard> shards = new ArrayList<>();
+        while (bound.contains(shardName(bankName, shards.size())))
+            shards.add((BankShard) registry.lookup(shardName(bankName, shards.size())));
+        if (shards.isEmpty())
+            throw new NotBoundException(bankName);
+        return new ShardedBank(shards.toArray(new BankShard[0]));
+    }
+
+    static String shardName(String bankName, int shard) {
+        return bankName + "-" + shard;
+    }
+
+    private BankShard shardOf(String name) {
+        return shards[ring.shardOf(name)];
+    }
+
+    public int getShardCount() {
+        return shards.length;
+    }
+
+    @Override
+    public Account newAccount(String name) throws RemoteException, RejectedException {
+        return shardOf(name).newAccount(name);
+    }
+
+    @Override
+    public Account getAccount(String name) throws RemoteException {
+        return shardOf(name).getAccount(name);
+    }
+
+    @Override
+    public boolean deleteAccount(String name) throws RemoteException {
+        return shardOf(name).deleteAccount(name);
+    }
+
+    @Override
+    public String[] listAccounts() throws RemoteException {
+        List<String> names = new ArrayList<>();
+        for (BankShard shard : shards) {
+            for (String name : shard.listAccounts()) {
+                if (name != null) // Empty bank
+                    names.add(name);
+            }
+        }
+        return names.toArray(new String[0]);
+    }
+
+    @Override
+    public void transfer(String from, String to, float amount) throws RemoteException, RejectedException {
+        BankShard source = shardOf(from);
+        BankShard destination = shardOf(to);
+        if (source == destination)
+            source.transfer(from, to, amount);
+        else
+            transfer(source, destination, UUID.randomUUID().toString(), from, to, amount);
+    }
+
+    @Override
+    public void transfer(String from, String to, float amount, String transferId) throws RemoteException,
+            RejectedException {
+        if (transferId == null || transferId.length() > MAX_TRANSFER_ID)
+            throw new RejectedException(RejectedException.ILLEGAL_VALUE, "Illegal transfer id : "
+                    + ((transferId == null) ? "none" : "longer than " + MAX_TRANSFER_ID + " chars"));
+        BankShard source = shardOf(from);
+        BankShard destination = shardOf(to);
+        if (source == destination)
+            source.transfer(from, to, amount, transferId);
+        else
+            // Sent again : the hold, the credit and the release are each done once for the transfer id,
+            // an ended transfer is not held again (BankShard)
+            transfer(source, destination, transferId, from, to, amount);
+    }
+
+    private void transfer(BankShard source, BankShard destination, String transferId, String from, String to,
+                          float amount) throws RemoteException, RejectedException {
+        try {
+            if (!hold(source, transferId, from, to, amount))
+                return; // Sent again : already credited and released
+        } catch (RemoteException e) {
+            // Maybe held : given back
+            release(source, transferId, false);
+            throw e;
+        }
+
+        try {
+            credit(destination, transferId, to, amount);
+        } catch (RejectedException e) {
+            // No account, overflow... => back to the source
+            release(source, transferId, false);
+            throw e;
+        } catch (RemoteException e) {
+            // Maybe credited : the money stays held on the source shard, not lost nor paid twice,
+            // until the reconciliation
+            LOG.error("Transfer {} of {} from {} to {} in doubt : {}", transferId, amount, from, to, e.getMessage());
+            throw e;
+        }
+        release(source, transferId, true);
+    }
+
+    /**
+     * Ends the transfers held on a shard for a while (coordinator gone, credit in doubt) :
+     * each one is settled on the shard of its destination account, then released
+     * @param shard shard holding the transfers
+     * @param minAgeMillis transfers held for less are left to their coordinator
+     * @return number of transfers ended
+     * @throws RemoteException if a shard cannot be reached (the transfers left stay held)
+     */
+    public int reconcile(int shard, long minAgeMillis) throws RemoteException {
+        int ended = 0;
+        for (Map.Entry<String, String> transfer : shards[shard].getHeld(minAgeMillis).entrySet()) {
+            String transferId = transfer.getKey();
+            boolean credited = shardOf(transfer.getValue()).settle(transferId);
+            shards[shard].release(transferId, credited);
+            LOG.info("Transfer {} reconciled (credited : {})", transferId, credited);
+            ended++;
+        }
+        return ended;
+    }
+
+    private static boolean hold(BankShard shard, String transferId, String from, String to, float amount)
+            throws RemoteException, RejectedException {
+        for (int attempt = 1; ; attempt++) {
+            try {
+                return shard.hold(transferId, from, to, amount);
+            } catch (RemoteException e) {
+                if (attempt == RETRIES)
+                    throw e;
+            }
+        }
+    }
+
+    private static void credit(BankShard shard, String transferId, String to, float amount)
+            throws RemoteException, RejectedException {
+        for (int attempt = 1; ; attempt++) {
+            try {
+                shard.credit(transferId, to, amount);
+                return;
+            } catch (RemoteException e) {
+                if (attempt == RETRIES)
+                    throw e;
+            }
+        }
+    }
+
+    private static void release(BankShard shard, String transferId, boolean credited) {
+        for (int attempt = 1; attempt <= RETRIES; attempt++) {
+            try {
+                shard.release(transferId, credited);
+                return;
+            } catch (RemoteException e) {
+                LOG.warn("Release of transfer {} failed : {}", transferId, e.getMessage());
+            }
+        }
+        LOG.error("Transfer {} still held (credited : {})", transferId, credited);
+    }
+}
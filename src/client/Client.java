@@ -4,21 +4,50 @@ package client;
 import bank.Account;
 import bank.Bank;
 import bank.RejectedException;
+import bank.ShardedBank;
 import market.Item;
+import market.ItemPage;
 import market.Market;
+import market.MarketFeedListener;
+import market.MarketNioClient;
+import market.MarketReplica;
+import market.MarketUpdate;
+import market.ShardedMarket;
 
 import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.FileReader;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.io.PrintStream;
 import java.rmi.Naming;
 import java.rmi.RemoteException;
 import java.rmi.registry.LocateRegistry;
 import java.rmi.registry.Registry;
 import java.rmi.server.UnicastRemoteObject;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableSet;
 import java.util.StringTokenizer;
-
-public class Client extends UnicastRemoteObject implements Trader {
-    private static final String USAGE = "java market.Client <CLIENT_NAME> <REGISTRY_PORT_NUMBER>";
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static market.RejectedException.OVERLOADED;
+
+public class Client extends UnicastRemoteObject implements Trader, MarketFeedListener {
+    private static final String USAGE = "java [-Dclient.script=<FILE|-> [-Dclient.window=<N>]] market.Client"
+            + " <CLIENT_NAME> <REGISTRY_PORT_NUMBER>";
     private static final String DEFAULT_BANK = "Nordea";
     private static final String DEFAULT_MARKET = "Market";
     private static final int DEFAULT_REMOTE_REGISTRY_PORT_NUMBER = 1099;
@@ -26,6 +55,20 @@ public class Client extends UnicastRemoteObject implements Trader {
     private static final int APP_COMMAND = 1;
     private static final int BANK_COMMAND = 2;
     private static final int MARKET_COMMAND = 3;
+    private static final int LIST_PAGE_SIZE = 100;
+    // Keeps our lease on the market : heartbeats per lease given by the market at register
+    private static final int HEARTBEATS_PER_LEASE = 3;
+    // Sells, buys, wishes, deposits and withdraws sent again when their answer is lost (RemoteException) :
+    // same request id => not done twice. Lost answers come faster with a short RMI timeout
+    // (-Dsun.rmi.transport.tcp.responseTimeout=<ms>)
+    private static final int RETRIES = Integer.getInteger("client.retries", 2);
+    // Calls rejected as overloaded by the market (not done) sent again after a pause
+    private static final long OVERLOADED_BACKOFF_MILLIS = 20;
+    // Script mode : commands read from a file (- = standard input) instead of the console,
+    // up to WINDOW commands in flight at the same time (the market admits 16 calls of a trader
+    // at the same time by default : -Dmarket.admission.trader.inflight)
+    private static final String SCRIPT = System.getProperty("client.script");
+    private static final int WINDOW = Integer.getInteger("client.window", 16);
 
 
     private String clientName;
@@ -34,11 +77,22 @@ public class Client extends UnicastRemoteObject implements Trader {
     private String bankName;
     Bank bankobj;
     Account account;
+    private final ScheduledExecutorService heartbeats = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "heartbeat");
+        t.setDaemon(true);
+        return t;
+    });
+    private ScheduledFuture<?> heartbeat;
+    private PrintStream out = System.out; // Callbacks and results of the commands
+    // Items on the market, kept up to date by the market feed while registered
+    private final MarketReplica cache = new MarketReplica();
+    private volatile boolean subscribed = false;
+    private volatile long syncedMillis = 0; // Last snapshot or update received
 
     // Enumeration of possible commands
     enum CommandName {
         register(MARKET_COMMAND), unregister(MARKET_COMMAND), sell(MARKET_COMMAND), buy(MARKET_COMMAND),
-        wish(MARKET_COMMAND), list(MARKET_COMMAND), newAccount(BANK_COMMAND), deleteAccount(BANK_COMMAND),
+        wish(MARKET_COMMAND), list(MARKET_COMMAND), refresh(MARKET_COMMAND), newAccount(BANK_COMMAND), deleteAccount(BANK_COMMAND),
         deposit(BANK_COMMAND), withdraw(BANK_COMMAND), balance(BANK_COMMAND), quit(APP_COMMAND), help(APP_COMMAND);
 
         private int type;
@@ -80,15 +134,23 @@ public class Client extends UnicastRemoteObject implements Trader {
             } catch (RemoteException e) {
                 remoteRegistry = LocateRegistry.createRegistry(DEFAULT_REMOTE_REGISTRY_PORT_NUMBER);
             }
-            bankobj = (Bank) remoteRegistry.lookup(bankName);
-            market = (Market) remoteRegistry.lookup(marketName);
+            // The bank, or all its shards
+            bankobj = ShardedBank.lookup(remoteRegistry, bankName);
+            // The market through its binary protocol (-Dmarket.nio=<host:port>), or through RMI : the market
+            // or all its shards
+            String nioAddress = System.getProperty("market.nio");
+            if (nioAddress != null)
+                market = MarketNioClient.connect(nioAddress);
+            else
+                market = ShardedMarket.lookup(remoteRegistry, marketName);
 
         } catch (Exception e) {
             System.err.println("The runtime failed: " + e.getMessage());
             System.exit(1);
         }
         System.out.println("Connected to bank: " + this.bankName);
-        System.out.println("Connected to market: " + this.marketName);
+        System.out.println("Connected to market: " + this.marketName + ((market instanceof ShardedMarket)
+                ? " (" + ((ShardedMarket) market).getShardCount() + " shards)" : ""));
 
         // New bank account
         try {
@@ -102,7 +164,55 @@ public class Client extends UnicastRemoteObject implements Trader {
     @Override
     public void callback(String message) throws RemoteException {
         // Just display the callback message
-        System.out.println("[CALLBACK] " + message);
+        out.println("[CALLBACK] " + message);
+    }
+
+    @Override
+    public void marketUpdated(MarketUpdate update) throws RemoteException {
+        if (cache.apply(update)) {
+            syncedMillis = System.currentTimeMillis();
+            return;
+        }
+        // Updates lost => new snapshot (not in the thread of the market)
+        cache.invalidate();
+        heartbeats.execute(() -> {
+            try {
+                refreshCache();
+            } catch (RemoteException | market.RejectedException e) {
+                System.err.println("[CACHE] " + e.getMessage());
+            }
+        });
+    }
+
+    /**
+     * Subscribes (again) to the market feed and seeds the cache with a new snapshot
+     */
+    private void refreshCache() throws RemoteException, market.RejectedException {
+        cache.invalidate();
+        cache.apply(market.subscribe(this));
+        subscribed = true;
+        syncedMillis = System.currentTimeMillis();
+    }
+
+    private void dropCache() {
+        subscribed = false;
+        cache.clear();
+    }
+
+    /**
+     * @return state of the cache, e.g. "12 items, update #42, synced 3 s ago"
+     */
+    private String cacheStatus() {
+        long age = (System.currentTimeMillis() - syncedMillis) / 1000;
+        return "[CACHE] " + cache.getItems().size() + " items, update #" + cache.getSeq() + ", synced " + age
+                + " s ago" + (cache.isValid() ? "" : " (STALE : resync pending, use refresh)");
+    }
+
+    /**
+     * @param out where the callbacks and the results of the commands are displayed
+     */
+    void setOutput(PrintStream out) {
+        this.out = out;
     }
 
 
@@ -124,6 +234,31 @@ public class Client extends UnicastRemoteObject implements Trader {
     }
 
 
+    private synchronized void startHeartbeat(long leaseMillis) {
+        stopHeartbeat();
+        long period = Math.max(leaseMillis / HEARTBEATS_PER_LEASE, 1);
+        heartbeat = heartbeats.scheduleAtFixedRate(() -> {
+            try {
+                market.heartbeat(this);
+            } catch (market.RejectedException e) {
+                // No longer registered (lease expired)
+                System.err.println("[HEARTBEAT] " + e.getMessage());
+                stopHeartbeat();
+                dropCache();
+            } catch (RemoteException e) {
+                System.err.println("[HEARTBEAT] " + e.getMessage());
+            }
+        }, period, period, TimeUnit.MILLISECONDS);
+    }
+
+    private synchronized void stopHeartbeat() {
+        if (heartbeat != null) {
+            heartbeat.cancel(false);
+            heartbeat = null;
+        }
+    }
+
+
     // Console application
     public void run() {
         BufferedReader consoleIn = new BufferedReader(new InputStreamReader(System.in));
@@ -143,7 +278,117 @@ public class Client extends UnicastRemoteObject implements Trader {
         }
     }
 
-    private Command parse(String userInput) {
+    /**
+     * Script mode : runs the commands of a script (one per line, as in the console, # = comment)
+     * without waiting for the answer of each one, up to window commands in flight.
+     * The sells, buys and wishes of the same item run in the order of the script (a sell before
+     * the buy of the same item) ; the other commands (register, deposit, list...) wait for all
+     * the previous ones, and the next ones wait for them (a deposit before the buys).
+     * The results and errors are displayed in the order of the script, then the elapsed time.
+     * @param script where the commands are read, until its end or quit
+     * @param window max number of commands in flight
+     * @throws IOException if the script cannot be read
+     */
+    public void runScript(BufferedReader script, int window) throws IOException, InterruptedException {
+        if (window < 1)
+            throw new IllegalArgumentException("Illegal window : " + window);
+        ExecutorService pool = Executors.newFixedThreadPool(window, r -> {
+            Thread t = new Thread(r, "script");
+            t.setDaemon(true);
+            return t;
+        });
+        Semaphore inFlight = new Semaphore(window);
+        AtomicInteger rejected = new AtomicInteger();
+        AtomicInteger failed = new AtomicInteger();
+        // Reports of the commands, in the order of the script, not displayed yet
+        Deque<CompletableFuture<String>> reports = new ArrayDeque<>();
+        // Last command of each item, commands since the last barrier (command without item)
+        Map<String, CompletableFuture<String>> last = new HashMap<>();
+        List<CompletableFuture<String>> sinceBarrier = new ArrayList<>();
+        CompletableFuture<String> barrier = CompletableFuture.completedFuture(null);
+
+        long start = System.nanoTime();
+        int count = 0;
+        int lineNo = 0;
+        String line;
+        while ((line = script.readLine()) != null) {
+            lineNo++;
+            line = line.trim();
+            if (line.isEmpty() || line.startsWith("#"))
+                continue;
+            Command command = parse(line);
+            if (command != null && command.getCommandName() == CommandName.quit)
+                break;
+            count++;
+            if (command == null) {
+                failed.incrementAndGet();
+                reports.add(CompletableFuture.completedFuture("#" + lineNo + " " + line + " : illegal command\n"));
+                continue;
+            }
+
+            // After the commands it depends on (their reports never fail)
+            String key = command.getOrderingKey();
+            List<CompletableFuture<String>> after = new ArrayList<>();
+            after.add(barrier);
+            if (key == null)
+                after.addAll(sinceBarrier);
+            else if (last.containsKey(key))
+                after.add(last.get(key));
+            inFlight.acquire();
+            String reportLine = "#" + lineNo + " " + line;
+            CompletableFuture<String> report = CompletableFuture.allOf(after.toArray(new CompletableFuture<?>[0]))
+                    .thenApplyAsync(v -> report(reportLine, command, rejected, failed), pool);
+            report.whenComplete((r, e) -> inFlight.release());
+            reports.add(report);
+
+            if (key == null) {
+                barrier = report;
+                sinceBarrier.clear();
+                last.clear();
+            } else {
+                last.put(key, report);
+                sinceBarrier.removeIf(CompletableFuture::isDone);
+                sinceBarrier.add(report);
+                // Items done : forgotten
+                if (last.size() > 2 * window)
+                    last.values().removeIf(CompletableFuture::isDone);
+            }
+
+            // Reports ready, in order
+            while (!reports.isEmpty() && reports.peek().isDone())
+                out.print(reports.poll().join());
+        }
+        while (!reports.isEmpty())
+            out.print(reports.poll().join());
+        pool.shutdown();
+
+        double millis = (System.nanoTime() - start) / 1e6;
+        out.printf("%d commands in %.1f ms (%.0f/s) : %d rejected, %d failed%n", count, millis,
+                count / (millis / 1000), rejected.get(), failed.get());
+    }
+
+    /**
+     * Runs a command of a script
+     * @return what it displayed, after its line and its outcome
+     */
+    private String report(String line, Command command, AtomicInteger rejected, AtomicInteger failed) {
+        ByteArrayOutputStream displayed = new ByteArrayOutputStream();
+        command.out = new PrintStream(displayed, true);
+        String outcome;
+        try {
+            command.execute();
+            outcome = "ok";
+        } catch (market.RejectedException | bank.RejectedException e) {
+            rejected.incrementAndGet();
+            outcome = "rejected : " + e.getMessage();
+        } catch (RemoteException | RuntimeException e) {
+            failed.incrementAndGet();
+            outcome = "failed : " + e.getMessage();
+        }
+        return line + " : " + outcome + "\n" + displayed;
+    }
+
+    Command parse(String userInput) {
         if (userInput == null) {
             return null;
         }
@@ -237,8 +482,43 @@ public class Client extends UnicastRemoteObject implements Trader {
     }
 
 
-    private class Command {
+    // Idempotent call : done once per request id
+    private interface Idempotent {
+        void run(String requestId) throws RemoteException, bank.RejectedException, market.RejectedException;
+    }
+
+    /**
+     * Makes an idempotent call, sent again with the same request id while its answer is lost,
+     * or while the market is overloaded
+     * @throws RemoteException if the answer is still lost after RETRIES retries
+     */
+    static void once(Idempotent call) throws RemoteException, bank.RejectedException, market.RejectedException {
+        String requestId = UUID.randomUUID().toString();
+        for (int attempt = 0; ; attempt++) {
+            try {
+                call.run(requestId);
+                return;
+            } catch (RemoteException e) {
+                if (attempt == RETRIES)
+                    throw e;
+            } catch (market.RejectedException e) {
+                if (attempt == RETRIES || !OVERLOADED.equals(e.getReason()))
+                    throw e;
+                // Not done : again a little later
+                try {
+                    Thread.sleep(OVERLOADED_BACKOFF_MILLIS << attempt);
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                    throw e;
+                }
+            }
+        }
+    }
+
+    class Command {
         protected CommandName commandName;
+        // Where the command displays its results : the console, or its report in a script
+        protected PrintStream out = Client.this.out;
 
         private Command(Client.CommandName commandName) {
             this.commandName = commandName;
@@ -248,13 +528,22 @@ public class Client extends UnicastRemoteObject implements Trader {
             return commandName;
         }
 
+        /**
+         * In a script, the commands with the same key run in the order of the script
+         * @return what the command depends on, null if it must wait for all the previous commands
+         * (and the next ones for it)
+         */
+        protected String getOrderingKey() {
+            return null;
+        }
+
         public void execute() throws RemoteException, bank.RejectedException, market.RejectedException {
             switch (this.getCommandName()) {
                 case quit:
                     System.exit(0);
                 case help:
                     for (CommandName commandName : CommandName.values()) {
-                        System.out.println(commandName);
+                        out.println(commandName);
                     }
                     return;
                 default:
@@ -263,7 +552,7 @@ public class Client extends UnicastRemoteObject implements Trader {
         }
     }
 
-    private class CommandMarket extends Command {
+    class CommandMarket extends Command {
         private Item item;
         private Trader trader;
 
@@ -277,34 +566,89 @@ public class Client extends UnicastRemoteObject implements Trader {
             this.trader = trader;
         }
 
+        @Override
+        protected String getOrderingKey() {
+            switch (this.getCommandName()) {
+                case sell:
+                case buy:
+                case wish:
+                    return this.item.getName();
+                default:
+                    return null; // register, list... : after all the previous commands
+            }
+        }
+
         @Override
         public void execute() throws RemoteException, bank.RejectedException, market.RejectedException {
             switch (this.getCommandName()) {
                 case register:
-                    market.register(clientName);
+                    startHeartbeat(market.register(clientName, this.trader));
+                    refreshCache();
                     return;
                 case unregister:
+                    stopHeartbeat();
+                    dropCache();
                     market.unregister(clientName);
                     return;
+                case refresh:
+                    refreshCache();
+                    out.println(cacheStatus());
+                    return;
                 case buy:
-                    market.buy(this.item, this.trader);
+                    once(requestId -> market.buy(this.item, this.trader, requestId));
                     return;
                 case sell:
-                    market.sell(this.item, this.trader);
+                    once(requestId -> market.sell(this.item, this.trader, requestId));
                     return;
                 case wish:
-                    market.wish(this.item, this.trader);
+                    once(requestId -> market.wish(this.item, this.trader, requestId));
                     return;
                 case list:
-                    System.out.println(market.getAllItems());
+                    if (subscribed) {
+                        listCached(this.item.getName(), this.item.getPrice());
+                        return;
+                    }
+                    // Not registered => ask the market
+                    if (this.item.getName() == null) {
+                        out.println(market.getAllItems());
+                        return;
+                    }
+                    // list <name prefix> [<max price>] => only the matching items, page by page
+                    float maxPrice = (this.item.getPrice() > 0) ? this.item.getPrice() : Float.MAX_VALUE;
+                    ItemPage page = null;
+                    do {
+                        page = market.getItems(this.item.getName(), 0, maxPrice,
+                                (page == null) ? null : page.getCursor(), LIST_PAGE_SIZE);
+                        for (Item i : page.getItems())
+                            out.println(i);
+                    } while (page.hasNext());
                     return;
                 default:
                     System.err.println("Illegal market command to be executed");
             }
         }
+
+        /**
+         * Lists the items of the cache, without calling the market
+         * @param namePrefix null = all the items
+         * @param maxPrice 0 = no limit
+         */
+        private void listCached(String namePrefix, float maxPrice) {
+            NavigableSet<Item> items = cache.getItems();
+            if (namePrefix != null)
+                items = items.tailSet(new Item(namePrefix, -Float.MAX_VALUE), true);
+            float max = (maxPrice > 0) ? maxPrice : Float.MAX_VALUE;
+            for (Item i : items) {
+                if (namePrefix != null && !i.getName().startsWith(namePrefix))
+                    break; // Sorted by name => no more matching name
+                if (i.getPrice() <= max)
+                    out.println(i);
+            }
+            out.println(cacheStatus());
+        }
     }
 
-    private class CommandBank extends Command {
+    class CommandBank extends Command {
         private String userName;
         private float amount;
 
@@ -338,13 +682,13 @@ public class Client extends UnicastRemoteObject implements Trader {
             // all further commands require a Account reference
             switch (this.getCommandName()) {
                 case deposit:
-                    account.deposit(this.getAmount());
+                    once(requestId -> account.deposit(this.getAmount(), requestId));
                     break;
                 case withdraw:
-                    account.withdraw(this.getAmount());
+                    once(requestId -> account.withdraw(this.getAmount(), requestId));
                     break;
                 case balance:
-                    System.out.println("balance: $" + account.getBalance());
+                    out.println("balance: $" + account.getBalance());
                     break;
                 default:
                     System.err.println("Illegal bank command to be executed");
@@ -385,6 +729,13 @@ public class Client extends UnicastRemoteObject implements Trader {
             Client client = new Client(clientName);
             Naming.rebind(clientName, client);
 
+            if (SCRIPT != null) {
+                try (BufferedReader script = new BufferedReader(SCRIPT.equals("-")
+                        ? new InputStreamReader(System.in) : new FileReader(SCRIPT))) {
+                    client.runScript(script, WINDOW);
+                }
+                System.exit(0);
+            }
             client.run();
         } catch (Exception e) {
             System.err.println("The runtime failed: " + e.getMessage());
@@ -0,0 +1,290 @@
+package client;
+
+
+import metrics.LatencyHistogram;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.rmi.RemoteException;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Random;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Headless load generator : simulates traders in one JVM.
+ * Each trader is a {@link Client} sending command lines through {@link Client#parse(String)},
+ * picked at random from a weighted mix, all the traders together running at a target rate.
+ * At the end, prints the throughput and the latency percentiles of each command.
+ *
+ * Latencies are measured from the time a command was due, not from the time it was sent :
+ * when the market falls behind the target rate, the waiting shows in the percentiles.
+ *
+ * Needs a running BankServer and MarketServer (registry on port 1099).
+ */
+public class LoadGenerator {
+    static final String DEFAULT_MIX = "sell=30,buy=20,wish=10,list=10,deposit=15,withdraw=14,register=1";
+    private static final String USAGE = "java client.LoadGenerator <TRADERS> <RATE (commands/s)> <DURATION (s)> [<MIX>]\n"
+            + "  MIX : <command>=<weight>,... with commands among register, sell, buy, wish, list, deposit, withdraw\n"
+            + "  (default : " + DEFAULT_MIX + ")";
+    private static final int ITEM_NAMES = 1000;
+    private static final int MAX_PRICE = 1000;
+    private static final float INITIAL_DEPOSIT = 1_000_000;
+    // Items sold during the run, bought later by any trader
+    private static final int MAX_FOR_SALE = 100_000;
+
+    private final int traders;
+    private final double rate;
+    private final long durationNanos;
+    private final Client.CommandName[] mix; // One entry per unit of weight
+    private final Map<Client.CommandName, Stats> stats = new EnumMap<>(Client.CommandName.class);
+    private final Queue<String> forSale = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger forSaleCount = new AtomicInteger();
+
+    /**
+     * Latencies and outcomes of a command
+     */
+    private static class Stats {
+        final LatencyHistogram latencies = new LatencyHistogram();
+        final AtomicLong rejected = new AtomicLong();
+        final AtomicLong failed = new AtomicLong();
+    }
+
+    /**
+     * @param traders number of simulated traders
+     * @param rate commands per second, all traders together
+     * @param durationSeconds
+     * @param mix weight of each command
+     */
+    LoadGenerator(int traders, double rate, int durationSeconds, Map<Client.CommandName, Integer> mix) {
+        if (traders < 1 || rate <= 0 || durationSeconds < 1)
+            throw new IllegalArgumentException("Traders, rate and duration must be positive");
+        this.traders = traders;
+        this.rate = rate;
+        this.durationNanos = TimeUnit.SECONDS.toNanos(durationSeconds);
+        List<Client.CommandName> weighted = new ArrayList<>();
+        for (Map.Entry<Client.CommandName, Integer> entry : mix.entrySet()) {
+            for (int i = 0; i < entry.getValue(); i++)
+                weighted.add(entry.getKey());
+        }
+        if (weighted.isEmpty())
+            throw new IllegalArgumentException("Empty command mix");
+        this.mix = weighted.toArray(new Client.CommandName[0]);
+        for (Client.CommandName name : Client.CommandName.values())
+            stats.put(name, new Stats());
+    }
+
+    /**
+     * Parses a mix like "sell=30,buy=20"
+     * @throws IllegalArgumentException for an unknown command, a command which cannot be generated or a bad weight
+     */
+    static Map<Client.CommandName, Integer> parseMix(String mix) {
+        Map<Client.CommandName, Integer> weights = new EnumMap<>(Client.CommandName.class);
+        for (String part : mix.split(",")) {
+            String[] entry = part.trim().split("=");
+            if (entry.length != 2)
+                throw new IllegalArgumentException("Illegal mix entry : " + part);
+            Client.CommandName name = Client.CommandName.valueOf(entry[0].trim());
+            switch (name) {
+                case register:
+                case sell:
+                case buy:
+                case wish:
+                case list:
+                case deposit:
+                case withdraw:
+                    break;
+                default:
+                    throw new IllegalArgumentException("Command not supported in a mix : " + name);
+            }
+            int weight = Integer.parseInt(entry[1].trim());
+            if (weight < 0)
+                throw new IllegalArgumentException("Negative weight : " + part);
+            weights.put(name, weight);
+        }
+        return weights;
+    }
+
+    /**
+     * Creates the traders (with an account and some money), runs the mix and prints the report
+     */
+    public void run() throws Exception {
+        PrintStream quiet = new PrintStream(OutputStream.nullOutputStream());
+        String prefix = "load-" + Long.toString(System.currentTimeMillis(), 36) + "-";
+        List<Client> clients = new ArrayList<>(traders);
+        for (int i = 0; i < traders; i++) {
+            Client client = new Client(prefix + i);
+            client.setOutput(quiet);
+            client.parse("deposit " + INITIAL_DEPOSIT).execute();
+            execute(client, "register", Client.CommandName.register, System.nanoTime());
+            clients.add(client);
+        }
+        System.out.println(traders + " traders registered, running " + rate + " commands/s for "
+                + TimeUnit.NANOSECONDS.toSeconds(durationNanos) + " s");
+
+        // Each trader sends a command every period, the traders being spread over the period
+        long period = (long) (traders * 1e9 / rate);
+        long start = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(100);
+        long end = start + durationNanos;
+        CountDownLatch done = new CountDownLatch(traders);
+        for (int i = 0; i < traders; i++) {
+            Client client = clients.get(i);
+            long first = start + period * i / traders;
+            Thread thread = new Thread(() -> {
+                try {
+                    runTrader(client, first, period, end);
+                } finally {
+                    done.countDown();
+                }
+            }, "trader-" + i);
+            thread.setDaemon(true);
+            thread.start();
+        }
+        done.await();
+        long elapsed = System.nanoTime() - start;
+
+        report(elapsed);
+        for (Client client : clients) {
+            try {
+                client.parse("unregister").execute();
+                client.parse("deleteAccount").execute();
+            } catch (market.RejectedException | bank.RejectedException | RemoteException e) {
+                // Lease expired, already gone
+            }
+        }
+    }
+
+    private void runTrader(Client client, long due, long period, long end) {
+        Random random = ThreadLocalRandom.current();
+        while (due < end) {
+            long now;
+            while ((now = System.nanoTime()) < due)
+                LockSupport.parkNanos(due - now);
+
+            Client.CommandName name = mix[random.nextInt(mix.length)];
+            switch (name) {
+                case register:
+                    // Leave and come back : both are measured
+                    execute(client, "unregister", Client.CommandName.unregister, due);
+                    execute(client, "register", Client.CommandName.register, System.nanoTime());
+                    break;
+                case buy:
+                    String item = forSale.poll();
+                    if (item != null) {
+                        forSaleCount.decrementAndGet();
+                        execute(client, "buy " + item, name, due);
+                    } else {
+                        sell(client, random, due); // Nothing to buy yet => sell
+                    }
+                    break;
+                case sell:
+                    sell(client, random, due);
+                    break;
+                case wish:
+                    execute(client, "wish item" + random.nextInt(ITEM_NAMES) + " " + (1 + random.nextInt(MAX_PRICE)),
+                            name, due);
+                    break;
+                case list:
+                    // A prefix matching ITEM_NAMES / 100 names
+                    execute(client, "list item" + (10 + random.nextInt(90)), name, due);
+                    break;
+                case deposit:
+                case withdraw:
+                    execute(client, name + " 1", name, due);
+                    break;
+                default:
+                    break;
+            }
+            due += period;
+        }
+    }
+
+    // Sells a random item, then offers it to the buyers
+    private void sell(Client client, Random random, long due) {
+        String item = "item" + random.nextInt(ITEM_NAMES) + " " + (1 + random.nextInt(MAX_PRICE));
+        if (execute(client, "sell " + item, Client.CommandName.sell, due)
+                && forSaleCount.incrementAndGet() <= MAX_FOR_SALE)
+            forSale.add(item);
+    }
+
+    /**
+     * Runs a command line and records its latency
+     * @param due when the command should have started
+     * @return true if the command succeeded
+     */
+    private boolean execute(Client client, String line, Client.CommandName name, long due) {
+        Client.Command command = client.parse(line);
+        Stats s = stats.get(name);
+        try {
+            command.execute();
+            s.latencies.record(System.nanoTime() - due);
+            return true;
+        } catch (market.RejectedException | bank.RejectedException e) {
+            s.latencies.record(System.nanoTime() - due);
+            s.rejected.incrementAndGet();
+        } catch (RemoteException | RuntimeException e) {
+            s.failed.incrementAndGet();
+        }
+        return false;
+    }
+
+    private void report(long elapsedNanos) {
+        double seconds = elapsedNanos / 1e9;
+        long total = 0;
+        System.out.println(String.format("%-11s %9s %9s %7s %10s %10s %10s %10s %10s", "command", "count",
+                "rejected", "failed", "ops/s", "p50 (ms)", "p99 (ms)", "p99.9 (ms)", "max (ms)"));
+        for (Map.Entry<Client.CommandName, Stats> entry : stats.entrySet()) {
+            Stats s = entry.getValue();
+            LatencyHistogram h = s.latencies;
+            if (h.getCount() == 0 && s.failed.get() == 0)
+                continue;
+            total += h.getCount() + s.failed.get();
+            System.out.println(String.format("%-11s %9d %9d %7d %10.1f %10.3f %10.3f %10.3f %10.3f", entry.getKey(),
+                    h.getCount(), s.rejected.get(), s.failed.get(), h.getCount() / seconds, millis(h.getValueAt(50)),
+                    millis(h.getValueAt(99)), millis(h.getValueAt(99.9)), millis(h.getMax())));
+        }
+        System.out.println(String.format("total %d commands in %.1f s : %.1f commands/s", total, seconds,
+                total / seconds));
+    }
+
+    private static double millis(long nanos) {
+        return nanos / 1e6;
+    }
+
+
+    // MAIN
+    public static void main(String[] args) {
+        if (args.length < 3 || args.length > 4) {
+            System.out.println(USAGE);
+            System.exit(1);
+        }
+
+        LoadGenerator generator = null;
+        try {
+            generator = new LoadGenerator(Integer.parseInt(args[0]), Double.parseDouble(args[1]),
+                    Integer.parseInt(args[2]), parseMix((args.length == 4) ? args[3] : DEFAULT_MIX));
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.out.println(USAGE);
+            System.exit(1);
+        }
+
+        try {
+            generator.run();
+        } catch (Exception e) {
+            System.err.println("The load generator failed: " + e.getMessage());
+            e.printStackTrace();
+            System.exit(1);
+        }
+        System.exit(0); // The traders are exported RMI objects
+    }
+}
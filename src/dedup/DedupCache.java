@@ -0,0 +1,145 @@
+package dedup;
+
+import java.rmi.RemoteException;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Outcomes of the recent calls made with a request id chosen by the client (idempotency key).
+ * A call sent again with the same id (retry after a timeout, hedged request) is not run twice :
+ * it gets the outcome of the first call, waiting for it if it is still running.
+ *
+ * Only final outcomes are kept : success, or a rejection (checked exception). A transient failure
+ * (RemoteException : bank unreachable, journal failure... ; RuntimeException) is given to the
+ * duplicates already waiting only : the call runs again when sent again.
+ *
+ * Bounded and time-expiring : an outcome is kept ttl at most, and the oldest ones are dropped
+ * beyond capacity (never the ones of calls still running). Kept in memory only : a call sent
+ * again after a restart of the server, or after its outcome was dropped, runs again.
+ *
+ * Usage :
+ *     Exception failure = cache.run(id, () -> ...);
+ *     ... then rethrow failure if not null
+ */
+public class DedupCache {
+    private final int capacity;
+    private final long ttlNanos;
+    private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+    // Same entries, oldest first
+    private final Queue<Entry> order = new ConcurrentLinkedQueue<>();
+    private final LongAdder duplicates = new LongAdder();
+
+    private static final class Entry {
+        final String requestId;
+        final long time = System.nanoTime();
+        // null if the call succeeded, the exception it threw otherwise
+        final CompletableFuture<Exception> outcome = new CompletableFuture<>();
+
+        Entry(String requestId) {
+            this.requestId = requestId;
+        }
+    }
+
+    // Body of a call
+    public interface Action {
+        void run() throws Exception;
+    }
+
+    /**
+     * @param capacity max number of outcomes kept
+     * @param ttlMillis how long an outcome is kept
+     */
+    public DedupCache(int capacity, long ttlMillis) {
+        if (capacity < 1 || ttlMillis < 1)
+            throw new IllegalArgumentException("Illegal dedup cache : " + capacity + " entries, " + ttlMillis + " ms");
+        this.capacity = capacity;
+        this.ttlNanos = TimeUnit.MILLISECONDS.toNanos(ttlMillis);
+    }
+
+    /**
+     * Runs a call once for its request id
+     * @param requestId id of the call, unique for the client ; null = no dedup : always run
+     * @param action body of the call
+     * @return null if the call succeeded, the exception it threw otherwise (the first time it ran)
+     */
+    public Exception run(String requestId, Action action) {
+        if (requestId == null)
+            return runAction(action);
+
+        expire();
+        Entry entry = new Entry(requestId);
+        Entry first = entries.putIfAbsent(requestId, entry);
+        if (first != null) {
+            // Duplicate : same outcome
+            duplicates.increment();
+            return first.outcome.join();
+        }
+        order.add(entry);
+        try {
+            Exception failure = runAction(action);
+            if (!isFinal(failure))
+                entries.remove(requestId, entry); // Dropped from the order by expire()
+            entry.outcome.complete(failure);
+            return failure;
+        } catch (Error e) {
+            // Not an outcome : the call may run again
+            entries.remove(requestId, entry);
+            entry.outcome.completeExceptionally(e);
+            throw e;
+        }
+    }
+
+    private static Exception runAction(Action action) {
+        try {
+            action.run();
+            return null;
+        } catch (Exception e) {
+            return e;
+        }
+    }
+
+    /**
+     * @return true if the outcome is kept for the duplicates : success, or rejection
+     */
+    static boolean isFinal(Exception failure) {
+        return failure == null || !(failure instanceof RemoteException || failure instanceof RuntimeException);
+    }
+
+    // Drops the outcomes too old, or the oldest ones beyond capacity
+    private void expire() {
+        long now = System.nanoTime();
+        for (Iterator<Entry> it = order.iterator(); it.hasNext(); ) {
+            Entry entry = it.next();
+            if (entries.get(entry.requestId) != entry) {
+                it.remove(); // Transient failure, already dropped
+                continue;
+            }
+            if (!entry.outcome.isDone())
+                continue; // Still running : kept, the ones after it may go
+            if (now - entry.time <= ttlNanos && entries.size() <= capacity)
+                break; // The next ones are younger
+            it.remove();
+            entries.remove(entry.requestId, entry);
+        }
+    }
+
+    /**
+     * @return number of outcomes kept
+     */
+    public int size() {
+        return entries.size();
+    }
+
+    /**
+     * @return number of calls answered with the outcome of a previous one
+     */
+    public long getDuplicates() {
+        return duplicates.sum();
+    }
+}
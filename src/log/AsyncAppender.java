@@ -0,0 +1,112 @@
+package log;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Writes the log events on the console from a single background thread.
+ * Events are put in a bounded ring buffer : the threads logging never wait for
+ * the console, and never block. When the buffer is full, new events are dropped
+ * (and counted).
+ * Messages are formatted by the background thread, not by the threads logging.
+ */
+final class AsyncAppender {
+    private static final int DRAIN_MAX = 256;
+
+    private final BlockingQueue<Event> ring;
+    private final AtomicLong dropped = new AtomicLong();
+    private final Thread writer;
+
+    static final class Event {
+        final Level level;
+        final String logger;
+        final String pattern;
+        final Object[] args;
+
+        Event(Level level, String logger, String pattern, Object[] args) {
+            this.level = level;
+            this.logger = logger;
+            this.pattern = pattern;
+            this.args = args;
+        }
+    }
+
+    AsyncAppender(int capacity) {
+        this.ring = new ArrayBlockingQueue<>(capacity);
+        this.writer = new Thread(this::writeLoop, "log-writer");
+        this.writer.setDaemon(true);
+        this.writer.start();
+        // Do not lose the last events when the JVM exits (quit, System.exit...)
+        Runtime.getRuntime().addShutdownHook(new Thread(this::flush, "log-flush"));
+    }
+
+    void append(Event event) {
+        if (!ring.offer(event))
+            dropped.incrementAndGet();
+    }
+
+    long getDropped() {
+        return dropped.get();
+    }
+
+    private void writeLoop() {
+        List<Event> batch = new ArrayList<>(DRAIN_MAX);
+        while (true) {
+            try {
+                Event first = ring.poll(1, TimeUnit.SECONDS);
+                if (first == null)
+                    continue;
+                batch.add(first);
+                ring.drainTo(batch, DRAIN_MAX - 1);
+                write(batch);
+                batch.clear();
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    private synchronized void flush() {
+        List<Event> batch = new ArrayList<>();
+        ring.drainTo(batch);
+        write(batch);
+    }
+
+    private synchronized void write(List<Event> batch) {
+        long lost = dropped.getAndSet(0);
+        if (lost > 0)
+            System.err.println("[WARN] log: " + lost + " events dropped (buffer full)");
+        for (Event event : batch) {
+            PrintStream out = (event.level.compareTo(Level.WARN) >= 0) ? System.err : System.out;
+            String message = format(event.pattern, event.args);
+            // INFO = plain console output, like before
+            out.println((event.level == Level.INFO) ? message
+                    : "[" + event.level + "] " + event.logger + ": " + message);
+        }
+        System.out.flush();
+        System.err.flush();
+    }
+
+    /**
+     * Replaces each {} of the pattern by the next argument
+     */
+    static String format(String pattern, Object[] args) {
+        if (args == null || args.length == 0)
+            return pattern;
+        StringBuilder sb = new StringBuilder(pattern.length() + 16 * args.length);
+        int argNo = 0;
+        int from = 0;
+        int at;
+        while (argNo < args.length && (at = pattern.indexOf("{}", from)) >= 0) {
+            sb.append(pattern, from, at).append(args[argNo++]);
+            from = at + 2;
+        }
+        sb.append(pattern, from, pattern.length());
+        return sb.toString();
+    }
+}
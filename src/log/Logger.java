@@ -0,0 +1,60 @@
+package log;
+
+/**
+ * Leveled logger writing through a shared asynchronous appender.
+ * Messages use {} placeholders : nothing is built when the level is off,
+ * and the formatting happens on the appender thread.
+ *
+ * Level chosen with -Dlog.level=DEBUG|INFO|WARN|ERROR|OFF (INFO by default),
+ * buffer size with -Dlog.buffer (events).
+ */
+public final class Logger {
+    private static final Level LEVEL = Level.valueOf(System.getProperty("log.level", "INFO").toUpperCase());
+    private static final AsyncAppender APPENDER = new AsyncAppender(Integer.getInteger("log.buffer", 8192));
+
+    private final String name;
+
+    private Logger(String name) {
+        this.name = name;
+    }
+
+    public static Logger getLogger(Class<?> clazz) {
+        return new Logger(clazz.getSimpleName());
+    }
+
+    public boolean isEnabled(Level level) {
+        return level.compareTo(LEVEL) >= 0 && level != Level.OFF;
+    }
+
+    public boolean isDebugEnabled() {
+        return isEnabled(Level.DEBUG);
+    }
+
+    public void debug(String pattern, Object... args) {
+        log(Level.DEBUG, pattern, args);
+    }
+
+    public void info(String pattern, Object... args) {
+        log(Level.INFO, pattern, args);
+    }
+
+    public void warn(String pattern, Object... args) {
+        log(Level.WARN, pattern, args);
+    }
+
+    public void error(String pattern, Object... args) {
+        log(Level.ERROR, pattern, args);
+    }
+
+    public void log(Level level, String pattern, Object... args) {
+        if (isEnabled(level))
+            APPENDER.append(new AsyncAppender.Event(level, name, pattern, args));
+    }
+
+    /**
+     * @return number of events lost because the buffer was full, since the last write
+     */
+    public static long getDropped() {
+        return APPENDER.getDropped();
+    }
+}
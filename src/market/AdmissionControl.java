@@ -0,0 +1,229 @@
+package market;
+
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Admission of the market calls, before any work is done : bounds the number of calls
+ * running at the same time and their rate, for each trader and for the whole market.
+ *
+ * A trader over its own limits is rejected at once : a flooding trader only slows itself
+ * down, not the others. When the whole market is busy, a call waits a little for a free
+ * slot (bounded queue), then is rejected. A rejected call has done nothing :
+ * RejectedException.OVERLOADED, the trader may try again later.
+ * The rates are checked last : a call rejected for any other limit does not use up any rate.
+ */
+class AdmissionControl {
+    private final int traderMaxInFlight; // 0 = no limit
+    private final double traderRate; // Calls per second, 0 = no limit
+    private final int traderBurst;
+    private final Semaphore inFlight; // null = no limit
+    private final int maxInFlight;
+    private final RateLimiter rate; // null = no limit
+    private final int maxQueued;
+    private final long maxWaitNanos;
+    private final AtomicInteger queued = new AtomicInteger();
+    private final Map<TraderSession, TraderLimits> traders = new ConcurrentHashMap<>();
+
+    // Counters
+    private final LongAdder admitted = new LongAdder();
+    private final LongAdder rejectedTraderInFlight = new LongAdder();
+    private final LongAdder rejectedTraderRate = new LongAdder();
+    private final LongAdder rejectedInFlight = new LongAdder();
+    private final LongAdder rejectedRate = new LongAdder();
+
+    /**
+     * Limits : 0 = no limit
+     * @param traderMaxInFlight calls of a trader running at the same time
+     * @param traderRate calls per second of a trader...
+     * @param traderBurst ...after a quiet time
+     * @param maxInFlight calls running at the same time on the market
+     * @param rate calls per second on the market...
+     * @param burst ...after a quiet time
+     * @param maxQueued calls waiting for one of the maxInFlight slots (beyond : rejected)
+     * @param maxWaitMillis how long a call waits for a slot
+     */
+    AdmissionControl(int traderMaxInFlight, double traderRate, int traderBurst, int maxInFlight, double rate,
+                     int burst, int maxQueued, long maxWaitMillis) {
+        if (traderMaxInFlight < 0 || traderRate < 0 || traderBurst < 1 || maxInFlight < 0 || rate < 0 || burst < 1
+                || maxQueued < 0 || maxWaitMillis < 0)
+            throw new IllegalArgumentException("Illegal admission limits");
+        this.traderMaxInFlight = traderMaxInFlight;
+        this.traderRate = traderRate;
+        this.traderBurst = traderBurst;
+        this.maxInFlight = maxInFlight;
+        this.inFlight = (maxInFlight > 0) ? new Semaphore(maxInFlight) : null;
+        this.rate = (rate > 0) ? new RateLimiter(rate, burst) : null;
+        this.maxQueued = maxQueued;
+        this.maxWaitNanos = TimeUnit.MILLISECONDS.toNanos(maxWaitMillis);
+    }
+
+    /**
+     * A call allowed to run : to close when it is done
+     */
+    final class Permit implements AutoCloseable {
+        private final TraderLimits limits; // null = no trader
+
+        private Permit(TraderLimits limits) {
+            this.limits = limits;
+        }
+
+        @Override
+        public void close() {
+            if (limits != null)
+                limits.inFlight.decrementAndGet();
+            if (inFlight != null)
+                inFlight.release();
+        }
+    }
+
+    /**
+     * Limits of a trader : its calls running, its rate
+     */
+    private final class TraderLimits {
+        final AtomicInteger inFlight = new AtomicInteger();
+        final RateLimiter rate = (traderRate > 0) ? new RateLimiter(traderRate, traderBurst) : null;
+    }
+
+    /**
+     * Admits a call, or rejects it
+     * @param session the trader calling, null if the call is not made by a trader (listing)
+     * @return the permit of the call, to close when it is done
+     * @throws RejectedException OVERLOADED if the trader or the market is over its limits
+     */
+    Permit admit(TraderSession session) throws RejectedException {
+        TraderLimits limits = null;
+        if (session != null) {
+            limits = traders.computeIfAbsent(session, s -> new TraderLimits());
+            int running = limits.inFlight.incrementAndGet();
+            if (traderMaxInFlight > 0 && running > traderMaxInFlight) {
+                limits.inFlight.decrementAndGet();
+                rejectedTraderInFlight.increment();
+                throw new RejectedException(RejectedException.OVERLOADED, "Too many calls in progress for "
+                        + session.getName() + " : at most " + traderMaxInFlight + ", try again later.");
+            }
+        }
+
+        boolean slot = false;
+        try {
+            if (inFlight != null) {
+                if (!acquireSlot()) {
+                    rejectedInFlight.increment();
+                    throw new RejectedException(RejectedException.OVERLOADED, "Market overloaded, try again later.");
+                }
+                slot = true;
+            }
+            // Rates last : only used by the calls admitted
+            if (limits != null && limits.rate != null && !limits.rate.tryAcquire()) {
+                rejectedTraderRate.increment();
+                throw new RejectedException(RejectedException.OVERLOADED, "Too many calls for "
+                        + session.getName() + " : at most " + traderRate + " per second, try again later.");
+            }
+            if (rate != null && !rate.tryAcquire()) {
+                if (limits != null && limits.rate != null)
+                    limits.rate.refund();
+                rejectedRate.increment();
+                throw new RejectedException(RejectedException.OVERLOADED, "Market overloaded, try again later.");
+            }
+        } catch (RejectedException e) {
+            if (slot)
+                inFlight.release();
+            if (limits != null)
+                limits.inFlight.decrementAndGet();
+            throw e;
+        }
+        admitted.increment();
+        return new Permit(limits);
+    }
+
+    private boolean acquireSlot() {
+        if (inFlight.tryAcquire())
+            return true;
+        // Busy : a bounded number of calls wait a little
+        if (queued.incrementAndGet() > maxQueued) {
+            queued.decrementAndGet();
+            return false;
+        }
+        try {
+            return inFlight.tryAcquire(maxWaitNanos, TimeUnit.NANOSECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        } finally {
+            queued.decrementAndGet();
+        }
+    }
+
+    /**
+     * Forgets the limits of a trader leaving the market
+     */
+    void forget(TraderSession session) {
+        traders.remove(session);
+    }
+
+    int getInFlight() {
+        return (inFlight == null) ? 0 : maxInFlight - inFlight.availablePermits();
+    }
+
+    int getQueued() {
+        return queued.get();
+    }
+
+    long getAdmitted() {
+        return admitted.sum();
+    }
+
+    long getRejectedTraderInFlight() {
+        return rejectedTraderInFlight.sum();
+    }
+
+    long getRejectedTraderRate() {
+        return rejectedTraderRate.sum();
+    }
+
+    long getRejectedInFlight() {
+        return rejectedInFlight.sum();
+    }
+
+    long getRejectedRate() {
+        return rejectedRate.sum();
+    }
+
+    /**
+     * Rate limit without lock (generic cell rate algorithm) : each call pushes back the
+     * time the next call is due, a call may come in at most burst calls ahead of time
+     */
+    private static final class RateLimiter {
+        private final long interval; // nanoseconds between two calls
+        private final long tolerance;
+        private final AtomicLong due = new AtomicLong(System.nanoTime());
+
+        RateLimiter(double perSecond, int burst) {
+            this.interval = Math.max(1, (long) (1e9 / perSecond));
+            this.tolerance = interval * burst;
+        }
+
+        boolean tryAcquire() {
+            long now = System.nanoTime();
+            while (true) {
+                long current = due.get();
+                long next = Math.max(current - now, 0) + now + interval;
+                if (next - now > tolerance)
+                    return false;
+                if (due.compareAndSet(current, next))
+                    return true;
+            }
+        }
+
+        // Gives back a call acquired but not made
+        void refund() {
+            due.addAndGet(-interval);
+        }
+    }
+}
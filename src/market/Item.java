@@ -1,22 +1,76 @@
 package market;
 
 
+import java.io.Externalizable;
+import java.io.IOException;
+import java.io.InvalidObjectException;
+import java.io.ObjectInput;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutput;
 import java.io.Serializable;
 
 public class Item implements Serializable, Comparable<Item> {
 // Serialization = send by value
 // - convert object in bytes
 // - Reconstruct on the other side the object from the bytes
+// Sent as its serial form (Form, Externalizable) : no field descriptions, only the name and the price
+    private static final long serialVersionUID = 4052337012591838406L;
 
-
-    private final String name; // String = serializable by default
-    private final float price; // primitive type = serializable by default
+    private final String name;
+    private final float price;
 
     public Item(String name, float price) {
         this.name = name;
         this.price = price;
     }
 
+    // Serialization : the form is sent instead of the item, and read back as a new item => stays immutable
+
+    private Object writeReplace() {
+        return new Form(this);
+    }
+
+    private void readObject(ObjectInputStream in) throws InvalidObjectException {
+        throw new InvalidObjectException("Item is sent as Item.Form");
+    }
+
+    /**
+     * Serial form of an item
+     */
+    private static final class Form implements Externalizable {
+        private static final long serialVersionUID = 1L;
+
+        private String name;
+        private float price;
+
+        /**
+         * Only for deserialization
+         */
+        public Form() {
+        }
+
+        Form(Item item) {
+            this.name = item.name;
+            this.price = item.price;
+        }
+
+        @Override
+        public void writeExternal(ObjectOutput out) throws IOException {
+            out.writeUTF(name);
+            out.writeFloat(price);
+        }
+
+        @Override
+        public void readExternal(ObjectInput in) throws IOException {
+            name = in.readUTF();
+            price = in.readFloat();
+        }
+
+        private Object readResolve() {
+            return new Item(name, price);
+        }
+    }
+
     @Override
     public boolean equals(Object o) {
         if (this == o) return true;
@@ -0,0 +1,117 @@
+package market;
+
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.Externalizable;
+import java.io.IOException;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A page of items on the market (send by value), sorted by name then price.
+ * The cursor is given back to the market to get the next page.
+ * Items are sorted by name => each name is sent once, followed by the prices of its items.
+ */
+public class ItemPage implements Externalizable {
+    private static final long serialVersionUID = -2268532927714523905L;
+    // At least 4 bytes (a price) per item in a frame
+    static final int MAX_ITEMS = MarketProtocol.MAX_FRAME / 4;
+
+    // Not final : set by readExternal (never changed after)
+    private Item[] items;
+    private Item cursor; // null if this is the last page
+
+    /**
+     * Only for deserialization
+     */
+    public ItemPage() {
+    }
+
+    ItemPage(Item[] items, Item cursor) {
+        this.items = items;
+        this.cursor = cursor;
+    }
+
+    public Item[] getItems() {
+        return items;
+    }
+
+    /**
+     * @return where to resume to get the next page, null if there is no more item
+     */
+    public Item getCursor() {
+        return cursor;
+    }
+
+    public boolean hasNext() {
+        return cursor != null;
+    }
+
+    @Override
+    public void writeExternal(ObjectOutput out) throws IOException {
+        write(out);
+    }
+
+    @Override
+    public void readExternal(ObjectInput in) throws IOException {
+        read(in);
+    }
+
+    // Same encoding in the binary protocol (MarketProtocol)
+    void write(DataOutput out) throws IOException {
+        writeItems(out, items);
+        out.writeBoolean(cursor != null);
+        if (cursor != null) {
+            out.writeUTF(cursor.getName());
+            out.writeFloat(cursor.getPrice());
+        }
+    }
+
+    void read(DataInput in) throws IOException {
+        items = readItems(in);
+        cursor = in.readBoolean() ? new Item(in.readUTF(), in.readFloat()) : null;
+    }
+
+    /**
+     * Writes items sorted by name : each name once, followed by the prices of its items
+     */
+    static void writeItems(DataOutput out, Item[] items) throws IOException {
+        out.writeInt(items.length);
+        int from = 0;
+        while (from < items.length) {
+            // Run of items with the same name
+            String name = items[from].getName();
+            int to = from + 1;
+            while (to < items.length && items[to].getName().equals(name))
+                to++;
+            out.writeUTF(name);
+            out.writeInt(to - from);
+            for (int i = from; i < to; i++)
+                out.writeFloat(items[i].getPrice());
+            from = to;
+        }
+    }
+
+    /**
+     * @throws IOException if the items are not well formed (e.g. sent by a broken or hostile peer)
+     */
+    static Item[] readItems(DataInput in) throws IOException {
+        int length = in.readInt();
+        if (length < 0 || length > MAX_ITEMS)
+            throw new IOException("Illegal number of items : " + length);
+        // Grown as the items come : a wrong length does not allocate more than what is sent
+        List<Item> items = new ArrayList<>(Math.min(length, 1024));
+        while (items.size() < length) {
+            String name = in.readUTF();
+            int count = in.readInt();
+            if (count < 1 || count > length - items.size())
+                throw new IOException("Illegal run of " + count + " items " + name);
+            for (int i = 0; i < count; i++)
+                items.add(new Item(name, in.readFloat()));
+        }
+        return items.toArray(new Item[0]);
+    }
+}
@@ -0,0 +1,84 @@
+package market;
+
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.Externalizable;
+import java.io.IOException;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
+
+/**
+ * Outcome of a batch operation for one of its items (send by value)
+ */
+public class ItemResult implements Externalizable {
+    private static final long serialVersionUID = 6502318841397263716L;
+
+    // Not final : set by readExternal (never changed after)
+    private Item item;
+    private String rejection; // null if the operation has been done
+
+    /**
+     * Only for deserialization
+     */
+    public ItemResult() {
+    }
+
+    private ItemResult(Item item, String rejection) {
+        this.item = item;
+        this.rejection = rejection;
+    }
+
+    static ItemResult done(Item item) {
+        return new ItemResult(item, null);
+    }
+
+    static ItemResult rejected(Item item, String reason) {
+        return new ItemResult(item, reason);
+    }
+
+    public Item getItem() {
+        return item;
+    }
+
+    public boolean isDone() {
+        return rejection == null;
+    }
+
+    /**
+     * @return why the operation has been rejected for that item, null if it has been done
+     */
+    public String getRejection() {
+        return rejection;
+    }
+
+    @Override
+    public String toString() {
+        return item + (isDone() ? " : done" : " : " + rejection);
+    }
+
+    @Override
+    public void writeExternal(ObjectOutput out) throws IOException {
+        write(out);
+    }
+
+    @Override
+    public void readExternal(ObjectInput in) throws IOException {
+        read(in);
+    }
+
+    // Same encoding in the binary protocol (MarketProtocol)
+    void write(DataOutput out) throws IOException {
+        // The item inline : no object header for it
+        out.writeUTF(item.getName());
+        out.writeFloat(item.getPrice());
+        out.writeBoolean(rejection != null);
+        if (rejection != null)
+            out.writeUTF(rejection);
+    }
+
+    void read(DataInput in) throws IOException {
+        item = new Item(in.readUTF(), in.readFloat());
+        rejection = in.readBoolean() ? in.readUTF() : null;
+    }
+}
@@ -5,19 +5,72 @@ import client.Trader;
 
 import java.rmi.Remote;
 import java.rmi.RemoteException;
+import java.util.List;
 
 public interface Market extends Remote {
     // Specifies the methods that can be remotely called on the Market Object
 
-    void register(String trader) throws RemoteException, RejectedException;
+    // The trader object is kept by the market : it identifies the trader on the next calls.
+    // Returns the lease of the trader (ms) : it must call heartbeat well within it
+    long register(String traderName, Trader trader) throws RemoteException, RejectedException;
 
     void unregister(String trader) throws RemoteException, RejectedException;
 
+    // Renews the lease of the trader : a trader silent for too long is removed from the market,
+    // with its items and wishes
+    void heartbeat(Trader trader) throws RemoteException, RejectedException;
+
     void sell(Item item, Trader trader) throws RemoteException, RejectedException;
 
     void buy(Item item, Trader trader) throws RemoteException, RejectedException, bank.RejectedException;
 
+    // A wish is a limit order : it buys at once the cheapest item of that name at its price or less
+    // (bank.RejectedException if the trader cannot pay), otherwise it waits for a matching sell
     void wish(Item item, Trader trader) throws RemoteException, RejectedException, bank.RejectedException;
 
+    // Idempotent sell, buy and wish : requestId is chosen by the trader, unique for it (e.g. a UUID).
+    // A call sent again with the same requestId is not run twice : it gets the outcome of the first one,
+    // while the market remembers it (recent calls only) => safe to retry after a timeout
+    void sell(Item item, Trader trader, String requestId) throws RemoteException, RejectedException;
+
+    void buy(Item item, Trader trader, String requestId) throws RemoteException, RejectedException,
+            bank.RejectedException;
+
+    void wish(Item item, Trader trader, String requestId) throws RemoteException, RejectedException,
+            bank.RejectedException;
+
+    // Batch operations : one result per item, in the same order.
+    // A rejected item does not stop the batch (RejectedException only if the trader is not registered)
+    ItemResult[] sellAll(List<Item> items, Trader trader) throws RemoteException, RejectedException;
+
+    ItemResult[] buyAll(List<Item> items, Trader trader) throws RemoteException, RejectedException;
+
+    ItemResult[] wishAll(List<Item> items, Trader trader) throws RemoteException, RejectedException;
+
+    /**
+     * Subscribes a trader to the market feed : the changes of the items on the market are
+     * pushed to it (MarketFeedListener.marketUpdated), a numbered update every interval.
+     * Subscribing again gives a new snapshot (resync after a gap in the update numbers).
+     * @param trader registered trader, implementing MarketFeedListener
+     * @return all the items on the market, as of the update of the same number
+     * @throws RejectedException if the trader is not registered or cannot receive the feed
+     */
+    MarketUpdate subscribe(Trader trader) throws RemoteException, RejectedException;
+
+    // No more update for that trader (also when it leaves the market)
+    void unsubscribe(Trader trader) throws RemoteException, RejectedException;
+
+    // Text listing of all the items on the market (console)
     String getAllItems() throws RemoteException;
+
+    /**
+     * Items on the market, one page at a time, sorted by name then price
+     * @param namePrefix only the items whose name starts with it (null = all names)
+     * @param minPrice only the items at this price or more
+     * @param maxPrice only the items at this price or less (Float.MAX_VALUE = no limit)
+     * @param cursor cursor of the previous page, null for the first page
+     * @param pageSize max number of items in the page (bounded by the market)
+     */
+    ItemPage getItems(String namePrefix, float minPrice, float maxPrice, Item cursor, int pageSize)
+            throws RemoteException, RejectedException;
 }
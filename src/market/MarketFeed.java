@@ -0,0 +1,234 @@
+package market;
+
+
+import log.Logger;
+
+import java.rmi.RemoteException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Pushes the changes of the items on the market to the subscribed traders.
+ *
+ * The order book only marks the items it changes. Every interval, the feed compares
+ * the marked items with what it last published, and sends the difference as a single
+ * numbered update : the state of the book is read at that time, so changes told in
+ * any order by concurrent threads are still published right.
+ *
+ * Each subscriber gets its own bounded queue of updates. A subscriber too slow to keep
+ * up loses its queue : it sees a gap in the numbers, and subscribes again (resync).
+ */
+class MarketFeed implements OrderBook.Listener {
+    private static final Logger LOG = Logger.getLogger(MarketFeed.class);
+
+    private final OrderBook orderBook;
+    private final int shard;
+    private final int shards;
+    private final int capacity;
+    // Items changed since the last update
+    private final Set<Item> changed = ConcurrentHashMap.newKeySet();
+    // Items on the market as of the last update (guarded by this)
+    private final NavigableSet<Item> published = new TreeSet<>();
+    private long seq = 0; // Number of the last update (guarded by this)
+    private final Map<TraderSession, Subscriber> subscribers = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService flusher;
+    // Fixed number of threads, each sending to one subscriber at a time (at most one task per subscriber queued)
+    private final ExecutorService executor;
+
+    // Counters
+    private final AtomicLong delivered = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+
+    /**
+     * @param orderBook
+     * @param shard shard of the market, among shards (0 among 1 if not sharded)
+     * @param shards
+     * @param intervalMillis time between two updates
+     * @param capacity max number of updates waiting for a subscriber
+     * @param threads max number of subscribers sent to at the same time
+     */
+    MarketFeed(OrderBook orderBook, int shard, int shards, long intervalMillis, int capacity, int threads) {
+        if (intervalMillis < 1 || capacity < 1 || threads < 1)
+            throw new IllegalArgumentException("Interval, capacity and threads must be positive");
+        this.orderBook = orderBook;
+        this.shard = shard;
+        this.shards = shards;
+        this.capacity = capacity;
+        this.flusher = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "market-feed");
+            t.setDaemon(true);
+            return t;
+        });
+        AtomicInteger threadNo = new AtomicInteger();
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<>(), r -> {
+                    Thread t = new Thread(r, "market-feed-" + threadNo.incrementAndGet());
+                    t.setDaemon(true);
+                    return t;
+                });
+        pool.allowCoreThreadTimeOut(true);
+        this.executor = pool;
+        flusher.scheduleWithFixedDelay(this::flush, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    // Order book : only the items are published
+
+    @Override
+    public void itemAdded(Order order) {
+        changed.add(order.getItem());
+    }
+
+    @Override
+    public void itemRemoved(Order order) {
+        changed.add(order.getItem());
+    }
+
+    @Override
+    public void wishAdded(Order order) {
+    }
+
+    @Override
+    public void wishRemoved(Order order) {
+    }
+
+    /**
+     * Subscribes a trader (again : resync)
+     * @return all the items on the market, and the number of the last update they include
+     */
+    synchronized MarketUpdate subscribe(TraderSession session, MarketFeedListener listener) {
+        flush();
+        // Same lock as flush() => the next update sent to this subscriber is seq + 1
+        subscribers.put(session, new Subscriber(session.getName(), listener));
+        return MarketUpdate.snapshot(shard, shards, seq, published.toArray(new Item[0]));
+    }
+
+    void unsubscribe(TraderSession session) {
+        subscribers.remove(session);
+    }
+
+    /**
+     * Publishes the items changed since the last update, if any
+     */
+    synchronized void flush() {
+        try {
+            if (changed.isEmpty())
+                return;
+            List<Item> added = new ArrayList<>();
+            List<Item> removed = new ArrayList<>();
+            for (Iterator<Item> it = changed.iterator(); it.hasNext(); ) {
+                Item item = it.next();
+                // Unmarked before reading the book => a change made from now on marks it again
+                it.remove();
+                if (orderBook.containsItem(item)) {
+                    if (published.add(item))
+                        added.add(item);
+                } else if (published.remove(item)) {
+                    removed.add(item);
+                }
+            }
+            if (added.isEmpty() && removed.isEmpty())
+                return; // Added and removed again in the interval
+
+            Collections.sort(added);
+            Collections.sort(removed);
+            MarketUpdate update = MarketUpdate.delta(shard, ++seq, added.toArray(new Item[0]),
+                    removed.toArray(new Item[0]));
+            for (Subscriber subscriber : subscribers.values())
+                subscriber.offer(update);
+        } catch (RuntimeException e) {
+            // Keep the flusher alive
+            LOG.error("Market feed: update failed : {}", e);
+        }
+    }
+
+    int getSubscribers() {
+        return subscribers.size();
+    }
+
+    synchronized long getSeq() {
+        return seq;
+    }
+
+    long getDelivered() {
+        return delivered.get();
+    }
+
+    long getDropped() {
+        return dropped.get();
+    }
+
+    long getFailed() {
+        return failed.get();
+    }
+
+    /**
+     * Queue of the updates for one subscriber.
+     * At most one thread sends updates to a given subscriber at a time => in order.
+     */
+    private class Subscriber implements Runnable {
+        private final String name;
+        private final MarketFeedListener listener;
+        private final Deque<MarketUpdate> pending = new ArrayDeque<>(); // guarded by this
+        private boolean scheduled = false; // guarded by this
+
+        private Subscriber(String name, MarketFeedListener listener) {
+            this.name = name;
+            this.listener = listener;
+        }
+
+        private void offer(MarketUpdate update) {
+            boolean schedule;
+            synchronized (this) {
+                if (pending.size() >= capacity) {
+                    // Too far behind : a gap tells the subscriber to resync
+                    dropped.addAndGet(pending.size());
+                    pending.clear();
+                }
+                pending.addLast(update);
+                schedule = !scheduled;
+                scheduled = true;
+            }
+            if (schedule)
+                executor.execute(this);
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                MarketUpdate update;
+                synchronized (this) {
+                    update = pending.pollFirst();
+                    if (update == null) {
+                        scheduled = false;
+                        return;
+                    }
+                }
+                try {
+                    listener.marketUpdated(update);
+                    delivered.incrementAndGet();
+                } catch (RemoteException | RuntimeException e) {
+                    failed.incrementAndGet();
+                    LOG.warn("Market feed: update {} to {} failed : {}", update.getSeq(), name, e.getMessage());
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,16 @@
+package market;
+
+
+import java.rmi.Remote;
+import java.rmi.RemoteException;
+
+/**
+ * Implemented by the traders which subscribe to the market feed (Market.subscribe)
+ */
+public interface MarketFeedListener extends Remote {
+    /**
+     * Called with the updates in order, one at a time
+     * @param update changes since the previous update
+     */
+    void marketUpdated(MarketUpdate update) throws RemoteException;
+}
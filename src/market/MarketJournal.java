@@ -0,0 +1,507 @@
+package market;
+
+
+import log.Logger;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.zip.CRC32;
+
+/**
+ * Persistence of the items on sale and of the wishes : snapshot + journal.
+ *
+ * Changes of the order book are queued and written by a single writer thread,
+ * many changes per write and fsync. The market does not wait for them : after a
+ * crash, the last changes may be lost, but the market comes back fast.
+ * Every snapshotEvery changes, the writer saves the whole book in a new snapshot
+ * and starts a new journal.
+ *
+ * Both files use a compact binary format, read through memory mapping at startup :
+ * - snapshot : MAGIC, generation, string dictionary (item and trader names),
+ *   then items and wishes as (name id, price, trader id, sequence number)
+ * - journal-g : records [length][payload][crc32] written since the snapshot g
+ *
+ * Changes are identified by the sequence number of their order : a removal
+ * written before the addition of the same order (two threads) is still replayed right,
+ * also across a snapshot (the removals waiting for their addition are in it).
+ *
+ * A failed write is cut off the journal, and the whole book is saved again in a new
+ * snapshot (the changes of the failed write included). If that fails too, the journal
+ * stops : the next changes are no longer saved. Names are at most MAX_NAME_BYTES bytes
+ * (UTF-8) : checked by the market before any change.
+ */
+class MarketJournal implements OrderBook.Listener {
+    private static final Logger LOG = Logger.getLogger(MarketJournal.class);
+
+    private static final int MAGIC = 0x4d4b5432; // MKT2
+    private static final int MAGIC_V1 = 0x4d4b5431; // MKT1 : no removals waiting for their addition
+    static final int MAX_NAME_BYTES = 0xffff; // 2-byte lengths
+    private static final byte ADD_ITEM = 1;
+    private static final byte REMOVE_ITEM = 2;
+    private static final byte ADD_WISH = 3;
+    private static final byte REMOVE_WISH = 4;
+
+    private static final String SNAPSHOT = "snapshot";
+    private static final String JOURNAL_PREFIX = "journal-";
+
+    private final Path directory;
+    private final int snapshotEvery;
+    private final BlockingQueue<Change> queue = new LinkedBlockingQueue<>();
+
+    // Book as written in the journal (recovery, then writer thread only) => source of the snapshots
+    private final Map<Item, Entry> items = new HashMap<>();
+    private final Map<Item, Entry> wishes = new HashMap<>();
+    private final Set<Long> removedBeforeAdded = new HashSet<>();
+    private long generation = 0;
+    private int changesSinceSnapshot = 0;
+    private FileChannel journal;
+    private long journalLength; // Bytes written in the journal (writer thread only)
+    private volatile boolean stopped = false;
+
+    /**
+     * An order as saved : no Trader object, only the name of the trader
+     */
+    static final class Entry {
+        final long seq;
+        final String traderName;
+
+        Entry(long seq, String traderName) {
+            this.seq = seq;
+            this.traderName = traderName;
+        }
+    }
+
+    private static final class Change {
+        final byte type;
+        final Item item;
+        final long seq;
+        final String traderName; // Additions only
+
+        Change(byte type, Order order) {
+            this.type = type;
+            this.item = order.getItem();
+            this.seq = order.getSeq();
+            this.traderName = order.getTraderName();
+        }
+    }
+
+    MarketJournal(Path directory, int snapshotEvery) throws IOException {
+        this.directory = directory;
+        this.snapshotEvery = snapshotEvery;
+        Files.createDirectories(directory);
+    }
+
+    /**
+     * Loads the last snapshot and replays the journal written after it,
+     * then opens the journal for the new changes.
+     * Use {@link #getItems()} and {@link #getWishes()} to get the recovered book.
+     */
+    synchronized void recover() throws IOException {
+        Path snapshot = directory.resolve(SNAPSHOT);
+        if (Files.exists(snapshot)) {
+            try (FileChannel channel = FileChannel.open(snapshot, StandardOpenOption.READ)) {
+                MappedByteBuffer in = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+                int magic = in.getInt();
+                if (magic != MAGIC && magic != MAGIC_V1)
+                    throw new IOException("Not a market snapshot : " + snapshot);
+                generation = in.getLong();
+                String[] strings = new String[in.getInt()];
+                for (int i = 0; i < strings.length; i++)
+                    strings[i] = readString(in);
+                readEntries(in, strings, items);
+                readEntries(in, strings, wishes);
+                if (magic == MAGIC) {
+                    int count = in.getInt();
+                    for (int i = 0; i < count; i++)
+                        removedBeforeAdded.add(in.getLong());
+                }
+            }
+        }
+
+        long validLength = 0;
+        int replayed = 0;
+        Path tail = journalPath(generation);
+        if (Files.exists(tail)) {
+            try (FileChannel channel = FileChannel.open(tail, StandardOpenOption.READ)) {
+                MappedByteBuffer in = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+                CRC32 crc = new CRC32();
+                while (in.remaining() >= 4) {
+                    int length = in.getInt();
+                    if (length <= 0 || in.remaining() < length + 4)
+                        break; // Torn record
+                    ByteBuffer payload = in.slice();
+                    payload.limit(length);
+                    crc.reset();
+                    crc.update(payload.duplicate());
+                    in.position(in.position() + length);
+                    if (in.getInt() != (int) crc.getValue())
+                        break;
+                    applyRecord(payload);
+                    validLength = in.position();
+                    replayed++;
+                }
+            }
+        }
+        deleteOldJournals();
+
+        // Torn record at the end ? => cut, the new changes go after the last good one
+        journal = FileChannel.open(tail, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        journal.truncate(validLength);
+        journal.position(validLength);
+        journalLength = validLength;
+        changesSinceSnapshot = replayed;
+        LOG.info("Market journal: {} items and {} wishes recovered ({} changes replayed) from {}",
+                items.size(), wishes.size(), replayed, directory);
+    }
+
+    /**
+     * @return the items recovered (only valid between recover() and start())
+     */
+    Map<Item, Entry> getItems() {
+        return items;
+    }
+
+    /**
+     * @return the wishes recovered (only valid between recover() and start())
+     */
+    Map<Item, Entry> getWishes() {
+        return wishes;
+    }
+
+    /**
+     * Starts the writer thread (after {@link #recover()})
+     */
+    synchronized void start() {
+        Thread writer = new Thread(this::writeLoop, "market-journal");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    // OrderBook.Listener : queued, the market does not wait
+
+    @Override
+    public void itemAdded(Order order) {
+        queue(new Change(ADD_ITEM, order));
+    }
+
+    @Override
+    public void itemRemoved(Order order) {
+        queue(new Change(REMOVE_ITEM, order));
+    }
+
+    @Override
+    public void wishAdded(Order order) {
+        queue(new Change(ADD_WISH, order));
+    }
+
+    @Override
+    public void wishRemoved(Order order) {
+        queue(new Change(REMOVE_WISH, order));
+    }
+
+    private void queue(Change change) {
+        if (!stopped)
+            queue.add(change);
+    }
+
+    private void writeLoop() {
+        List<Change> batch = new ArrayList<>();
+        ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+        while (true) {
+            try {
+                batch.add(queue.take());
+            } catch (InterruptedException e) {
+                return;
+            }
+            queue.drainTo(batch);
+            if (stopped) {
+                batch.clear();
+                continue;
+            }
+            // Book as changed, saved or not (source of the next snapshot)
+            for (Change change : batch)
+                apply(change.type, change.seq, change.item, change.traderName);
+            long goodLength = journalLength;
+            try {
+                for (Change change : batch) {
+                    ByteBuffer record = encode(change);
+                    if (buffer.remaining() < record.remaining() + 8)
+                        buffer = flush(buffer, record.remaining() + 8);
+                    CRC32 crc = new CRC32();
+                    crc.update(record.duplicate());
+                    buffer.putInt(record.remaining());
+                    buffer.put(record);
+                    buffer.putInt((int) crc.getValue());
+                }
+                flush(buffer, 0);
+                journal.force(false); // One fsync for the whole batch
+            } catch (IOException e) {
+                buffer.clear();
+                resync(goodLength, e);
+                batch.clear();
+                continue;
+            }
+            changesSinceSnapshot += batch.size();
+            batch.clear();
+            if (changesSinceSnapshot >= snapshotEvery) {
+                long current = generation;
+                try {
+                    snapshot();
+                } catch (IOException e) {
+                    if (generation != current)
+                        stop(e); // New journal maybe not durable
+                    else
+                        LOG.warn("Market journal: snapshot failed, journal kept : {}", e);
+                    changesSinceSnapshot = 0; // Next try later
+                }
+            }
+        }
+    }
+
+    /**
+     * After a failed write : the torn end of the journal is cut off (nothing is ever written after
+     * a torn record, lost at recovery with all the records after it), then the whole book is saved
+     * in a new snapshot, the changes of the failed write included
+     * @param goodLength length of the journal before the failed write
+     */
+    private void resync(long goodLength, IOException failure) {
+        LOG.error("Market journal: write failed, saving the book again : {}", failure);
+        try {
+            try {
+                journal.truncate(goodLength);
+                journalLength = goodLength;
+            } catch (IOException e) {
+                // Not cut : replaced by the snapshot anyway
+                LOG.error("Market journal: failed write not cut off : {}", e);
+            }
+            snapshot();
+            LOG.warn("Market journal: book saved again in snapshot {}", generation);
+        } catch (IOException e) {
+            stop(e);
+        }
+    }
+
+    private void stop(IOException e) {
+        stopped = true;
+        queue.clear();
+        LOG.error("Market journal: stopped, the changes of the book are no longer saved (lost on restart) : {}", e);
+    }
+
+    /**
+     * Writes the buffer in the journal
+     * @return an empty buffer with room for at least needed bytes
+     */
+    private ByteBuffer flush(ByteBuffer buffer, int needed) throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining())
+            journalLength += journal.write(buffer);
+        buffer.clear();
+        return (buffer.capacity() >= needed) ? buffer : ByteBuffer.allocate(needed);
+    }
+
+    private static ByteBuffer encode(Change change) throws IOException {
+        byte[] name = nameBytes(change.item.getName());
+        byte[] trader = isAddition(change.type) ? nameBytes(change.traderName) : new byte[0];
+        ByteBuffer record = ByteBuffer.allocate(1 + 8 + 2 + name.length + 4 + 2 + trader.length);
+        record.put(change.type);
+        record.putLong(change.seq);
+        record.putShort((short) name.length).put(name);
+        record.putFloat(change.item.getPrice());
+        if (isAddition(change.type))
+            record.putShort((short) trader.length).put(trader);
+        record.flip();
+        return record;
+    }
+
+    /**
+     * @throws IOException if the name does not fit its 2-byte length (never : checked by the market)
+     */
+    private static byte[] nameBytes(String name) throws IOException {
+        byte[] bytes = name.getBytes(StandardCharsets.UTF_8);
+        if (bytes.length > MAX_NAME_BYTES)
+            throw new IOException("Name longer than " + MAX_NAME_BYTES + " bytes : " + name.substring(0, 32) + "...");
+        return bytes;
+    }
+
+    private static boolean isAddition(byte type) {
+        return type == ADD_ITEM || type == ADD_WISH;
+    }
+
+    private void applyRecord(ByteBuffer record) throws IOException {
+        byte type = record.get();
+        long seq = record.getLong();
+        Item item = new Item(readString(record), record.getFloat());
+        String traderName = isAddition(type) ? readString(record) : null;
+        if (type < ADD_ITEM || type > REMOVE_WISH)
+            throw new IOException("Unknown market journal record type : " + type);
+        apply(type, seq, item, traderName);
+    }
+
+    private void apply(byte type, long seq, Item item, String traderName) {
+        Map<Item, Entry> side = (type == ADD_ITEM || type == REMOVE_ITEM) ? items : wishes;
+        switch (type) {
+            case ADD_ITEM:
+            case ADD_WISH:
+                if (!removedBeforeAdded.remove(seq))
+                    side.put(item, new Entry(seq, traderName));
+                break;
+            case REMOVE_ITEM:
+            case REMOVE_WISH:
+                Entry entry = side.get(item);
+                if (entry != null && entry.seq == seq)
+                    side.remove(item);
+                else
+                    removedBeforeAdded.add(seq); // Its addition comes later in the journal
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown market journal record type : " + type);
+        }
+    }
+
+    /**
+     * Saves the whole book in a new snapshot and starts a new (empty) journal.
+     * Safe against crashes : the old journal is deleted only once the snapshot is in place,
+     * and durably so (fsync of the directory).
+     * @throws IOException if it failed : the old journal is still in use if the generation
+     * did not change, otherwise the new journal is in use but maybe not durable
+     */
+    private void snapshot() throws IOException {
+        long next = generation + 1;
+
+        // Dictionary : each item name and trader name written once
+        Map<String, Integer> ids = new HashMap<>();
+        List<String> strings = new ArrayList<>();
+        for (Map<Item, Entry> side : List.of(items, wishes)) {
+            for (Map.Entry<Item, Entry> order : side.entrySet()) {
+                ids.computeIfAbsent(order.getKey().getName(), s -> { strings.add(s); return strings.size() - 1; });
+                ids.computeIfAbsent(order.getValue().traderName, s -> { strings.add(s); return strings.size() - 1; });
+            }
+        }
+
+        Path tmp = directory.resolve(SNAPSHOT + ".tmp");
+        try (FileChannel channel = FileChannel.open(tmp, StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer out = ByteBuffer.allocate(64 * 1024);
+            out.putInt(MAGIC).putLong(next).putInt(strings.size());
+            for (String string : strings) {
+                byte[] bytes = nameBytes(string);
+                out = ensure(channel, out, 2 + bytes.length);
+                out.putShort((short) bytes.length).put(bytes);
+            }
+            for (Map<Item, Entry> side : List.of(items, wishes)) {
+                out = ensure(channel, out, 4);
+                out.putInt(side.size());
+                for (Map.Entry<Item, Entry> order : side.entrySet()) {
+                    out = ensure(channel, out, 20);
+                    out.putInt(ids.get(order.getKey().getName()));
+                    out.putFloat(order.getKey().getPrice());
+                    out.putInt(ids.get(order.getValue().traderName));
+                    out.putLong(order.getValue().seq);
+                }
+            }
+            out = ensure(channel, out, 4);
+            out.putInt(removedBeforeAdded.size());
+            for (long seq : removedBeforeAdded) {
+                out = ensure(channel, out, 8);
+                out.putLong(seq);
+            }
+            out.flip();
+            while (out.hasRemaining())
+                channel.write(out);
+            channel.force(true);
+        }
+
+        // New journal ready before the snapshot is in place (unused until then)
+        FileChannel nextJournal = FileChannel.open(journalPath(next), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        try {
+            Files.move(tmp, directory.resolve(SNAPSHOT), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            nextJournal.close();
+            throw e;
+        }
+
+        FileChannel old = journal;
+        journal = nextJournal;
+        journalLength = 0;
+        generation = next;
+        changesSinceSnapshot = 0;
+        old.close();
+        // Snapshot and new journal durable before the old journal goes
+        syncDirectory();
+        deleteOldJournals();
+        LOG.info("Market journal: snapshot {} ({} items, {} wishes)", next, items.size(), wishes.size());
+    }
+
+    /**
+     * Writes the buffer in the channel if there is not enough room left in it
+     */
+    private static ByteBuffer ensure(FileChannel channel, ByteBuffer out, int needed) throws IOException {
+        if (out.remaining() >= needed)
+            return out;
+        out.flip();
+        while (out.hasRemaining())
+            channel.write(out);
+        out.clear();
+        return (out.capacity() >= needed) ? out : ByteBuffer.allocate(needed);
+    }
+
+    private static void readEntries(ByteBuffer in, String[] strings, Map<Item, Entry> side) {
+        int count = in.getInt();
+        for (int i = 0; i < count; i++) {
+            Item item = new Item(strings[in.getInt()], in.getFloat());
+            String traderName = strings[in.getInt()];
+            side.put(item, new Entry(in.getLong(), traderName));
+        }
+    }
+
+    private static String readString(ByteBuffer in) {
+        byte[] bytes = new byte[in.getShort() & 0xffff];
+        in.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Makes the creations, renames and deletions of files in the directory durable
+     */
+    private void syncDirectory() throws IOException {
+        try (FileChannel channel = FileChannel.open(directory, StandardOpenOption.READ)) {
+            channel.force(true);
+        }
+    }
+
+    private Path journalPath(long generation) {
+        return directory.resolve(JOURNAL_PREFIX + generation);
+    }
+
+    private void deleteOldJournals() throws IOException {
+        try (DirectoryStream<Path> journals = Files.newDirectoryStream(directory, JOURNAL_PREFIX + "*")) {
+            for (Path path : journals) {
+                try {
+                    long g = Long.parseLong(path.getFileName().toString().substring(JOURNAL_PREFIX.length()));
+                    if (g < generation)
+                        Files.delete(path);
+                } catch (NumberFormatException e) {
+                    // Not one of ours
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,191 @@
+package market;
+
+import dedup.DedupCache;
+import metrics.Jmx;
+import metrics.OperationStats;
+
+/**
+ * Metrics of a market : calls of each Market operation, sizes, callbacks, admission and requests
+ * sent again
+ */
+class MarketMetrics implements MarketMetricsMXBean {
+    final OperationStats register = new OperationStats("register");
+    final OperationStats unregister = new OperationStats("unregister");
+    final OperationStats heartbeat = new OperationStats("heartbeat");
+    final OperationStats sell = new OperationStats("sell");
+    final OperationStats sellAll = new OperationStats("sellAll");
+    final OperationStats buy = new OperationStats("buy");
+    final OperationStats buyAll = new OperationStats("buyAll");
+    final OperationStats wish = new OperationStats("wish");
+    final OperationStats wishAll = new OperationStats("wishAll");
+    final OperationStats getAllItems = new OperationStats("getAllItems");
+    final OperationStats getItems = new OperationStats("getItems");
+    final OperationStats subscribe = new OperationStats("subscribe");
+    final OperationStats unsubscribe = new OperationStats("unsubscribe");
+
+    private final TraderRegistry traders;
+    private final OrderBook orderBook;
+    private final NotificationDispatcher notifier;
+    private final MarketFeed feed;
+    private final AdmissionControl admission;
+    private final DedupCache dedup;
+    private volatile MatchingEngine engine; // null if matching is off
+    private volatile PaymentsInDoubt payments; // null until connected to the bank
+
+    MarketMetrics(TraderRegistry traders, OrderBook orderBook, NotificationDispatcher notifier, MarketFeed feed,
+                  AdmissionControl admission, DedupCache dedup) {
+        this.traders = traders;
+        this.orderBook = orderBook;
+        this.notifier = notifier;
+        this.feed = feed;
+        this.admission = admission;
+        this.dedup = dedup;
+    }
+
+    void setEngine(MatchingEngine engine) {
+        this.engine = engine;
+    }
+
+    void setPayments(PaymentsInDoubt payments) {
+        this.payments = payments;
+    }
+
+    /**
+     * Makes the metrics visible in JMX
+     * @param shard shard of the market, null if the market is not sharded
+     */
+    void register(String shard) {
+        String suffix = (shard == null) ? "" : ",shard=" + shard;
+        Jmx.register("market:type=Market" + suffix, this);
+        Jmx.registerOperations("market:type=Operation" + suffix, register, unregister, heartbeat, sell, sellAll, buy,
+                buyAll, wish, wishAll, getAllItems, getItems, subscribe, unsubscribe);
+    }
+
+    @Override
+    public int getRegisteredTraders() {
+        return traders.size();
+    }
+
+    @Override
+    public long getItemsOnSale() {
+        return orderBook.getItemCount();
+    }
+
+    @Override
+    public long getWishes() {
+        return orderBook.getWishCount();
+    }
+
+    @Override
+    public int getItemNames() {
+        return orderBook.getNameCount();
+    }
+
+    @Override
+    public long getCallbacksQueued() {
+        return notifier.getQueued();
+    }
+
+    @Override
+    public long getCallbacksDelivered() {
+        return notifier.getDelivered();
+    }
+
+    @Override
+    public long getCallbacksDropped() {
+        return notifier.getDropped();
+    }
+
+    @Override
+    public long getCallbacksFailed() {
+        return notifier.getFailed();
+    }
+
+    @Override
+    public int getFeedSubscribers() {
+        return feed.getSubscribers();
+    }
+
+    @Override
+    public long getFeedSeq() {
+        return feed.getSeq();
+    }
+
+    @Override
+    public long getFeedUpdatesDelivered() {
+        return feed.getDelivered();
+    }
+
+    @Override
+    public long getFeedUpdatesDropped() {
+        return feed.getDropped();
+    }
+
+    @Override
+    public long getFeedUpdatesFailed() {
+        return feed.getFailed();
+    }
+
+    @Override
+    public long getMatches() {
+        MatchingEngine e = engine;
+        return (e == null) ? 0 : e.getMatches();
+    }
+
+    @Override
+    public long getSettlementsRejected() {
+        MatchingEngine e = engine;
+        return (e == null) ? 0 : e.getSettlementsRejected();
+    }
+
+    @Override
+    public int getPaymentsInDoubt() {
+        PaymentsInDoubt p = payments;
+        return (p == null) ? 0 : p.size();
+    }
+
+    @Override
+    public int getAdmissionInFlight() {
+        return admission.getInFlight();
+    }
+
+    @Override
+    public int getAdmissionQueued() {
+        return admission.getQueued();
+    }
+
+    @Override
+    public long getAdmitted() {
+        return admission.getAdmitted();
+    }
+
+    @Override
+    public long getRejectedTraderInFlight() {
+        return admission.getRejectedTraderInFlight();
+    }
+
+    @Override
+    public long getRejectedTraderRate() {
+        return admission.getRejectedTraderRate();
+    }
+
+    @Override
+    public long getRejectedInFlight() {
+        return admission.getRejectedInFlight();
+    }
+
+    @Override
+    public long getRejectedRate() {
+        return admission.getRejectedRate();
+    }
+
+    @Override
+    public int getRecentRequests() {
+        return dedup.size();
+    }
+
+    @Override
+    public long getDuplicateRequests() {
+        return dedup.getDuplicates();
+    }
+}
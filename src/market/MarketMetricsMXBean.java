@@ -0,0 +1,70 @@
+package market;
+
+/**
+ * JMX view of the state of the market (market:type=Market).
+ * The calls of each operation are in market:type=Operation,name=<operation>.
+ */
+public interface MarketMetricsMXBean {
+    int getRegisteredTraders();
+
+    long getItemsOnSale();
+
+    long getWishes();
+
+    int getItemNames();
+
+    // Callbacks (in messages)
+
+    long getCallbacksQueued();
+
+    long getCallbacksDelivered();
+
+    long getCallbacksDropped();
+
+    long getCallbacksFailed();
+
+    // Market feed : subscribers, number of the last update, updates sent (one per subscriber)
+
+    int getFeedSubscribers();
+
+    long getFeedSeq();
+
+    long getFeedUpdatesDelivered();
+
+    long getFeedUpdatesDropped();
+
+    long getFeedUpdatesFailed();
+
+    // Matching engine : items sold to a wish, wishes dropped because the buyer could not pay
+
+    long getMatches();
+
+    long getSettlementsRejected();
+
+    // Items off the market until the bank tells whether they have been paid
+
+    int getPaymentsInDoubt();
+
+    // Admission control : calls running and waiting for a slot of the market, calls admitted,
+    // calls rejected (overloaded) by limit : in flight or rate, of the trader or of the market
+
+    int getAdmissionInFlight();
+
+    int getAdmissionQueued();
+
+    long getAdmitted();
+
+    long getRejectedTraderInFlight();
+
+    long getRejectedTraderRate();
+
+    long getRejectedInFlight();
+
+    long getRejectedRate();
+
+    // Outcomes of the sells, buys and wishes with a request id kept, calls answered with one of them
+
+    int getRecentRequests();
+
+    long getDuplicateRequests();
+}
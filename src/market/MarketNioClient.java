@@ -0,0 +1,381 @@
+package market;
+
+
+import client.Trader;
+import log.Logger;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.rmi.RemoteException;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static market.MarketProtocol.*;
+
+/**
+ * Client side of the binary protocol (MarketNioServer) : a Market over one TCP connection.
+ *
+ * The Market methods wait for their answer, from any number of threads : their requests
+ * share the connection. The *Async methods do not wait : many requests can be in flight
+ * (pipelining), run by the market in the order they have been sent.
+ * The Trader given to register is called back from a single thread, in the order the market
+ * pushed the messages and the feed updates (MarketFeedListener). The Trader arguments of the
+ * other methods are ignored : the trader is the one registered on the connection.
+ */
+public class MarketNioClient implements Market, Closeable {
+    private static final Logger LOG = Logger.getLogger(MarketNioClient.class);
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final Socket socket;
+    private final DataOutputStream out; // guarded by itself
+    private final DataInputStream in;
+    private final AtomicInteger ids = new AtomicInteger();
+    private final Map<Integer, CompletableFuture<DataInputStream>> pending = new ConcurrentHashMap<>();
+    // Callbacks and updates, in order
+    private final ExecutorService pushes = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "market-nio-push");
+        t.setDaemon(true);
+        return t;
+    });
+    private volatile Trader trader;
+    private volatile boolean closed = false;
+
+    /**
+     * @throws IOException if the market cannot be reached
+     */
+    public MarketNioClient(String host, int port) throws IOException {
+        socket = new Socket(host, port);
+        socket.setTcpNoDelay(true);
+        out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), BUFFER_SIZE));
+        in = new DataInputStream(new BufferedInputStream(socket.getInputStream(), BUFFER_SIZE));
+        Thread reader = new Thread(this::readResponses, "market-nio-reader");
+        reader.setDaemon(true);
+        reader.start();
+    }
+
+    /**
+     * @param address host:port of a MarketNioServer
+     */
+    public static MarketNioClient connect(String address) throws IOException {
+        int colon = address.lastIndexOf(':');
+        if (colon < 0)
+            throw new IllegalArgumentException("Illegal market address (host:port) : " + address);
+        return new MarketNioClient(address.substring(0, colon), Integer.parseInt(address.substring(colon + 1)));
+    }
+
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        socket.close();
+        pushes.shutdown();
+    }
+
+    // Arguments of a request
+    private interface Arguments {
+        void write(DataOutput out) throws IOException;
+    }
+
+    // Result of a response
+    private interface Result<T> {
+        T read(DataInputStream in) throws IOException;
+    }
+
+    /**
+     * Sends a request without waiting for its answer
+     * @return the answer, positioned on the result ; completed with the RejectedException,
+     * bank.RejectedException or RemoteException of the market otherwise
+     */
+    private <T> CompletableFuture<T> request(byte op, Arguments arguments, Result<T> result) {
+        int id = ids.incrementAndGet();
+        CompletableFuture<DataInputStream> answer = new CompletableFuture<>();
+        pending.put(id, answer);
+        try {
+            Frame frame = new Frame(op);
+            frame.writeInt(id);
+            arguments.write(frame);
+            ByteBuffer buffer = frame.toBuffer();
+            synchronized (out) {
+                if (closed)
+                    throw new IOException("Connection closed");
+                out.write(buffer.array(), 0, buffer.limit());
+                out.flush();
+            }
+        } catch (IOException e) {
+            pending.remove(id);
+            answer.completeExceptionally(new RemoteException("Market request failed", e));
+        }
+        return answer.thenApply(in -> {
+            try {
+                return result.read(in);
+            } catch (IOException e) {
+                throw new CompletionException(new RemoteException("Malformed response", e));
+            }
+        });
+    }
+
+    private CompletableFuture<Void> request(byte op, Arguments arguments) {
+        return request(op, arguments, in -> null);
+    }
+
+    private static final Arguments NONE = out -> { };
+
+    private void readResponses() {
+        try {
+            while (true) {
+                int length = in.readInt();
+                if (length < 1 || length > MAX_FRAME)
+                    throw new IOException("Illegal frame length : " + length);
+                byte[] bytes = new byte[length];
+                in.readFully(bytes);
+                DataInputStream frame = new DataInputStream(new ByteArrayInputStream(bytes));
+                switch (frame.readByte()) {
+                    case RESPONSE:
+                        CompletableFuture<DataInputStream> answer = pending.remove(frame.readInt());
+                        if (answer != null)
+                            complete(answer, frame);
+                        break;
+                    case CALLBACK:
+                        String message = readText(frame);
+                        push(trader -> trader.callback(message));
+                        break;
+                    case FEED:
+                        MarketUpdate update = readUpdate(frame);
+                        push(trader -> {
+                            if (trader instanceof MarketFeedListener)
+                                ((MarketFeedListener) trader).marketUpdated(update);
+                        });
+                        break;
+                    default:
+                        LOG.warn("Unknown frame from the market : {}", bytes[0]);
+                }
+            }
+        } catch (IOException e) {
+            if (!closed)
+                LOG.warn("Market connection lost : {}", e.getMessage());
+        } finally {
+            closed = true;
+            RemoteException lost = new RemoteException("Market connection closed");
+            for (Integer id : pending.keySet()) {
+                CompletableFuture<DataInputStream> answer = pending.remove(id);
+                if (answer != null)
+                    answer.completeExceptionally(lost);
+            }
+        }
+    }
+
+    private static void complete(CompletableFuture<DataInputStream> answer, DataInputStream frame)
+            throws IOException {
+        byte status = frame.readByte();
+        switch (status) {
+            case OK:
+                answer.complete(frame);
+                break;
+            case REJECTED:
+                answer.completeExceptionally(new RejectedException(frame.readUTF(), frame.readUTF()));
+                break;
+            case BANK_REJECTED:
+                answer.completeExceptionally(new bank.RejectedException(frame.readUTF(), frame.readUTF()));
+                break;
+            default:
+                answer.completeExceptionally(new RemoteException(frame.readUTF()));
+        }
+    }
+
+    // Body of a push to the trader
+    private interface Push {
+        void run(Trader trader) throws RemoteException;
+    }
+
+    private void push(Push push) {
+        Trader trader = this.trader;
+        if (trader == null)
+            return; // Not registered
+        pushes.execute(() -> {
+            try {
+                push.run(trader);
+            } catch (RemoteException | RuntimeException e) {
+                LOG.warn("Market push to {} failed : {}", trader, e.getMessage());
+            }
+        });
+    }
+
+    /**
+     * Waits for the answer of a request which cannot be rejected by the bank
+     */
+    private static <T> T await(CompletableFuture<T> answer) throws RemoteException, RejectedException {
+        try {
+            return awaitPaying(answer);
+        } catch (bank.RejectedException e) {
+            throw new RemoteException("Unexpected rejection from the bank", e);
+        }
+    }
+
+    private static <T> T awaitPaying(CompletableFuture<T> answer) throws RemoteException, RejectedException,
+            bank.RejectedException {
+        try {
+            return answer.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RemoteException("Interrupted while waiting for the market", e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RejectedException)
+                throw (RejectedException) cause;
+            if (cause instanceof bank.RejectedException)
+                throw (bank.RejectedException) cause;
+            if (cause instanceof RemoteException)
+                throw (RemoteException) cause;
+            throw new RemoteException("Market request failed", cause);
+        }
+    }
+
+    // Without waiting
+
+    public CompletableFuture<Void> sellAsync(Item item) {
+        return sellAsync(item, null);
+    }
+
+    public CompletableFuture<Void> buyAsync(Item item) {
+        return buyAsync(item, null);
+    }
+
+    public CompletableFuture<Void> wishAsync(Item item) {
+        return wishAsync(item, null);
+    }
+
+    // Idempotent (see Market) : requestId may be sent again, e.g. on another connection
+
+    public CompletableFuture<Void> sellAsync(Item item, String requestId) {
+        return request(SELL, out -> writeOrder(out, item, requestId));
+    }
+
+    public CompletableFuture<Void> buyAsync(Item item, String requestId) {
+        return request(BUY, out -> writeOrder(out, item, requestId));
+    }
+
+    public CompletableFuture<Void> wishAsync(Item item, String requestId) {
+        return request(WISH, out -> writeOrder(out, item, requestId));
+    }
+
+    private static void writeOrder(DataOutput out, Item item, String requestId) throws IOException {
+        writeItem(out, item);
+        writeNullableUTF(out, requestId);
+    }
+
+    // Market
+
+    @Override
+    public long register(String traderName, Trader trader) throws RemoteException, RejectedException {
+        // Set by the reader thread once registered : the pushes after the answer go to the trader
+        return await(request(REGISTER, out -> out.writeUTF(traderName), DataInputStream::readLong)
+                .thenApply(lease -> {
+                    this.trader = trader;
+                    return lease;
+                }));
+    }
+
+    @Override
+    public void unregister(String traderName) throws RemoteException, RejectedException {
+        await(request(UNREGISTER, out -> out.writeUTF(traderName)).thenRun(() -> this.trader = null));
+    }
+
+    @Override
+    public void heartbeat(Trader trader) throws RemoteException, RejectedException {
+        await(request(HEARTBEAT, NONE));
+    }
+
+    @Override
+    public void sell(Item item, Trader trader) throws RemoteException, RejectedException {
+        await(sellAsync(item));
+    }
+
+    @Override
+    public void buy(Item item, Trader trader) throws RemoteException, RejectedException, bank.RejectedException {
+        awaitPaying(buyAsync(item));
+    }
+
+    @Override
+    public void wish(Item item, Trader trader) throws RemoteException, RejectedException, bank.RejectedException {
+        awaitPaying(wishAsync(item));
+    }
+
+    @Override
+    public void sell(Item item, Trader trader, String requestId) throws RemoteException, RejectedException {
+        await(sellAsync(item, requestId));
+    }
+
+    @Override
+    public void buy(Item item, Trader trader, String requestId) throws RemoteException, RejectedException,
+            bank.RejectedException {
+        awaitPaying(buyAsync(item, requestId));
+    }
+
+    @Override
+    public void wish(Item item, Trader trader, String requestId) throws RemoteException, RejectedException,
+            bank.RejectedException {
+        awaitPaying(wishAsync(item, requestId));
+    }
+
+    @Override
+    public ItemResult[] sellAll(List<Item> items, Trader trader) throws RemoteException, RejectedException {
+        return await(request(SELL_ALL, out -> writeItemList(out, items), MarketProtocol::readResults));
+    }
+
+    @Override
+    public ItemResult[] buyAll(List<Item> items, Trader trader) throws RemoteException, RejectedException {
+        return await(request(BUY_ALL, out -> writeItemList(out, items), MarketProtocol::readResults));
+    }
+
+    @Override
+    public ItemResult[] wishAll(List<Item> items, Trader trader) throws RemoteException, RejectedException {
+        return await(request(WISH_ALL, out -> writeItemList(out, items), MarketProtocol::readResults));
+    }
+
+    @Override
+    public MarketUpdate subscribe(Trader trader) throws RemoteException, RejectedException {
+        return await(request(SUBSCRIBE, NONE, MarketProtocol::readUpdate));
+    }
+
+    @Override
+    public void unsubscribe(Trader trader) throws RemoteException, RejectedException {
+        await(request(UNSUBSCRIBE, NONE));
+    }
+
+    @Override
+    public String getAllItems() throws RemoteException {
+        try {
+            return await(request(GET_ALL_ITEMS, NONE, MarketProtocol::readText));
+        } catch (RejectedException e) {
+            throw new RemoteException("Unexpected rejection", e);
+        }
+    }
+
+    @Override
+    public ItemPage getItems(String namePrefix, float minPrice, float maxPrice, Item cursor, int pageSize)
+            throws RemoteException, RejectedException {
+        return await(request(GET_ITEMS, out -> {
+            writeNullableUTF(out, namePrefix);
+            out.writeFloat(minPrice);
+            out.writeFloat(maxPrice);
+            out.writeBoolean(cursor != null);
+            if (cursor != null)
+                writeItem(out, cursor);
+            out.writeInt(pageSize);
+        }, MarketProtocol::readPage));
+    }
+}
@@ -0,0 +1,485 @@
+package market;
+
+
+import client.Trader;
+import log.Logger;
+
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.rmi.RemoteException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static market.MarketProtocol.*;
+
+/**
+ * NIO front end of a market : the binary protocol of MarketProtocol, next to RMI
+ * (MarketServer -Dmarket.nio.port=<port>). MarketNioClient is the client side.
+ *
+ * A single selector thread reads and writes all the connections. The requests of a
+ * connection run in order on a pool of workers (the market calls the bank) : a client can
+ * send many requests without waiting for the answers (pipelining), they come back in order.
+ * The trader registered on a connection is called back through it : callbacks and market
+ * feed updates are pushed as frames, there is no RMI object on the client side.
+ * A connection closed without unregistering leaves its trader until its lease expires.
+ *
+ * Backpressure : a connection is not read any more while too many of its requests wait to
+ * run (-Dmarket.nio.maxQueuedRequests) or too many bytes wait to be sent to it
+ * (-Dmarket.nio.maxUnsentBytes), until they are down to half of it. The client then waits
+ * in its socket (TCP flow control) instead of filling the memory of the market.
+ */
+public class MarketNioServer implements Closeable {
+    private static final Logger LOG = Logger.getLogger(MarketNioServer.class);
+    private static final int READ_BUFFER_SIZE = 64 * 1024;
+    // High-water marks of a connection : reads paused above, resumed at half
+    static final int MAX_QUEUED_REQUESTS = Integer.getInteger("market.nio.maxQueuedRequests", 1024);
+    static final long MAX_UNSENT_BYTES = Long.getLong("market.nio.maxUnsentBytes", 4 * 1024 * 1024);
+
+    private final Market market;
+    private final Selector selector;
+    private final ServerSocketChannel server;
+    private final ExecutorService workers;
+    // Connections with frames to write, or reads to resume, waiting for the selector thread
+    private final Queue<Connection> wakeUps = new ConcurrentLinkedQueue<>();
+    private final Thread selectorThread;
+    private volatile boolean closed = false;
+
+    /**
+     * @param market the market called by the requests
+     * @param port TCP port to listen to (0 = any free port, see getPort())
+     * @throws IOException if the port cannot be bound
+     */
+    public MarketNioServer(Market market, int port) throws IOException {
+        this.market = market;
+        this.selector = Selector.open();
+        this.server = ServerSocketChannel.open();
+        server.bind(new InetSocketAddress(port));
+        server.configureBlocking(false);
+        server.register(selector, SelectionKey.OP_ACCEPT);
+        AtomicInteger threadNo = new AtomicInteger();
+        this.workers = Executors.newCachedThreadPool(r -> {
+            Thread t = new Thread(r, "market-nio-worker-" + threadNo.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+        this.selectorThread = new Thread(this::run, "market-nio");
+        selectorThread.setDaemon(true);
+    }
+
+    public void start() {
+        selectorThread.start();
+        LOG.info("Market NIO front end listening on port {}", getPort());
+    }
+
+    public int getPort() {
+        return server.socket().getLocalPort();
+    }
+
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        for (SelectionKey key : selector.keys())
+            key.channel().close();
+        selector.close();
+        workers.shutdown();
+    }
+
+    private void run() {
+        while (!closed) {
+            try {
+                selector.select();
+                Connection connection;
+                while ((connection = wakeUps.poll()) != null)
+                    connection.wakeUp();
+
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    if (!key.isValid())
+                        continue;
+                    if (key.isAcceptable()) {
+                        accept();
+                        continue;
+                    }
+                    connection = (Connection) key.attachment();
+                    try {
+                        if (key.isReadable())
+                            connection.read();
+                        if (key.isValid() && key.isWritable())
+                            connection.write();
+                    } catch (IOException e) {
+                        connection.close(e.getMessage());
+                    }
+                }
+            } catch (IOException | RuntimeException e) {
+                // Keep the front end alive
+                if (!closed)
+                    LOG.error("Market NIO front end failed : {}", e);
+            }
+        }
+    }
+
+    private void accept() throws IOException {
+        SocketChannel channel = server.accept();
+        if (channel == null)
+            return;
+        channel.configureBlocking(false);
+        channel.socket().setTcpNoDelay(true);
+        SelectionKey key = channel.register(selector, SelectionKey.OP_READ);
+        key.attach(new Connection(channel, key));
+        LOG.info("Market NIO connection from {}", channel.getRemoteAddress());
+    }
+
+    /**
+     * A client connection : its frames, its requests (run in order) and its trader
+     */
+    private class Connection implements Runnable {
+        private final SocketChannel channel;
+        private final SelectionKey key;
+        private final ConnectionTrader trader = new ConnectionTrader(this);
+        private ByteBuffer in = ByteBuffer.allocate(READ_BUFFER_SIZE); // Selector thread only
+        private ByteBuffer writing; // Frame being written, selector thread only
+        private final Queue<ByteBuffer> out = new ConcurrentLinkedQueue<>();
+        private final AtomicLong unsent = new AtomicLong(); // Bytes of out and writing
+        private final AtomicBoolean wakeUpScheduled = new AtomicBoolean();
+        private boolean readPaused = false; // Selector thread only
+        // Requests waiting to run (guarded by this)
+        private final Deque<byte[]> requests = new ArrayDeque<>();
+        private volatile int queued = 0; // Size of requests, written under this
+        private boolean running = false; // guarded by this
+        private volatile boolean open = true;
+
+        private Connection(SocketChannel channel, SelectionKey key) {
+            this.channel = channel;
+            this.key = key;
+        }
+
+        // Selector thread
+
+        private void read() throws IOException {
+            if (channel.read(in) < 0) {
+                close("end of stream");
+                return;
+            }
+            in.flip();
+            while (in.remaining() >= 4) {
+                int length = in.getInt(in.position());
+                if (length < 1 || length > MAX_FRAME)
+                    throw new IOException("Illegal frame length : " + length);
+                if (in.remaining() < 4 + length) {
+                    if (4 + length > in.capacity()) {
+                        // Bigger than the buffer (large batch)
+                        ByteBuffer bigger = ByteBuffer.allocate(4 + length);
+                        bigger.put(in);
+                        in = bigger;
+                        return;
+                    }
+                    break;
+                }
+                in.position(in.position() + 4);
+                byte[] frame = new byte[length];
+                in.get(frame);
+                submit(frame);
+            }
+            in.compact();
+            updateInterest();
+        }
+
+        private void wakeUp() {
+            wakeUpScheduled.set(false);
+            updateInterest();
+        }
+
+        // Reads paused above the high-water marks, resumed at half of them ; writes while there are frames
+        private void updateInterest() {
+            if (!key.isValid())
+                return;
+            if (!readPaused && (queued >= MAX_QUEUED_REQUESTS || unsent.get() >= MAX_UNSENT_BYTES)) {
+                readPaused = true;
+                LOG.debug("Market NIO connection of {} : reads paused", trader.getClientName());
+            } else if (readPaused && queued <= MAX_QUEUED_REQUESTS / 2 && unsent.get() <= MAX_UNSENT_BYTES / 2) {
+                readPaused = false;
+                LOG.debug("Market NIO connection of {} : reads resumed", trader.getClientName());
+            }
+            int ops = readPaused ? 0 : SelectionKey.OP_READ;
+            if (writing != null || !out.isEmpty())
+                ops |= SelectionKey.OP_WRITE;
+            key.interestOps(ops);
+        }
+
+        private void write() throws IOException {
+            while (true) {
+                if (writing == null)
+                    writing = out.poll();
+                if (writing == null) {
+                    // Everything written : a frame queued from now on schedules a write again
+                    updateInterest();
+                    return;
+                }
+                unsent.addAndGet(-channel.write(writing));
+                if (writing.hasRemaining()) {
+                    updateInterest(); // Socket full : next time it is writable
+                    return;
+                }
+                writing = null;
+            }
+        }
+
+        private void close(String reason) {
+            if (!open)
+                return;
+            open = false;
+            key.cancel();
+            try {
+                channel.close();
+            } catch (IOException e) {
+                // Closed anyway
+            }
+            LOG.info("Market NIO connection of {} closed : {}", trader.getClientName(), reason);
+        }
+
+        // Any thread
+
+        /**
+         * Queues a frame for the client
+         * @return false if the connection is closed
+         */
+        private boolean send(ByteBuffer frame) {
+            if (!open)
+                return false;
+            unsent.addAndGet(frame.remaining());
+            out.add(frame);
+            scheduleWakeUp();
+            return true;
+        }
+
+        // The selector thread updates the interest ops of the connection
+        private void scheduleWakeUp() {
+            if (wakeUpScheduled.compareAndSet(false, true)) {
+                wakeUps.add(this);
+                selector.wakeup();
+            }
+        }
+
+        // Requests : in order, one at a time per connection
+
+        private void submit(byte[] frame) {
+            boolean schedule;
+            synchronized (this) {
+                requests.addLast(frame);
+                queued = requests.size();
+                schedule = !running;
+                running = true;
+            }
+            if (schedule)
+                workers.execute(this);
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                byte[] frame;
+                synchronized (this) {
+                    frame = requests.pollFirst();
+                    if (frame == null || !open) {
+                        requests.clear();
+                        queued = 0;
+                        running = false;
+                        return;
+                    }
+                    queued = requests.size();
+                }
+                if (queued == MAX_QUEUED_REQUESTS / 2)
+                    scheduleWakeUp(); // Reads paused ? => resumed
+                handle(frame);
+            }
+        }
+
+        private void handle(byte[] frame) {
+            DataInputStream request = new DataInputStream(new ByteArrayInputStream(frame));
+            int id = -1;
+            Frame response;
+            try {
+                byte op = request.readByte();
+                id = request.readInt();
+                try {
+                    response = execute(op, id, request);
+                } catch (RejectedException e) {
+                    response = rejection(id, REJECTED, e.getReason(), e.getMessage());
+                } catch (bank.RejectedException e) {
+                    response = rejection(id, BANK_REJECTED, e.getReason(), e.getMessage());
+                } catch (RemoteException | RuntimeException e) {
+                    LOG.warn("Market NIO request {} of {} failed : {}", id, trader.getClientName(), e);
+                    response = failure(id, String.valueOf(e.getMessage()));
+                }
+                send(response.toBuffer());
+            } catch (IOException e) {
+                // Truncated request : the client does not speak the protocol
+                close("malformed request " + id + " : " + e.getMessage());
+            }
+        }
+
+        /**
+         * Runs a request on the market
+         * @return the response, status OK
+         */
+        private Frame execute(byte op, int id, DataInputStream request) throws IOException, RejectedException,
+                bank.RejectedException {
+            Frame response;
+            switch (op) {
+                case REGISTER:
+                    String name = request.readUTF();
+                    if (trader.name != null)
+                        throw new RejectedException(RejectedException.ALREADY_REGISTERED,
+                                "Already registered as " + trader.name + " on this connection.");
+                    long lease = market.register(name, trader);
+                    trader.name = name;
+                    response = ok(id);
+                    response.writeLong(lease);
+                    return response;
+                case UNREGISTER:
+                    // Only the trader registered on this connection
+                    name = request.readUTF();
+                    if (!name.equals(trader.name))
+                        throw new RejectedException(RejectedException.NOT_REGISTERED,
+                                "Trader " + name + " is not registered on this connection.");
+                    market.unregister(name);
+                    trader.name = null;
+                    return ok(id);
+                case HEARTBEAT:
+                    market.heartbeat(trader);
+                    return ok(id);
+                case SELL:
+                    market.sell(readItem(request), trader, readNullableUTF(request));
+                    return ok(id);
+                case BUY:
+                    market.buy(readItem(request), trader, readNullableUTF(request));
+                    return ok(id);
+                case WISH:
+                    market.wish(readItem(request), trader, readNullableUTF(request));
+                    return ok(id);
+                case SELL_ALL:
+                case BUY_ALL:
+                case WISH_ALL:
+                    List<Item> items = readItemList(request);
+                    ItemResult[] results = (op == SELL_ALL) ? market.sellAll(items, trader)
+                            : (op == BUY_ALL) ? market.buyAll(items, trader) : market.wishAll(items, trader);
+                    response = ok(id);
+                    writeResults(response, results);
+                    return response;
+                case SUBSCRIBE:
+                    MarketUpdate snapshot = market.subscribe(trader);
+                    response = ok(id);
+                    snapshot.write(response);
+                    return response;
+                case UNSUBSCRIBE:
+                    market.unsubscribe(trader);
+                    return ok(id);
+                case GET_ALL_ITEMS:
+                    String listing = market.getAllItems();
+                    response = ok(id);
+                    writeText(response, listing);
+                    return response;
+                case GET_ITEMS:
+                    String namePrefix = readNullableUTF(request);
+                    float minPrice = request.readFloat();
+                    float maxPrice = request.readFloat();
+                    Item cursor = request.readBoolean() ? readItem(request) : null;
+                    ItemPage page = market.getItems(namePrefix, minPrice, maxPrice, cursor, request.readInt());
+                    response = ok(id);
+                    page.write(response);
+                    return response;
+                default:
+                    return failure(id, "Unknown operation : " + op);
+            }
+        }
+    }
+
+    private static Frame ok(int id) throws IOException {
+        Frame response = new Frame(RESPONSE);
+        response.writeInt(id);
+        response.writeByte(OK);
+        return response;
+    }
+
+    private static Frame rejection(int id, byte status, String reason, String message) throws IOException {
+        Frame response = new Frame(RESPONSE);
+        response.writeInt(id);
+        response.writeByte(status);
+        response.writeUTF(reason);
+        response.writeUTF(String.valueOf(message));
+        return response;
+    }
+
+    private static Frame failure(int id, String message) throws IOException {
+        Frame response = new Frame(RESPONSE);
+        response.writeInt(id);
+        response.writeByte(FAILED);
+        response.writeUTF(message);
+        return response;
+    }
+
+    /**
+     * The trader registered on a connection, as seen by the market : its callbacks
+     * and market feed updates are pushed on the connection
+     */
+    private static class ConnectionTrader implements Trader, MarketFeedListener {
+        private final Connection connection;
+        private volatile String name; // Set once registered, null otherwise
+
+        private ConnectionTrader(Connection connection) {
+            this.connection = connection;
+        }
+
+        @Override
+        public void callback(String message) throws RemoteException {
+            try {
+                Frame push = new Frame(CALLBACK);
+                writeText(push, message);
+                push(push);
+            } catch (IOException e) {
+                throw new RemoteException("Callback to " + getClientName() + " failed", e);
+            }
+        }
+
+        @Override
+        public void marketUpdated(MarketUpdate update) throws RemoteException {
+            try {
+                Frame push = new Frame(FEED);
+                update.write(push);
+                push(push);
+            } catch (IOException e) {
+                throw new RemoteException("Update to " + getClientName() + " failed", e);
+            }
+        }
+
+        private void push(Frame push) throws RemoteException {
+            if (!connection.send(push.toBuffer()))
+                throw new RemoteException("Connection of " + getClientName() + " closed");
+        }
+
+        @Override
+        public String getClientName() {
+            String registered = name;
+            return (registered == null) ? "?" : registered;
+        }
+    }
+}
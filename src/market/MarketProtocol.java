@@ -0,0 +1,159 @@
+package market;
+
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Binary protocol of the market (MarketNioServer, MarketNioClient) : the Market operations
+ * without RMI, over a single TCP connection.
+ *
+ * Every message is a frame : [int length][byte type][payload], big endian.
+ * - request : [op][int id][arguments] ; the requests of a connection are run in order, and
+ *   the client does not need to wait for an answer before sending the next one (pipelining)
+ * - response : [RESPONSE][int id][byte status][result or rejection]
+ * - push : [CALLBACK][text message] or [FEED][update], sent by the market at any time
+ * Items are [utf name][float price], texts [int length][utf-8 bytes] (no 64 KB limit).
+ */
+final class MarketProtocol {
+    static final int MAX_FRAME = 16 * 1024 * 1024;
+
+    // Requests : the operations of Market (the trader is the one registered on the connection)
+    static final byte REGISTER = 1;        // utf name => long lease (ms)
+    static final byte UNREGISTER = 2;      // utf name
+    static final byte HEARTBEAT = 3;
+    static final byte SELL = 4;            // item, request id? (idempotent if present)
+    static final byte BUY = 5;             // item, request id?
+    static final byte WISH = 6;            // item, request id?
+    static final byte SELL_ALL = 7;        // int count, items => results
+    static final byte BUY_ALL = 8;
+    static final byte WISH_ALL = 9;
+    static final byte SUBSCRIBE = 10;      // => snapshot
+    static final byte UNSUBSCRIBE = 11;
+    static final byte GET_ALL_ITEMS = 12;  // => text listing
+    static final byte GET_ITEMS = 13;      // prefix?, float min, float max, item cursor?, int size => page
+
+    // From the market
+    static final byte RESPONSE = 64;
+    static final byte CALLBACK = 65;       // text message
+    static final byte FEED = 66;           // update
+
+    // Status of a response
+    static final byte OK = 0;
+    static final byte REJECTED = 1;        // utf reason, utf message (market.RejectedException)
+    static final byte BANK_REJECTED = 2;   // utf reason, utf message (bank.RejectedException)
+    static final byte FAILED = 3;          // utf message (RemoteException, bug...)
+
+    private MarketProtocol() {
+    }
+
+    /**
+     * Message being written : the frame length is filled by toBuffer()
+     */
+    static final class Frame extends DataOutputStream {
+        Frame(byte type) throws IOException {
+            super(new ByteArrayOutputStream(64));
+            writeInt(0); // Length
+            writeByte(type);
+        }
+
+        ByteBuffer toBuffer() {
+            byte[] bytes = ((ByteArrayOutputStream) out).toByteArray();
+            ByteBuffer buffer = ByteBuffer.wrap(bytes);
+            buffer.putInt(0, bytes.length - 4);
+            return buffer;
+        }
+    }
+
+    static void writeItem(DataOutput out, Item item) throws IOException {
+        out.writeUTF(item.getName());
+        out.writeFloat(item.getPrice());
+    }
+
+    static Item readItem(DataInput in) throws IOException {
+        return new Item(in.readUTF(), in.readFloat());
+    }
+
+    /**
+     * Items in any order : sent one by one (a batch keeps the order of its items)
+     */
+    static void writeItemList(DataOutput out, List<Item> items) throws IOException {
+        out.writeInt(items.size());
+        for (Item item : items)
+            writeItem(out, item);
+    }
+
+    static List<Item> readItemList(DataInput in) throws IOException {
+        int count = in.readInt();
+        if (count < 0 || count > MAX_FRAME / 6)
+            throw new IOException("Illegal item count : " + count);
+        List<Item> items = new ArrayList<>(count);
+        for (int i = 0; i < count; i++)
+            items.add(readItem(in));
+        return items;
+    }
+
+    static void writeResults(DataOutput out, ItemResult[] results) throws IOException {
+        out.writeInt(results.length);
+        for (ItemResult result : results)
+            result.write(out);
+    }
+
+    static ItemResult[] readResults(DataInput in) throws IOException {
+        int count = in.readInt();
+        if (count < 0 || count > MAX_FRAME / 7) // 7 bytes at least per result
+            throw new IOException("Illegal result count : " + count);
+        ItemResult[] results = new ItemResult[count];
+        for (int i = 0; i < results.length; i++) {
+            results[i] = new ItemResult();
+            results[i].read(in);
+        }
+        return results;
+    }
+
+    static MarketUpdate readUpdate(DataInput in) throws IOException {
+        MarketUpdate update = new MarketUpdate();
+        update.read(in);
+        return update;
+    }
+
+    static ItemPage readPage(DataInput in) throws IOException {
+        ItemPage page = new ItemPage();
+        page.read(in);
+        return page;
+    }
+
+    // Strings longer than writeUTF allows (listings, bursts of callbacks)
+
+    static void writeText(DataOutput out, String text) throws IOException {
+        byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    static String readText(DataInput in) throws IOException {
+        int length = in.readInt();
+        if (length < 0 || length > MAX_FRAME)
+            throw new IOException("Illegal text length : " + length);
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    static void writeNullableUTF(DataOutput out, String s) throws IOException {
+        out.writeBoolean(s != null);
+        if (s != null)
+            out.writeUTF(s);
+    }
+
+    static String readNullableUTF(DataInput in) throws IOException {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+}
@@ -0,0 +1,103 @@
+package market;
+
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.NavigableSet;
+import java.util.concurrent.ConcurrentSkipListSet;
+
+/**
+ * Local copy of the items on the market, kept by a trader from the market feed.
+ * Readable from any thread while updates are applied.
+ *
+ * Usage : feed every MarketUpdate received (answer to Market.subscribe, then
+ * MarketFeedListener.marketUpdated) to apply(). When apply() returns false, updates
+ * have been lost : subscribe again and apply the new snapshot.
+ * The updates of a sharded market are checked shard by shard.
+ */
+public class MarketReplica {
+    private final ConcurrentSkipListSet<Item> items = new ConcurrentSkipListSet<>();
+    // Last update applied for each shard, null = no snapshot yet (guarded by this)
+    private long[] seqs = null;
+    // Updates received before the snapshot they follow (guarded by this)
+    private final List<MarketUpdate> early = new ArrayList<>();
+
+    /**
+     * @return false if updates are missing (resync needed), true otherwise
+     */
+    public synchronized boolean apply(MarketUpdate update) {
+        if (update.isSnapshot()) {
+            items.clear();
+            Collections.addAll(items, update.getAdded());
+            seqs = update.getSeqs().clone();
+            // Pushed updates may arrive before the answer to subscribe
+            boolean inSequence = true;
+            for (MarketUpdate next : early)
+                inSequence &= apply(next);
+            early.clear();
+            return inSequence;
+        }
+
+        if (seqs == null) {
+            early.add(update);
+            return true;
+        }
+        int shard = update.getShard();
+        if (shard >= seqs.length || seqs[shard] < 0)
+            return true; // Not from a shard of the snapshot
+        if (update.getSeq() <= seqs[shard])
+            return true; // Already in the snapshot
+        if (update.getSeq() != seqs[shard] + 1)
+            return false;
+        for (Item item : update.getRemoved())
+            items.remove(item);
+        Collections.addAll(items, update.getAdded());
+        seqs[shard] = update.getSeq();
+        return true;
+    }
+
+    /**
+     * Keeps the items (now stale) but waits for a new snapshot : updates received
+     * meanwhile are kept for it. To call before subscribing again after a gap.
+     */
+    public synchronized void invalidate() {
+        seqs = null;
+    }
+
+    /**
+     * @return false before the first snapshot, or since invalidate()
+     */
+    public synchronized boolean isValid() {
+        return seqs != null;
+    }
+
+    /**
+     * Forgets everything, until the next snapshot
+     */
+    public synchronized void clear() {
+        items.clear();
+        early.clear();
+        seqs = null;
+    }
+
+    /**
+     * @return the items, sorted by name then price (live view, read only)
+     */
+    public NavigableSet<Item> getItems() {
+        return Collections.unmodifiableNavigableSet(items);
+    }
+
+    /**
+     * @return number of the last update applied (sharded market : sum over the shards),
+     * -1 before the first snapshot
+     */
+    public synchronized long getSeq() {
+        if (seqs == null)
+            return -1;
+        long seq = 0;
+        for (long s : seqs)
+            seq += Math.max(s, 0);
+        return seq;
+    }
+}
@@ -3,30 +3,109 @@ package market;
 
 import bank.Account;
 import bank.Bank;
+import bank.ShardedBank;
 import client.Trader;
+import dedup.DedupCache;
+import log.Logger;
+import metrics.OperationStats;
 
-import java.net.MalformedURLException;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
 import java.rmi.Naming;
 import java.rmi.RemoteException;
 import java.rmi.registry.LocateRegistry;
 import java.rmi.registry.Registry;
 import java.rmi.server.UnicastRemoteObject;
 import java.util.*;
-import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
 public class MarketServer extends UnicastRemoteObject implements Market {
-    private static final String USAGE = "java market.MarketServer <LOCAL_REGISTRY_PORT_NUMBER>";
+    private static final Logger LOG = Logger.getLogger(MarketServer.class);
+    private static final String USAGE = "java [-Dmarket.shards=<N> -Dmarket.shard=<0..N-1>] market.MarketServer"
+            + " <LOCAL_REGISTRY_PORT_NUMBER>";
     private static final String BANK = "Nordea";
     private static final String DEFAULT_MARKET_NAME = "Market";
     private static final int DEFAULT_LOCAL_REGISTRY_PORT_NUMBER = 1099;
-
-    private List<String> traders = new LinkedList<>();
-    // ConcurrentSkipListMap => to handle concurrency
-    // Lock some parts of the Map when accessed = more efficient than synchronised blocks/methods
-    private AbstractMap<Item, Trader> items = new ConcurrentSkipListMap<>(); // Store Trader (and not their name) --> callback
-    private AbstractMap<Item, Trader> wishList = new ConcurrentSkipListMap<>();
+    private static final int MAX_PAGE_SIZE = 1000;
+    // Callbacks : max number of messages waiting for a trader, and what to do beyond
+    private static final int CALLBACK_QUEUE_CAPACITY = Integer.getInteger("market.callback.capacity", 64);
+    private static final NotificationDispatcher.OverflowPolicy CALLBACK_OVERFLOW_POLICY =
+            NotificationDispatcher.OverflowPolicy.valueOf(
+                    System.getProperty("market.callback.overflow", "DROP_OLDEST"));
+    // Callbacks : max number of traders called back at the same time (slow traders hold a thread each)
+    private static final int CALLBACK_THREADS = Integer.getInteger("market.callback.threads", 32);
+    // A trader without heartbeat nor operation for that long is removed from the market
+    private static final long LEASE_MILLIS = Long.getLong("market.lease.ms", 60_000);
+    // Items and wishes saved in -Dmarket.dir=<directory> (empty = not saved)
+    private static final String JOURNAL_DIR = System.getProperty("market.dir", "market-data");
+    private static final int SNAPSHOT_EVERY = Integer.getInteger("market.snapshot.every", 1_000_000);
+    // Market feed : time between two updates, max number of updates waiting for a subscriber,
+    // max number of subscribers sent to at the same time
+    private static final long FEED_INTERVAL_MILLIS = Long.getLong("market.feed.interval.ms", 100);
+    private static final int FEED_CAPACITY = Integer.getInteger("market.feed.capacity", 64);
+    private static final int FEED_THREADS = Integer.getInteger("market.feed.threads", 16);
+    // Wishes are limit orders matched with the items (false : a wish only calls back when an item shows up)
+    private static final boolean MATCHING = Boolean.parseBoolean(System.getProperty("market.matching", "true"));
+    // Sharded market : this process owns the item names of shard -Dmarket.shard among -Dmarket.shards
+    private static final int SHARDS = Integer.getInteger("market.shards", 1);
+    private static final int SHARD = Integer.getInteger("market.shard", 0);
+    // Admission control, 0 = no limit : calls running at the same time and calls per second,
+    // of each trader and of the whole market (calls beyond : rejected, overloaded)
+    private static final int ADMISSION_TRADER_IN_FLIGHT = Integer.getInteger("market.admission.trader.inflight", 16);
+    private static final double ADMISSION_TRADER_RATE =
+            Double.parseDouble(System.getProperty("market.admission.trader.rate", "0"));
+    private static final int ADMISSION_TRADER_BURST = Integer.getInteger("market.admission.trader.burst", 100);
+    private static final int ADMISSION_IN_FLIGHT = Integer.getInteger("market.admission.inflight", 256);
+    private static final double ADMISSION_RATE = Double.parseDouble(System.getProperty("market.admission.rate", "0"));
+    private static final int ADMISSION_BURST = Integer.getInteger("market.admission.burst", 1000);
+    // Calls waiting when ADMISSION_IN_FLIGHT calls are running, and for how long at most
+    private static final int ADMISSION_QUEUE = Integer.getInteger("market.admission.queue", 64);
+    private static final long ADMISSION_QUEUE_MILLIS = Long.getLong("market.admission.queue.ms", 20);
+    // Outcomes of the sells, buys and wishes with a request id : how many, how long they are kept
+    private static final int DEDUP_SIZE = Integer.getInteger("market.dedup.size", 100_000);
+    private static final long DEDUP_TTL_MILLIS = Long.getLong("market.dedup.ttl.ms", 600_000);
+    // Payments in doubt (bank failed during the transfer) : time between two tries
+    private static final long PAYMENT_RETRY_MILLIS = Long.getLong("market.payment.retry.ms", 1000);
+    // Binary protocol front end next to RMI on -Dmarket.nio.port=<port> (0 = none)
+    private static final int NIO_PORT = Integer.getInteger("market.nio.port", 0);
+
+    private final TraderRegistry traders = new TraderRegistry(LEASE_MILLIS);
+    // Removes the traders whose lease has expired
+    private final ScheduledExecutorService reaper = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "market-lease-reaper");
+        t.setDaemon(true);
+        return t;
+    });
+    // Items on sale and wishes, one price-ordered book per item name
+    // Store Trader (and not their name) --> callback
+    private final OrderBook orderBook = new OrderBook();
+    // Recovered orders of the traders not registered again yet : trader name -> session without Trader
+    private final Map<String, TraderSession> recovered = new ConcurrentHashMap<>();
+    // Callbacks are sent outside of the request threads
+    private final NotificationDispatcher notifier =
+            new NotificationDispatcher(CALLBACK_QUEUE_CAPACITY, CALLBACK_OVERFLOW_POLICY, CALLBACK_THREADS);
+    // Changes of the items pushed to the subscribed traders
+    private final MarketFeed feed;
+    // Calls of the traders admitted, or rejected at once when overloaded
+    private final AdmissionControl admission = new AdmissionControl(ADMISSION_TRADER_IN_FLIGHT,
+            ADMISSION_TRADER_RATE, ADMISSION_TRADER_BURST, ADMISSION_IN_FLIGHT, ADMISSION_RATE, ADMISSION_BURST,
+            ADMISSION_QUEUE, ADMISSION_QUEUE_MILLIS);
+    // Calls sent again by the traders (same request id) : answered with the first outcome
+    private final DedupCache dedup = new DedupCache(DEDUP_SIZE, DEDUP_TTL_MILLIS);
+    // Calls, sizes and callbacks, seen in JMX
+    private final MarketMetrics metrics;
+    // Item names owned : shard among shards (0 among 1 : all)
+    private final int shard;
+    private final int shards;
     private String bankname;
     Bank bankobj;
+    // Items off the market until the bank tells whether they have been paid
+    private PaymentsInDoubt payments;
+    private MatchingEngine engine; // null if matching is off
 
     /**
      * Constructor : to create the market remote object, we need to get first the
@@ -36,8 +115,28 @@ public class MarketServer extends UnicastRemoteObject implements Market {
      * @throws RemoteException
      */
     public MarketServer(String bankName, int bankPort) throws RemoteException {
+        this(bankName, bankPort, 0, 1);
+    }
+
+    /**
+     * Constructor of a shard : only sells, buys and wishes the item names it owns
+     * (see ShardedMarket)
+     * @param bankName
+     * @param bankPort
+     * @param shard this shard, from 0 to shards - 1
+     * @param shards number of shards of the market
+     * @throws RemoteException
+     */
+    public MarketServer(String bankName, int bankPort, int shard, int shards) throws RemoteException {
         super(); // To export the servant class
+        if (shards < 1 || shard < 0 || shard >= shards)
+            throw new IllegalArgumentException("Illegal shard " + shard + " among " + shards);
         this.bankname = bankName;
+        this.shard = shard;
+        this.shards = shards;
+        this.feed = new MarketFeed(orderBook, shard, shards, FEED_INTERVAL_MILLIS, FEED_CAPACITY,
+                FEED_THREADS);
+        this.metrics = new MarketMetrics(traders, orderBook, notifier, feed, admission, dedup);
 
         // We get the reference on the remote bank object
         try {
@@ -48,163 +147,627 @@ public class MarketServer extends UnicastRemoteObject implements Market {
             } catch (RemoteException e) {
                 bankRegistry = LocateRegistry.createRegistry(bankPort);
             }
-            bankobj = (Bank) bankRegistry.lookup(bankname);
+            // The bank, or all its shards
+            bankobj = ShardedBank.lookup(bankRegistry, bankname);
 
         } catch (Exception e) {
             System.err.println("The runtime failed: " + e.getMessage());
             System.exit(1);
         }
         System.out.println("Connected to bank: " + bankname);
+
+        // Outcomes kept as long as the calls sent again
+        payments = new PaymentsInDoubt(bankobj, PAYMENT_RETRY_MILLIS, DEDUP_TTL_MILLIS);
+        metrics.setPayments(payments);
+        if (MATCHING) {
+            engine = new MatchingEngine(orderBook, bankobj, notifier, payments);
+            metrics.setEngine(engine);
+        }
+        orderBook.addListener(feed);
+        metrics.register((shards > 1) ? Integer.toString(shard) : null);
+        long period = Math.max(LEASE_MILLIS / 2, 1);
+        reaper.scheduleWithFixedDelay(this::removeExpiredTraders, period, period, TimeUnit.MILLISECONDS);
     }
 
     @Override
-    public synchronized void register(String traderName) throws RemoteException, RejectedException {
-        if (traders.contains(traderName))
-            throw new RejectedException("Trader " + traderName + " already registered");
-        // Not already registered
-        traders.add(traderName);
-        System.out.println("Trader " + traderName + " registered on the market.");
+    public long register(String traderName, Trader trader) throws RemoteException, RejectedException {
+        return record(metrics.register, () -> {
+            checkName(traderName, "trader");
+            TraderSession session = traders.register(traderName, trader);
+
+            // Items and wishes recovered for that trader => its own now (callbacks...)
+            TraderSession previous = recovered.remove(traderName);
+            if (previous != null)
+                orderBook.reassign(previous, session);
+            LOG.info("Trader {} registered on the market.", traderName);
+            return LEASE_MILLIS;
+        });
     }
 
     @Override
-    public synchronized void unregister(String traderName) throws RemoteException, RejectedException {
-        // Remove all items belonging to that trader
-        if (!traders.contains(traderName))
-            throw new RejectedException("Trader " + traderName + " not registered");
+    public void unregister(String traderName) throws RemoteException, RejectedException {
+        record(metrics.unregister, () -> {
+            // Remove the trader from the market
+            TraderSession session = traders.unregister(traderName);
+
+            // Remove all items and wishes from this trader (only its own ones, no callback)
+            removeOrders(session);
+            LOG.info("Trader {} unregistered from the market.", traderName);
+        });
+    }
 
-        // TODO : Remove all objects and wishes from that trader ?
-        // Remove all items belonging to this trader
-        for(Map.Entry<Item, Trader> entry : items.entrySet()) {
-            if (entry.getValue().getClientName().equals(traderName))
-                items.remove(entry.getKey());
-        }
+    /**
+     * Loads the items and wishes saved by a previous run, then saves every change.
+     * Recovered orders are given back to their trader when it registers again.
+     * @param journal
+     * @throws IOException if the saved state cannot be read
+     */
+    void recover(MarketJournal journal) throws IOException {
+        journal.recover();
+        for (Map.Entry<Item, MarketJournal.Entry> item : journal.getItems().entrySet())
+            orderBook.putItem(recoveredOrder(item.getKey(), item.getValue()));
+        for (Map.Entry<Item, MarketJournal.Entry> wish : journal.getWishes().entrySet())
+            orderBook.putWish(recoveredOrder(wish.getKey(), wish.getValue()));
+        orderBook.addListener(journal);
+        journal.start();
+    }
 
-        // Remove all wishes from this trader
-        for(Map.Entry<Item, Trader> entry : wishList.entrySet()) {
-            if (entry.getValue().getClientName().equals(traderName))
-                wishList.remove(entry.getKey());
-        }
+    private Order recoveredOrder(Item item, MarketJournal.Entry entry) {
+        // No Trader object until the trader registers again
+        TraderSession session = recovered.computeIfAbsent(entry.traderName, name -> new TraderSession(name, null));
+        Order.advanceSequence(entry.seq);
+        return new Order(item, session, entry.seq);
+    }
 
-        // Remove the trader from the market
-        traders.remove(traderName);
-        System.out.println("Trader " + traderName + " unregistered from the market.");
+    @Override
+    public void heartbeat(Trader trader) throws RemoteException, RejectedException {
+        record(metrics.heartbeat, () -> session(trader));
+    }
+
+    private void removeOrders(TraderSession session) {
+        session.close(); // Nothing queued for it from now on
+        orderBook.removeTrader(session);
+        notifier.forget(session);
+        feed.unsubscribe(session);
+        admission.forget(session);
+    }
+
+    /**
+     * Removes the traders which did not show up for too long (crashed...) with their items and wishes
+     */
+    private void removeExpiredTraders() {
+        try {
+            for (TraderSession session : traders.removeExpired()) {
+                removeOrders(session);
+                LOG.info("Trader {} removed from the market : lease expired.", session.getName());
+            }
+        } catch (RuntimeException e) {
+            // Keep the reaper alive
+            LOG.error("Lease reaper failed : {}", e);
+        }
     }
 
     @Override
     public void sell(Item itemToSell, Trader trader) throws RemoteException, RejectedException {
-        // Trader registered on the market ?
-        if (!traders.contains(trader.getClientName()))
-            throw new RejectedException("You are not registered on the market");
+        sell(itemToSell, trader, null);
+    }
+
+    @Override
+    public void sell(Item itemToSell, Trader trader, String requestId) throws RemoteException, RejectedException {
+        record(metrics.sell, () -> {
+            // Trader registered on the market ?
+            TraderSession session = session(trader);
+            admitted(session, () -> {
+                String key = requestKey("sell", session, requestId);
+                once(key, () -> {
+                    // Item to sell already on the market ?
+                    if (orderBook.containsItem(itemToSell))
+                        throw new RejectedException(RejectedException.ALREADY_ON_MARKET,
+                                "Item " + itemToSell + " already on the market.");
+
+                    sell(itemToSell, session, bankobj.getAccount(session.getName()), key);
+                });
+            });
+        });
+    }
 
-        // Item to sell already on the market ?
-        if (items.containsKey(itemToSell))
-            throw new RejectedException("Item " + itemToSell + " already on the market.");
+    @Override
+    public ItemResult[] sellAll(List<Item> itemsToSell, Trader trader) throws RemoteException,
+            RejectedException {
+        return record(metrics.sellAll, () -> {
+            // Registration and account checked once for the whole batch
+            TraderSession session = session(trader);
+            return admitted(session, () -> {
+                Account account = bankobj.getAccount(session.getName());
+
+                ItemResult[] results = new ItemResult[itemsToSell.size()];
+                int i = 0;
+                for (Item itemToSell : itemsToSell) {
+                    try {
+                        sell(itemToSell, session, account, null);
+                        results[i] = ItemResult.done(itemToSell);
+                    } catch (RejectedException e) {
+                        metrics.sellAll.rejectedItem(e.getReason());
+                        results[i] = ItemResult.rejected(itemToSell, e.getMessage());
+                    }
+                    i++;
+                }
+                return results;
+            });
+        });
+    }
+
+    /**
+     * @param key request key of the call (see once), null if none
+     */
+    private void sell(Item itemToSell, TraderSession session, Account account, String key) throws RejectedException,
+            RemoteException {
+        String traderName = session.getName();
+        checkName(itemToSell.getName(), "item");
+        checkOwned(itemToSell);
 
         // Get an account ?
-        Account account = bankobj.getAccount(trader.getClientName());
         if (account == null)
-            throw new RejectedException("You cannot sell the item " + itemToSell  +
+            throw new RejectedException(RejectedException.NO_ACCOUNT, "You cannot sell the item " + itemToSell  +
                     " : you do not get an account at bank " + bankname);
 
-        // Yes
-        items.put(itemToSell, trader);
-        System.out.println(itemToSell + " puts on the market by " + trader.getClientName());
+        // Yes : sold at once to a wish, or on the market
+        if (engine != null) {
+            if (engine.sell(new Order(itemToSell, session), key))
+                LOG.info("{} sold at once by {}", itemToSell, traderName);
+            else
+                LOG.info("{} puts on the market by {}", itemToSell, traderName);
+            return;
+        }
 
-        //Debugging
-        for (Map.Entry<Item, Trader> entry : wishList.entrySet()) {
-            System.out.println("Wish from " + entry.getValue().getClientName() +
-                    " : " + entry.getKey());
+        // Its payment in doubt : still sold, or back on the market
+        Order order = new Order(itemToSell, session);
+        Order previous = payments.containsItem(itemToSell) ? order : orderBook.putItem(order);
+        if (previous == order && session.isClosed())
+            throw session.closedException();
+        if (previous != null)
+            throw new RejectedException(RejectedException.ALREADY_ON_MARKET,
+                    "Item " + itemToSell + " already on the market.");
+        LOG.info("{} puts on the market by {}", itemToSell, traderName);
+
+        //Debugging : only the wishes on that name (-Dlog.level=DEBUG)
+        if (LOG.isDebugEnabled()) {
+            for (Order wish : orderBook.wishesFor(itemToSell.getName()).values()) {
+                LOG.debug("Wish from {} : {}", wish.getTraderName(), wish.getItem());
+            }
         }
 
 
         // Check if some buyers have placed a wish on that itemToSell
-        for (Map.Entry<Item, Trader> entry : wishList.entrySet()) {
-            //System.out.println("[DEBUG] " + itemToSell.compareTo(entry.getKey()));
-            if ((itemToSell.compareTo(entry.getKey()) <= 0) &&
-                    (entry.getKey().getName().equals(itemToSell.getName()))) {
-                // Send callback
-                entry.getValue().callback(itemToSell + " available on the market");
-
-                // Remove its wish ?
-                wishList.remove(entry.getKey());
-            }
+        // Only the wishes on the same name with a price >= the selling price
+        for (Order wish : orderBook.wishesMatching(itemToSell).values()) {
+            // Remove its wish ? (only once if several sellers match it at the same time)
+            if (!orderBook.removeWish(wish))
+                continue;
+
+            // Send callback (asynchronously)
+            notifier.post(wish.getSession(), itemToSell + " available on the market");
         }
     }
 
     @Override
     public void buy(Item itemToBuy, Trader trader) throws RemoteException, RejectedException,
             bank.RejectedException {
-        // Trader registered on the market ?
-        if (!traders.contains(trader.getClientName()))
-            throw new RejectedException("You are not registered on the market");
+        buy(itemToBuy, trader, null);
+    }
 
+    @Override
+    public void buy(Item itemToBuy, Trader trader, String requestId) throws RemoteException, RejectedException,
+            bank.RejectedException {
+        record(metrics.buy, () -> {
+            // Trader registered on the market ?
+            TraderSession session = session(trader);
+            admitted(session, () -> {
+                String key = requestKey("buy", session, requestId);
+                once(key, () -> buy(itemToBuy, session, key));
+            });
+        });
+    }
 
-        if (!items.containsKey(itemToBuy))
-            throw new RejectedException("Item " + itemToBuy + " no longer on the market.");
+    @Override
+    public ItemResult[] buyAll(List<Item> itemsToBuy, Trader trader) throws RemoteException,
+            RejectedException {
+        return record(metrics.buyAll, () -> {
+            // Registration checked once for the whole batch
+            TraderSession session = session(trader);
+            return admitted(session, () -> {
+                ItemResult[] results = new ItemResult[itemsToBuy.size()];
+                int i = 0;
+                for (Item itemToBuy : itemsToBuy) {
+                    try {
+                        buy(itemToBuy, session, null);
+                        results[i] = ItemResult.done(itemToBuy);
+                    } catch (RejectedException e) {
+                        metrics.buyAll.rejectedItem(e.getReason());
+                        results[i] = ItemResult.rejected(itemToBuy, e.getMessage());
+                    } catch (bank.RejectedException e) {
+                        metrics.buyAll.rejectedItem(e.getReason());
+                        results[i] = ItemResult.rejected(itemToBuy, e.getMessage());
+                    }
+                    i++;
+                }
+                return results;
+            });
+        });
+    }
 
-        // Get an account ?
-        Account accountBuyer = bankobj.getAccount(trader.getClientName());
-        if (accountBuyer == null)
-            throw new RejectedException("You cannot buy the item " + itemToBuy +
-                    " : you do not get an account at bank " + bankname);
+    /**
+     * @param key request key of the call (see once), null if none : the transfer id of the payment
+     */
+    private void buy(Item itemToBuy, TraderSession session, String key) throws RemoteException, RejectedException,
+            bank.RejectedException {
+        String traderName = session.getName();
+        checkOwned(itemToBuy);
 
-        // Enough money ?
-        if (accountBuyer.getBalance() < itemToBuy.getPrice())
-            throw new RejectedException("You cannot afford to buy this item : " + itemToBuy);
+        // Sent again while its payment was in doubt ? => outcome of that payment, no second one
+        if (payments.settle(key) != PaymentsInDoubt.Settled.NONE) {
+            LOG.info("{} bought by {}", itemToBuy, traderName);
+            return;
+        }
 
-        // Yes
-        Account accountSeller = bankobj.getAccount(items.get(itemToBuy).getClientName());
-        accountBuyer.withdraw(itemToBuy.getPrice());
-        accountSeller.deposit(itemToBuy.getPrice());
-        Trader seller = items.remove(itemToBuy);
-        seller.callback(itemToBuy + " has been sold");
-        System.out.println(itemToBuy + " bought by " + trader.getClientName());
+        // Take the item off the market first => only one buyer can pay for it
+        Order sale = orderBook.getItem(itemToBuy);
+        if (sale == null || !orderBook.removeItem(sale))
+            throw new RejectedException(RejectedException.NOT_ON_MARKET,
+                    "Item " + itemToBuy + " no longer on the market.");
+
+        // Pay : one call, checked and done atomically by the bank, once for the call
+        String transferId = transferId(key);
+        try {
+            bankobj.transfer(traderName, sale.getTraderName(), itemToBuy.getPrice(), transferId);
+        } catch (bank.RejectedException e) {
+            // Nothing has been paid (no account, not enough money...) => back on the market
+            putBack(sale);
+            throw e;
+        } catch (RemoteException e) {
+            // Maybe paid (answer lost, transfer finished later by the bank) : neither sold again nor put back
+            // until the bank tells. Sent again by the market, or by the buyer (same request id => same transfer)
+            payments.add(key, transferId, traderName, sale.getTraderName(), itemToBuy, new PaymentsInDoubt.Outcome() {
+                @Override
+                public void paid() {
+                    notifier.post(sale.getSession(), itemToBuy + " has been sold");
+                    notifier.post(session, "Your payment of " + itemToBuy + " went through : bought");
+                    LOG.info("{} bought by {}", itemToBuy, traderName);
+                }
+
+                @Override
+                public Exception rejected(bank.RejectedException r) {
+                    putBack(sale);
+                    notifier.post(session, "Your payment of " + itemToBuy + " failed : " + r.getMessage());
+                    return r;
+                }
+            });
+            throw e;
+        }
+
+        notifier.post(sale.getSession(), itemToBuy + " has been sold");
+        LOG.info("{} bought by {}", itemToBuy, traderName);
+    }
+
+    // An item taken off the market whose payment failed : matched again by the engine (wishes placed meanwhile)
+    private void putBack(Order sale) {
+        if (engine != null)
+            engine.restore(sale);
+        else if (!sale.getSession().isClosed()) // Seller gone meanwhile => its orders are removed
+            orderBook.putItem(new Order(sale.getItem(), sale.getSession()));
     }
 
 
     @Override
     public void wish(Item item, Trader trader) throws RemoteException, RejectedException,
             bank.RejectedException {
-        // Trader registered on the market ?
-        if (!traders.contains(trader.getClientName()))
-            throw new RejectedException("You are not registered on the market");
+        wish(item, trader, null);
+    }
+
+    @Override
+    public void wish(Item item, Trader trader, String requestId) throws RemoteException, RejectedException,
+            bank.RejectedException {
+        record(metrics.wish, () -> {
+            // Trader registered on the market ?
+            TraderSession session = session(trader);
+            admitted(session, () -> {
+                String key = requestKey("wish", session, requestId);
+                once(key, () -> wish(item, session, key));
+            });
+        });
+    }
+
+    @Override
+    public ItemResult[] wishAll(List<Item> items, Trader trader) throws RemoteException,
+            RejectedException {
+        return record(metrics.wishAll, () -> {
+            // Registration checked once for the whole batch
+            TraderSession session = session(trader);
+            return admitted(session, () -> {
+                ItemResult[] results = new ItemResult[items.size()];
+                int i = 0;
+                for (Item item : items) {
+                    try {
+                        wish(item, session, null);
+                        results[i] = ItemResult.done(item);
+                    } catch (RejectedException e) {
+                        metrics.wishAll.rejectedItem(e.getReason());
+                        results[i] = ItemResult.rejected(item, e.getMessage());
+                    } catch (bank.RejectedException e) {
+                        metrics.wishAll.rejectedItem(e.getReason());
+                        results[i] = ItemResult.rejected(item, e.getMessage());
+                    }
+                    i++;
+                }
+                return results;
+            });
+        });
+    }
 
-        // Already did a wish for that item ?
-        for (Map.Entry<Item, Trader> entry : wishList.entrySet()) {
-            if ((entry.getKey().getName().equals(item.getName())) &&
-                    (entry.getValue().equals(trader)))
-                throw new RejectedException("You already placed a wish on " + item + " .");
+    /**
+     * @param key request key of the call (see once), null if none
+     */
+    private void wish(Item item, TraderSession session, String key) throws RejectedException,
+            bank.RejectedException, RemoteException {
+        String traderName = session.getName();
+        checkName(item.getName(), "item");
+        checkOwned(item);
+
+        // Buys at once a matching item, or placed
+        if (engine != null) {
+            if (engine.wish(new Order(item, session), key))
+                LOG.info("Wish from {} : {} bought at once", traderName, item);
+            else
+                LOG.info("Wish from {} : {}", traderName, item);
+            return;
         }
 
+        // Already did a wish for that item ? Only the own wishes of that trader
+        if (orderBook.hasWished(traderName, item.getName()))
+            throw new RejectedException(RejectedException.ALREADY_WISHED,
+                    "You already placed a wish on " + item + " .");
+
         // Someone else ?
-        if (wishList.containsKey(item))
-            throw new RejectedException("Someone else already placed the same wish on " + item + " .");
+        Order order = new Order(item, session);
+        Order previous = orderBook.putWish(order);
+        if (previous == order)
+            throw session.closedException();
+        if (previous != null)
+            throw new RejectedException(RejectedException.ALREADY_WISHED,
+                    "Someone else already placed the same wish on " + item + " .");
+
+        LOG.info("Wish from {} : {}", traderName, item);
+    }
+
+    /**
+     * @throws RejectedException if the name is missing, or too long to be saved (MarketJournal)
+     */
+    private static void checkName(String name, String kind) throws RejectedException {
+        // 3 bytes at most per char in UTF-8 : only encoded when it may be too long
+        if (name == null || (name.length() > MarketJournal.MAX_NAME_BYTES / 3
+                && name.getBytes(StandardCharsets.UTF_8).length > MarketJournal.MAX_NAME_BYTES))
+            throw new RejectedException(RejectedException.ILLEGAL_ARGUMENT, "Illegal " + kind + " name : "
+                    + ((name == null) ? "none" : "longer than " + MarketJournal.MAX_NAME_BYTES + " bytes") + ".");
+    }
+
+    /**
+     * @throws RejectedException if the item name belongs to another shard (client with another number of shards)
+     */
+    private void checkOwned(Item item) throws RejectedException {
+        if (shards > 1 && ShardedMarket.shardOf(item.getName(), shards) != shard)
+            throw new RejectedException(RejectedException.WRONG_SHARD, "Item " + item + " does not belong to shard "
+                    + shard + " of " + shards + ".");
+    }
+
+    /**
+     * Gets the session of a registered trader, without calling the trader back
+     * @param trader
+     * @return the session created when the trader registered
+     * @throws RejectedException if the trader is not registered on the market
+     */
+    private TraderSession session(Trader trader) throws RejectedException {
+        // Any operation renews the lease
+        return traders.lookup(trader);
+    }
+
+    // Body of a remote call
+    private interface Call<T, X extends Exception> {
+        T run() throws RemoteException, RejectedException, X;
+    }
+
+    private interface Action<X extends Exception> {
+        void run() throws RemoteException, RejectedException, X;
+    }
 
+    /**
+     * Runs the body of a remote call, recording its latency and its outcome in the metrics of the operation
+     */
+    private static <T, X extends Exception> T record(OperationStats stats, Call<T, X> call)
+            throws RemoteException, RejectedException, X {
+        long start = System.nanoTime();
+        try {
+            T result = call.run();
+            stats.succeeded(start);
+            return result;
+        } catch (Exception e) {
+            if (e instanceof RejectedException)
+                stats.rejected(start, ((RejectedException) e).getReason());
+            else if (e instanceof bank.RejectedException)
+                stats.rejected(start, ((bank.RejectedException) e).getReason());
+            else
+                stats.failed(start);
+            throw e;
+        }
+    }
 
-        wishList.put(item, trader);
-        System.out.println("Wish from " + trader.getClientName() + " : " + item);
+    private static <X extends Exception> void record(OperationStats stats, Action<X> action)
+            throws RemoteException, RejectedException, X {
+        record(stats, () -> {
+            action.run();
+            return null;
+        });
+    }
 
-        /*System.out.println();
-        for (Map.Entry<Item, Trader> entry : wishList.entrySet()) {
-            System.out.println("Wish from " + entry.getValue().getClientName() + " : " + entry.getKey());
-        }*/
+    /**
+     * Runs a call once admitted (AdmissionControl), then gives its permit back
+     * @param session the trader calling, null if the call is not made by a trader
+     * @throws RejectedException OVERLOADED if the trader or the market is over its limits (the call has not run)
+     */
+    private <T, X extends Exception> T admitted(TraderSession session, Call<T, X> call)
+            throws RemoteException, RejectedException, X {
+        AdmissionControl.Permit permit = admission.admit(session);
+        try {
+            return call.run();
+        } finally {
+            permit.close();
+        }
+    }
+
+    private <X extends Exception> void admitted(TraderSession session, Action<X> action)
+            throws RemoteException, RejectedException, X {
+        admitted(session, () -> {
+            action.run();
+            return null;
+        });
+    }
+
+    /**
+     * @param operation name of the call (a request id is only valid for one operation)
+     * @param session trader calling (a request id is only valid for one trader)
+     * @param requestId id chosen by the trader
+     * @return the key of the call in the dedup cache, null if no request id
+     */
+    private static String requestKey(String operation, TraderSession session, String requestId) {
+        return (requestId == null) ? null : session.getName() + "/" + operation + "/" + requestId;
+    }
+
+    /**
+     * Transfer id of a payment made by a call : the same for the call sent again (the bank pays once),
+     * a new one if the call has no request id
+     * @param key request key of the call, null if none
+     */
+    static String transferId(String key) {
+        if (key == null)
+            return UUID.randomUUID().toString();
+        // Too long for the bank : same id for the same key ('/' in the keys, never in a UUID)
+        if (key.length() > Bank.MAX_TRANSFER_ID)
+            return UUID.nameUUIDFromBytes(key.getBytes(StandardCharsets.UTF_8)).toString();
+        return key;
+    }
+
+    /**
+     * Runs a call once for its request id : a duplicate gets the outcome of the first call.
+     * Inside the admission : a call rejected as overloaded has not run, its duplicate may run.
+     * @param key request key of the call (requestKey), null = always run
+     */
+    @SuppressWarnings("unchecked")
+    private <X extends Exception> void once(String key, Action<X> action)
+            throws RemoteException, RejectedException, X {
+        Exception failure = dedup.run(key, action::run);
+        if (failure == null)
+            return;
+        if (failure instanceof RejectedException)
+            throw (RejectedException) failure;
+        if (failure instanceof RemoteException)
+            throw (RemoteException) failure;
+        if (failure instanceof RuntimeException)
+            throw (RuntimeException) failure;
+        // Thrown by the action of the same operation => X
+        throw (X) failure;
+    }
+
+    /**
+     * @return the dispatcher sending the callbacks to the traders (and its counters)
+     */
+    NotificationDispatcher getNotifier() {
+        return notifier;
     }
 
     @Override
     public String getAllItems() throws RemoteException {
+        long start = System.nanoTime();
+        AdmissionControl.Permit permit;
+        try {
+            permit = admission.admit(null);
+        } catch (RejectedException e) {
+            // No RejectedException in the console listing
+            metrics.getAllItems.rejected(start, e.getReason());
+            throw new RemoteException(e.getMessage(), e);
+        }
+        try {
+            String listing = listing(orderBook.items());
+            metrics.getAllItems.succeeded(start);
+            return listing;
+        } finally {
+            permit.close();
+        }
+    }
+
+    /**
+     * Text listing of items (console)
+     */
+    static String listing(Iterable<Item> items) {
         StringBuilder sb  = new StringBuilder();
         sb.append(" ------------------------------------\n");
         sb.append("|-------- ITEMS ON THE MARKET -------|\n");
         sb.append(" ------------------------------------\n\n");
-        if (items.size() == 0)
+        if (!items.iterator().hasNext())
             sb.append("No item available\n");
-        for (Item i : items.keySet())
+        for (Item i : items)
             sb.append(i.toString() + "\n");
         sb.append("-------------------------------------");
-        //return items.keySet().toArray(new String[items.keySet().size()]);
         return sb.toString();
     }
 
+    @Override
+    public MarketUpdate subscribe(Trader trader) throws RemoteException, RejectedException {
+        return record(metrics.subscribe, () -> {
+            TraderSession session = session(trader);
+            if (!(trader instanceof MarketFeedListener))
+                throw new RejectedException(RejectedException.ILLEGAL_ARGUMENT,
+                        "Trader " + session.getName() + " cannot receive the market feed");
+            return admitted(session, () -> {
+                MarketUpdate snapshot = feed.subscribe(session, (MarketFeedListener) trader);
+                LOG.info("Trader {} subscribed to the market feed at update {}", session.getName(),
+                        snapshot.getSeq());
+                return snapshot;
+            });
+        });
+    }
+
+    @Override
+    public void unsubscribe(Trader trader) throws RemoteException, RejectedException {
+        record(metrics.unsubscribe, () -> feed.unsubscribe(session(trader)));
+    }
+
+    @Override
+    public ItemPage getItems(String namePrefix, float minPrice, float maxPrice, Item cursor, int pageSize)
+            throws RemoteException, RejectedException {
+        return record(metrics.getItems, () -> {
+            // Not made by a trader : only the limits of the market
+            return admitted(null, () -> {
+                return items(namePrefix, minPrice, maxPrice, cursor, pageSize);
+            });
+        });
+    }
+
+    private ItemPage items(String namePrefix, float minPrice, float maxPrice, Item cursor, int pageSize)
+            throws RejectedException {
+        if (pageSize < 1)
+            throw new RejectedException(RejectedException.ILLEGAL_ARGUMENT, "Illegal page size : " + pageSize);
+        if (Float.isNaN(minPrice) || Float.isNaN(maxPrice) || minPrice > maxPrice)
+            throw new RejectedException(RejectedException.ILLEGAL_ARGUMENT,
+                    "Illegal price range : [" + minPrice + ", " + maxPrice + "]");
+        int limit = Math.min(pageSize, MAX_PAGE_SIZE);
+
+        // One more item => do we need a next page ?
+        List<Item> found = orderBook.items(namePrefix, minPrice, maxPrice, cursor, limit + 1);
+        if (found.size() <= limit)
+            return new ItemPage(found.toArray(new Item[0]), null);
+        Item[] page = found.subList(0, limit).toArray(new Item[0]);
+        return new ItemPage(page, page[limit - 1]);
+    }
+
 
     public static void main(String[] args) {
         if (args.length > 1 || (args.length > 0 && args[0].equalsIgnoreCase("-h"))) {
@@ -230,12 +793,20 @@ public class MarketServer extends UnicastRemoteObject implements Market {
                 LocateRegistry.createRegistry(registryPortNumber);
             }
 
+            MarketServer market = new MarketServer(BANK, DEFAULT_LOCAL_REGISTRY_PORT_NUMBER, SHARD, SHARDS);
+            // A shard is bound as Market-<shard>
+            String marketName = (SHARDS > 1) ? ShardedMarket.shardName(DEFAULT_MARKET_NAME, SHARD)
+                    : DEFAULT_MARKET_NAME;
+            if (!JOURNAL_DIR.isEmpty())
+                market.recover(new MarketJournal(Paths.get(JOURNAL_DIR, marketName), SNAPSHOT_EVERY));
+
             // Bind the market in the RMIRegistry
-            Naming.rebind("rmi://localhost:" + registryPortNumber + "/" + DEFAULT_MARKET_NAME,
-                    new MarketServer(BANK, DEFAULT_LOCAL_REGISTRY_PORT_NUMBER));
+            Naming.rebind("rmi://localhost:" + registryPortNumber + "/" + marketName, market);
+            if (NIO_PORT > 0)
+                new MarketNioServer(market, NIO_PORT).start();
 
-        } catch (RemoteException | MalformedURLException re) {
-            System.err.println(re);
+        } catch (IOException e) {
+            System.err.println(e);
             System.exit(1);
         }
     }
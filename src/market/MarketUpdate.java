@@ -0,0 +1,173 @@
+package market;
+
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.Externalizable;
+import java.io.IOException;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Changes of the items on the market (send by value), pushed to the subscribed traders.
+ *
+ * Updates are numbered 1, 2, 3... : a trader receiving update n + 1 after update n has
+ * seen every change. A snapshot (answer to Market.subscribe) holds all the items on the
+ * market after the update of the same number.
+ * Items are sorted by name then price.
+ *
+ * A sharded market numbers the updates of each shard on its own : an update tells its
+ * shard, and a snapshot the number of the last update of each shard it includes.
+ */
+public class MarketUpdate implements Externalizable {
+    private static final long serialVersionUID = 6613917262311553428L;
+
+    private static final Item[] NONE = new Item[0];
+
+    // Not final : set by readExternal (never changed after)
+    private int shard;
+    private long seq;
+    private boolean snapshot;
+    private long[] seqs; // Snapshot : last update of each shard, -1 = shard not included
+    private Item[] added;
+    private Item[] removed;
+
+    /**
+     * Only for deserialization
+     */
+    public MarketUpdate() {
+    }
+
+    private MarketUpdate(int shard, long seq, long[] seqs, Item[] added, Item[] removed) {
+        this.shard = shard;
+        this.seq = seq;
+        this.snapshot = seqs != null;
+        this.seqs = seqs;
+        this.added = added;
+        this.removed = removed;
+    }
+
+    static MarketUpdate delta(int shard, long seq, Item[] added, Item[] removed) {
+        return new MarketUpdate(shard, seq, null, added, removed);
+    }
+
+    /**
+     * @param shard this shard, among shards
+     * @param seq last update of this shard included
+     */
+    static MarketUpdate snapshot(int shard, int shards, long seq, Item[] items) {
+        long[] seqs = new long[shards];
+        Arrays.fill(seqs, -1);
+        seqs[shard] = seq;
+        return new MarketUpdate(shard, seq, seqs, items, NONE);
+    }
+
+    /**
+     * Snapshot of a sharded market, from the snapshots of its shards
+     */
+    static MarketUpdate merge(MarketUpdate... snapshots) {
+        int shards = 0;
+        for (MarketUpdate snapshot : snapshots)
+            shards = Math.max(shards, snapshot.seqs.length);
+        long[] seqs = new long[shards];
+        Arrays.fill(seqs, -1);
+        List<Item> items = new ArrayList<>();
+        long seq = 0;
+        for (MarketUpdate snapshot : snapshots) {
+            for (int i = 0; i < snapshot.seqs.length; i++) {
+                if (snapshot.seqs[i] >= 0)
+                    seqs[i] = snapshot.seqs[i];
+            }
+            Collections.addAll(items, snapshot.added);
+            seq += snapshot.seq;
+        }
+        Collections.sort(items);
+        return new MarketUpdate(0, seq, seqs, items.toArray(new Item[0]), NONE);
+    }
+
+    /**
+     * @return the shard which sent this update (0 if the market is not sharded)
+     */
+    public int getShard() {
+        return shard;
+    }
+
+    /**
+     * @return number of the update in its shard (snapshot : sum over the shards included)
+     */
+    public long getSeq() {
+        return seq;
+    }
+
+    /**
+     * @return snapshot : last update included for each shard, -1 if that shard is not included
+     */
+    long[] getSeqs() {
+        return seqs;
+    }
+
+    /**
+     * @return true if getAdded() holds all the items on the market
+     */
+    public boolean isSnapshot() {
+        return snapshot;
+    }
+
+    public Item[] getAdded() {
+        return added;
+    }
+
+    public Item[] getRemoved() {
+        return removed;
+    }
+
+    @Override
+    public void writeExternal(ObjectOutput out) throws IOException {
+        write(out);
+    }
+
+    @Override
+    public void readExternal(ObjectInput in) throws IOException {
+        read(in);
+    }
+
+    // Same encoding in the binary protocol (MarketProtocol)
+    void write(DataOutput out) throws IOException {
+        out.writeInt(shard);
+        out.writeLong(seq);
+        out.writeBoolean(snapshot);
+        if (snapshot) {
+            out.writeInt(seqs.length);
+            for (long s : seqs)
+                out.writeLong(s);
+        }
+        ItemPage.writeItems(out, added);
+        ItemPage.writeItems(out, removed);
+    }
+
+    void read(DataInput in) throws IOException {
+        shard = in.readInt();
+        seq = in.readLong();
+        snapshot = in.readBoolean();
+        if (snapshot) {
+            int shards = in.readInt();
+            if (shards < 0 || shards > MarketProtocol.MAX_FRAME / 8)
+                throw new IOException("Illegal number of shards : " + shards);
+            seqs = new long[shards];
+            for (int i = 0; i < seqs.length; i++)
+                seqs[i] = in.readLong();
+        }
+        added = ItemPage.readItems(in);
+        removed = ItemPage.readItems(in);
+    }
+
+    @Override
+    public String toString() {
+        return (snapshot ? "Snapshot " + Arrays.toString(seqs) : "Update " + shard + "/" + seq)
+                + " : +" + added.length + " -" + removed.length;
+    }
+}
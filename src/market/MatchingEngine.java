@@ -0,0 +1,389 @@
+package market;
+
+
+import bank.Bank;
+import log.Logger;
+
+import java.rmi.RemoteException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+import static bank.RejectedException.INSUFFICIENT_FUNDS;
+import static bank.RejectedException.NO_ACCOUNT;
+
+/**
+ * Continuous matching of the items on sale against the wishes.
+ *
+ * A wish is a standing bid : a limit order to buy an item of that name at its price
+ * or less. A new item is sold at once to the best matching wish (highest price first,
+ * a single wish per name and price), and a new wish buys at once the cheapest matching
+ * item. The buyer pays through the bank in the same step : no notification, no race to buy.
+ * Only what is not matched stays on the market.
+ *
+ * Orders of a same item name are matched one at a time (sequencer of the name) :
+ * two sellers cannot sell to the same wish. Different names are matched in parallel
+ * (but for the few names sharing a sequencer).
+ * The sequencer is not held while the bank is called : the matched orders are off the
+ * market meanwhile, and put back through the engine if the payment is rejected. A payment
+ * whose outcome is unknown (RemoteException) keeps them off the market until the bank tells
+ * (PaymentsInDoubt) : never sold nor bought twice.
+ */
+class MatchingEngine {
+    private static final Logger LOG = Logger.getLogger(MatchingEngine.class);
+
+    private final OrderBook orderBook;
+    private final Bank bank;
+    private final NotificationDispatcher notifier;
+    private final PaymentsInDoubt payments;
+
+    // Counters
+    private final LongAdder matches = new LongAdder();
+    private final LongAdder settlementsRejected = new LongAdder();
+    // Orders off the market while they are paid (or their payment in doubt, for the wishes) : the item sold,
+    // and the trader + name of the wish buying => the same item cannot be sold twice, nor a trader wish twice
+    // on a name, meanwhile
+    private final Set<Item> itemsSettling = ConcurrentHashMap.newKeySet();
+    private final Set<String> wishesSettling = ConcurrentHashMap.newKeySet();
+
+    MatchingEngine(OrderBook orderBook, Bank bank, NotificationDispatcher notifier, PaymentsInDoubt payments) {
+        this.orderBook = orderBook;
+        this.bank = bank;
+        this.notifier = notifier;
+        this.payments = payments;
+    }
+
+    /**
+     * Sells an item to the best matching wish, or puts it on the market
+     * @param ask the item and its seller (who has a bank account)
+     * @param key request key of the sell (MarketServer), null if none : transfer ids of its payments
+     * @return true if the item has been sold, false if it is now on the market
+     * @throws RejectedException if the same item is already on the market, the bank cannot pay the seller,
+     *         or the seller left the market meanwhile
+     * @throws RemoteException if the bank failed : the item is neither sold nor on the market until the bank
+     *         tells (payment in doubt, see PaymentsInDoubt)
+     */
+    boolean sell(Order ask, String key) throws RejectedException, RemoteException {
+        // Sent again while its payment was in doubt ? => outcome of that payment, no second one
+        PaymentsInDoubt.Settled settled;
+        try {
+            settled = payments.settle(key);
+        } catch (bank.RejectedException e) {
+            // The outcomes of a sell reject it with a market rejection
+            throw new RejectedException(RejectedException.OTHER, e.getMessage());
+        }
+        if (settled != PaymentsInDoubt.Settled.NONE)
+            return settled == PaymentsInDoubt.Settled.PAID;
+
+        Item item = ask.getItem();
+        Object sequencer = orderBook.sequencer(item.getName());
+        Order bid;
+        synchronized (sequencer) {
+            if (orderBook.containsItem(item) || itemsSettling.contains(item) || payments.containsItem(item))
+                throw new RejectedException(RejectedException.ALREADY_ON_MARKET,
+                        "Item " + item + " already on the market.");
+            bid = claimWish(ask);
+            if (bid == null) {
+                if (orderBook.putItem(ask) == ask)
+                    throw ask.getSession().closedException();
+                return false;
+            }
+            itemsSettling.add(item);
+        }
+        boolean onMarket = false;
+        try {
+            while (true) {
+                // Paid without the sequencer : the other orders of that name are matched meanwhile
+                String transferId = transferId(bid, ask, key);
+                try {
+                    settle(bid, ask, transferId);
+                    return true;
+                } catch (bank.RejectedException e) {
+                    if (!buyerCannotPay(e, bid)) {
+                        // The seller cannot be paid : the wish goes on, the sell is rejected
+                        restoreWish(bid);
+                        throw sellRejected(item, e);
+                    }
+                    // The buyer cannot pay : its wish is dropped, next one
+                    dropWish(bid, item, e);
+                } catch (RemoteException | RuntimeException e) {
+                    // Maybe paid : both orders stay off the market until the bank tells
+                    inDoubt(bid, ask, key, transferId, false);
+                    throw e;
+                }
+
+                synchronized (sequencer) {
+                    bid = claimWish(ask);
+                    if (bid == null) {
+                        // On the market from now on : may be bought and settled by a wish at once
+                        itemsSettling.remove(item);
+                        onMarket = true;
+                        if (orderBook.putItem(ask) == ask)
+                            throw ask.getSession().closedException();
+                        return false;
+                    }
+                }
+            }
+        } finally {
+            // In doubt : the item is kept off the market by the payments in doubt
+            if (!onMarket)
+                itemsSettling.remove(item);
+        }
+    }
+
+    /**
+     * Buys the cheapest matching item, or places the wish.
+     * An item whose seller cannot be paid is set aside : the next matching item is tried, and the items
+     * set aside go back on the market once the wish has bought or is placed (without matching them again).
+     * @param bid the wish and its trader
+     * @param key request key of the wish (MarketServer), null if none : transfer ids of its payments
+     * @return true if an item has been bought, false if the wish is now placed
+     * @throws RejectedException if the trader already placed a wish on that name, the same wish is placed,
+     *         or the trader left the market meanwhile
+     * @throws bank.RejectedException if the trader cannot pay the matching item (the wish is not placed)
+     * @throws RemoteException if the bank failed : the wish and the item matched are off the market until
+     *         the bank tells (payment in doubt, see PaymentsInDoubt)
+     */
+    boolean wish(Order bid, String key) throws RejectedException, bank.RejectedException, RemoteException {
+        // Sent again while its payment was in doubt ? => outcome of that payment, no second one
+        PaymentsInDoubt.Settled settled = payments.settle(key);
+        if (settled != PaymentsInDoubt.Settled.NONE)
+            return settled == PaymentsInDoubt.Settled.PAID;
+
+        Item item = bid.getItem();
+        String wisher = wisher(bid);
+        Object sequencer = orderBook.sequencer(item.getName());
+        synchronized (sequencer) {
+            if (orderBook.hasWished(bid.getTraderName(), item.getName()) || wishesSettling.contains(wisher))
+                throw new RejectedException(RejectedException.ALREADY_WISHED,
+                        "You already placed a wish on " + item + " .");
+            wishesSettling.add(wisher);
+        }
+        List<Order> setAside = new ArrayList<>();
+        boolean inDoubt = false;
+        try {
+            while (true) {
+                Order ask;
+                synchronized (sequencer) {
+                    ask = claimItem(bid);
+                    if (ask == null) {
+                        Order previous = orderBook.putWish(bid);
+                        if (previous == bid)
+                            throw bid.getSession().closedException();
+                        if (previous != null)
+                            throw new RejectedException(RejectedException.ALREADY_WISHED,
+                                    "Someone else already placed the same wish on " + item + " .");
+                        return false;
+                    }
+                    itemsSettling.add(ask.getItem());
+                }
+                // Paid without the sequencer
+                String transferId = transferId(bid, ask, key);
+                try {
+                    settle(bid, ask, transferId);
+                    return true;
+                } catch (bank.RejectedException e) {
+                    if (buyerCannotPay(e, bid)) {
+                        // Not paid => still on sale
+                        itemsSettling.remove(ask.getItem());
+                        restore(ask);
+                        throw e;
+                    }
+                    // The seller cannot be paid : next item
+                    setAside.add(ask);
+                    notifier.post(ask.getSession(), "Your item " + ask.getItem() + " could not be sold to the wish "
+                            + item + " : " + e.getMessage());
+                } catch (RemoteException | RuntimeException e) {
+                    // Maybe paid : both orders stay off the market until the bank tells
+                    inDoubt(bid, ask, key, transferId, true);
+                    inDoubt = true;
+                    throw e;
+                } finally {
+                    // In doubt : the item is kept off the market by the payments in doubt
+                    itemsSettling.remove(ask.getItem());
+                }
+            }
+        } finally {
+            if (!inDoubt)
+                wishesSettling.remove(wisher);
+            for (Order ask : setAside)
+                putBack(ask);
+        }
+    }
+
+    /**
+     * Puts back on the market an item whose payment failed (the item was off the market meanwhile) :
+     * matched like a new sell, so that a wish placed meanwhile buys it
+     * @param ask the item and its seller
+     */
+    void restore(Order ask) {
+        if (ask.getSession().isClosed())
+            return; // Seller gone meanwhile : its orders have been removed
+        Order order = new Order(ask.getItem(), ask.getSession());
+        try {
+            sell(order, null);
+        } catch (RejectedException e) {
+            // Put again by its seller meanwhile, or the seller cannot be paid any more
+            LOG.info("{} not put back on the market : {}", ask.getItem(), e.getMessage());
+        } catch (RemoteException e) {
+            // Payment in doubt : the item waits for the bank
+            LOG.warn("{} sold again, payment in doubt : {}", ask.getItem(), e.getMessage());
+        }
+    }
+
+    // Puts back on the market an item set aside, without matching it
+    private void putBack(Order ask) {
+        synchronized (orderBook.sequencer(ask.getItem().getName())) {
+            if (!ask.getSession().isClosed())
+                orderBook.putItem(new Order(ask.getItem(), ask.getSession()));
+        }
+    }
+
+    // Takes the best matching wish (highest price first) off the market, under the sequencer
+    private Order claimWish(Order ask) {
+        for (Order bid : orderBook.wishesMatching(ask.getItem()).descendingMap().values()) {
+            if (bid.getTraderName().equals(ask.getTraderName()) || !orderBook.removeWish(bid))
+                continue; // Own wish, or removed meanwhile (trader gone)
+            wishesSettling.add(wisher(bid));
+            return bid;
+        }
+        return null;
+    }
+
+    // Takes the cheapest matching item off the market, under the sequencer
+    private Order claimItem(Order bid) {
+        for (Order ask : orderBook.itemsMatching(bid.getItem()).values()) {
+            if (ask.getTraderName().equals(bid.getTraderName()) || !orderBook.removeItem(ask))
+                continue; // Own item, or bought meanwhile
+            return ask;
+        }
+        return null;
+    }
+
+    /**
+     * Puts back a wish whose payment failed (the wish was off the market meanwhile) :
+     * matched like a new wish, so that an item put on sale meanwhile is bought
+     */
+    private void restoreWish(Order bid) {
+        wishesSettling.remove(wisher(bid));
+        if (bid.getSession().isClosed())
+            return; // Buyer gone meanwhile : its orders have been removed
+        try {
+            wish(new Order(bid.getItem(), bid.getSession()), null);
+        } catch (RejectedException e) {
+            notifier.post(bid.getSession(), "Your wish " + bid.getItem() + " has been placed by someone else"
+                    + " meanwhile. Wish removed.");
+        } catch (bank.RejectedException e) {
+            settlementsRejected.increment();
+            notifier.post(bid.getSession(), "Your wish " + bid.getItem() + " could not buy : " + e.getMessage()
+                    + ". Wish removed.");
+        } catch (RemoteException e) {
+            // Payment in doubt : the wish waits for the bank
+            LOG.warn("Wish {} of {} matched again, payment in doubt : {}", bid.getItem(), bid.getTraderName(),
+                    e.getMessage());
+        }
+    }
+
+    // Drops a wish whose buyer cannot pay
+    private void dropWish(Order bid, Item item, bank.RejectedException e) {
+        wishesSettling.remove(wisher(bid));
+        settlementsRejected.increment();
+        notifier.post(bid.getSession(), "Your wish " + bid.getItem() + " could not buy " + item
+                + " : " + e.getMessage() + ". Wish removed.");
+    }
+
+    private static RejectedException sellRejected(Item item, bank.RejectedException e) {
+        return new RejectedException(NO_ACCOUNT.equals(e.getReason())
+                ? RejectedException.NO_ACCOUNT : RejectedException.OTHER,
+                "You cannot sell the item " + item + " : " + e.getMessage());
+    }
+
+    /**
+     * Leaves a match whose payment failed remotely to the payments in doubt : the item and the wish stay
+     * off the market until the bank tells, then the match goes on, or they go back like after a rejection
+     * @param wishing true if the match was made by the wish call, false by the sell call
+     */
+    private void inDoubt(Order bid, Order ask, String key, String transferId, boolean wishing) {
+        Item item = ask.getItem();
+        payments.add(key, transferId, bid.getTraderName(), ask.getTraderName(), item,
+                new PaymentsInDoubt.Outcome() {
+                    @Override
+                    public void paid() {
+                        wishesSettling.remove(wisher(bid));
+                        sold(bid, ask);
+                    }
+
+                    @Override
+                    public Exception rejected(bank.RejectedException e) {
+                        if (buyerCannotPay(e, bid)) {
+                            dropWish(bid, item, e);
+                            restore(ask);
+                            return wishing ? e : null;
+                        }
+                        // The seller cannot be paid : the wish goes on
+                        restoreWish(bid);
+                        notifier.post(ask.getSession(), "Your item " + item + " could not be sold : "
+                                + e.getMessage());
+                        if (!wishing)
+                            return sellRejected(item, e);
+                        putBack(ask); // Set aside
+                        return null;
+                    }
+                });
+    }
+
+    /**
+     * @return true if the transfer was rejected because of the buyer (not enough money, no account),
+     *         false if because of the seller or the item
+     */
+    private boolean buyerCannotPay(bank.RejectedException e, Order bid) {
+        if (INSUFFICIENT_FUNDS.equals(e.getReason()))
+            return true;
+        if (!NO_ACCOUNT.equals(e.getReason()))
+            return false;
+        try {
+            return bank.getAccount(bid.getTraderName()) == null;
+        } catch (RemoteException r) {
+            return false; // Unknown : the wish is kept
+        }
+    }
+
+    /**
+     * Transfer id of the payment of a match : the same for the call sent again matching the same orders
+     */
+    private static String transferId(Order bid, Order ask, String key) {
+        return MarketServer.transferId((key == null) ? null : key + "/" + bid.getSeq() + "/" + ask.getSeq());
+    }
+
+    private static String wisher(Order bid) {
+        return bid.getTraderName() + '\n' + bid.getItem().getName();
+    }
+
+    /**
+     * The buyer pays the price of the item (at most the price of its wish) to the seller, once for the
+     * transfer id. Both orders are already off the market.
+     */
+    private void settle(Order bid, Order ask, String transferId) throws bank.RejectedException, RemoteException {
+        bank.transfer(bid.getTraderName(), ask.getTraderName(), ask.getItem().getPrice(), transferId);
+        sold(bid, ask);
+    }
+
+    // A match paid
+    private void sold(Order bid, Order ask) {
+        Item item = ask.getItem();
+        matches.increment();
+        notifier.post(ask.getSession(), item + " has been sold");
+        notifier.post(bid.getSession(), "You bought " + item + " (wish " + bid.getItem() + ")");
+        LOG.info("{} sold by {} to {} (wish {})", item, ask.getTraderName(), bid.getTraderName(), bid.getItem());
+    }
+
+    long getMatches() {
+        return matches.sum();
+    }
+
+    long getSettlementsRejected() {
+        return settlementsRejected.sum();
+    }
+}
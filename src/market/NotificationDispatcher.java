@@ -0,0 +1,176 @@
+package market;
+
+
+import log.Logger;
+
+import java.rmi.RemoteException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Sends the callbacks of the market to the traders, outside of the request threads.
+ * Each trader gets its own bounded queue of messages. A burst of messages waiting
+ * for the same trader is sent in a single callback.
+ * A slow or dead trader only delays its own messages : market calls return as
+ * soon as the market state is updated.
+ */
+class NotificationDispatcher {
+    private static final Logger LOG = Logger.getLogger(NotificationDispatcher.class);
+
+    /**
+     * What to do with a new message when the queue of a trader is full
+     */
+    enum OverflowPolicy {
+        DROP_NEWEST, // Keep the queued messages, forget the new one
+        DROP_OLDEST  // Forget the oldest queued message to make room for the new one
+    }
+
+    private final int capacity;
+    private final OverflowPolicy overflowPolicy;
+    // Java 17 => no virtual threads : a fixed number of daemon threads, each calling back one trader at a time.
+    // Slow traders only hold threads : the other mailboxes wait their turn (at most one task per mailbox queued)
+    private final ExecutorService executor;
+    private final Map<TraderSession, Mailbox> mailboxes = new ConcurrentHashMap<>();
+
+    // Counters (in messages)
+    private final AtomicLong queued = new AtomicLong();
+    private final AtomicLong delivered = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+
+    /**
+     * @param capacity max number of messages waiting for a trader
+     * @param overflowPolicy what to do with a new message when the queue of a trader is full
+     * @param threads max number of traders called back at the same time
+     */
+    NotificationDispatcher(int capacity, OverflowPolicy overflowPolicy, int threads) {
+        if (capacity < 1 || threads < 1)
+            throw new IllegalArgumentException("Capacity and threads must be positive : " + capacity + ", " + threads);
+        this.capacity = capacity;
+        this.overflowPolicy = overflowPolicy;
+        AtomicInteger threadNo = new AtomicInteger();
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<>(), r -> {
+                    Thread t = new Thread(r, "market-callback-" + threadNo.incrementAndGet());
+                    t.setDaemon(true);
+                    return t;
+                });
+        pool.allowCoreThreadTimeOut(true); // No thread kept while no callback
+        this.executor = pool;
+    }
+
+    /**
+     * Queues a message for a trader and returns immediately
+     * @param session the trader to call back
+     * @param message
+     */
+    void post(TraderSession session, String message) {
+        if (session.getTrader() == null) {
+            // Recovered order, its trader has not registered again => nobody to call back
+            dropped.incrementAndGet();
+            return;
+        }
+        Mailbox mailbox = mailboxes.computeIfAbsent(session, Mailbox::new);
+        if (session.isClosed()) {
+            // Trader gone (maybe forgotten while this mailbox was created) => no mailbox left behind
+            mailboxes.remove(session, mailbox);
+            dropped.incrementAndGet();
+            return;
+        }
+        mailbox.offer(message);
+    }
+
+    /**
+     * Forgets the queue of a trader leaving the market (session closed before) :
+     * messages already queued are still sent, the next ones are dropped.
+     */
+    void forget(TraderSession session) {
+        mailboxes.remove(session);
+    }
+
+    long getQueued() {
+        return queued.get();
+    }
+
+    long getDelivered() {
+        return delivered.get();
+    }
+
+    long getDropped() {
+        return dropped.get();
+    }
+
+    long getFailed() {
+        return failed.get();
+    }
+
+    /**
+     * Queue of the messages for one trader.
+     * At most one thread sends messages to a given trader at a time.
+     */
+    private class Mailbox implements Runnable {
+        private final TraderSession session;
+        private final Deque<String> pending = new ArrayDeque<>(); // guarded by this
+        private boolean scheduled = false; // guarded by this
+
+        private Mailbox(TraderSession session) {
+            this.session = session;
+        }
+
+        private void offer(String message) {
+            boolean schedule;
+            synchronized (this) {
+                if (pending.size() >= capacity) {
+                    dropped.incrementAndGet();
+                    if (overflowPolicy == OverflowPolicy.DROP_NEWEST)
+                        return;
+                    pending.pollFirst();
+                }
+                pending.addLast(message);
+                queued.incrementAndGet();
+                schedule = !scheduled;
+                scheduled = true;
+            }
+            if (schedule)
+                executor.execute(this);
+        }
+
+        @Override
+        public void run() {
+            // Coalesce everything queued so far in a single callback
+            String burst;
+            int count;
+            synchronized (this) {
+                count = pending.size();
+                burst = String.join("\n", pending);
+                pending.clear();
+            }
+
+            if (count > 0) {
+                try {
+                    session.getTrader().callback(burst);
+                    delivered.addAndGet(count);
+                } catch (RemoteException | RuntimeException e) {
+                    failed.addAndGet(count);
+                    LOG.warn("Callback to {} failed : {}", session.getName(), e.getMessage());
+                }
+            }
+
+            boolean again;
+            synchronized (this) {
+                again = !pending.isEmpty();
+                scheduled = again;
+            }
+            if (again)
+                executor.execute(this);
+        }
+    }
+}
@@ -0,0 +1,58 @@
+package market;
+
+
+import client.Trader;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * An item on sale or a wish, together with the session of the trader who placed it.
+ * Each order placed gets a unique sequence number (journal of the market).
+ */
+class Order {
+    private static final AtomicLong SEQUENCE = new AtomicLong();
+
+    private final Item item;
+    private final TraderSession session;
+    private final long seq;
+
+    Order(Item item, TraderSession session) {
+        this(item, session, SEQUENCE.incrementAndGet());
+    }
+
+    /**
+     * Same order (same sequence number), e.g. recovered or given to another session
+     */
+    Order(Item item, TraderSession session, long seq) {
+        this.item = item;
+        this.session = session;
+        this.seq = seq;
+    }
+
+    /**
+     * Next orders get sequence numbers greater than this one (recovered orders)
+     */
+    static void advanceSequence(long seq) {
+        SEQUENCE.accumulateAndGet(seq, Math::max);
+    }
+
+    long getSeq() {
+        return seq;
+    }
+
+    Item getItem() {
+        return item;
+    }
+
+    TraderSession getSession() {
+        return session;
+    }
+
+    Trader getTrader() {
+        return session.getTrader();
+    }
+
+    String getTraderName() {
+        return session.getName();
+    }
+}
@@ -0,0 +1,412 @@
+package market;
+
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Items on sale and wishes of the market, grouped by item name.
+ * Each name gets its own book with both sides ordered by price, so matching
+ * a new item only looks at the wishes placed on that name.
+ * Items and wishes are also indexed by trader name, so that removing all the
+ * orders of a trader only touches its own orders. A book and the index are changed
+ * together under the sequencer of the name : the index is never behind the book.
+ * A book is removed once empty (under the same sequencer) : the names sold once do not
+ * stay in memory.
+ */
+class OrderBook {
+
+    /**
+     * Told about every change of the book, after it is done
+     */
+    interface Listener {
+        void itemAdded(Order order);
+
+        void itemRemoved(Order order);
+
+        void wishAdded(Order order);
+
+        void wishRemoved(Order order);
+    }
+
+    private volatile Listener[] listeners = new Listener[0]; // Copied on change (rare)
+    // Sorted by name => listing of the whole market stays in the same order as before
+    private final ConcurrentSkipListMap<String, Book> books = new ConcurrentSkipListMap<>();
+    // Locks of the names (see sequencer) : a name always gets the same one, books come and go
+    private static final int SEQUENCERS = 1024; // Power of 2
+    private final Object[] sequencers = new Object[SEQUENCERS];
+    // Trader name -> its items on sale / its wishes
+    private final ConcurrentHashMap<String, Set<Item>> itemsByTrader = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, Set<Item>> wishesByTrader = new ConcurrentHashMap<>();
+    // Sizes (the sizes of the maps would need a walk through them)
+    private final LongAdder itemCount = new LongAdder();
+    private final LongAdder wishCount = new LongAdder();
+
+    /**
+     * Both sides of the market for a single item name.
+     * Items of a same book only differ by their price => Item order = price order
+     */
+    static class Book {
+        final ConcurrentSkipListMap<Item, Order> items = new ConcurrentSkipListMap<>();
+        final ConcurrentSkipListMap<Item, Order> wishes = new ConcurrentSkipListMap<>();
+    }
+
+    OrderBook() {
+        for (int i = 0; i < SEQUENCERS; i++)
+            sequencers[i] = new Object();
+    }
+
+    synchronized void addListener(Listener listener) {
+        Listener[] more = Arrays.copyOf(listeners, listeners.length + 1);
+        more[listeners.length] = listener;
+        listeners = more;
+    }
+
+    // Under the sequencer of the name : created and removed (dropEmpty) only under it
+    private Book book(String name) {
+        return books.computeIfAbsent(name, n -> new Book());
+    }
+
+    // Under the sequencer of the name
+    private void dropEmpty(String name, Book b) {
+        if (b.items.isEmpty() && b.wishes.isEmpty())
+            books.remove(name, b);
+    }
+
+    /**
+     * @return the object to lock to be alone to change or match the orders of that name
+     *         (always the same object for a name ; a few names share it)
+     */
+    Object sequencer(String name) {
+        int h = name.hashCode();
+        return sequencers[(h ^ (h >>> 16)) & (SEQUENCERS - 1)];
+    }
+
+    // Atomic for the trader : its set is created and removed (once empty) by the same calls that change it
+
+    private static void index(ConcurrentHashMap<String, Set<Item>> byTrader, Order order) {
+        byTrader.compute(order.getTraderName(), (n, own) -> {
+            if (own == null)
+                own = ConcurrentHashMap.newKeySet();
+            own.add(order.getItem());
+            return own;
+        });
+    }
+
+    private static void unindex(ConcurrentHashMap<String, Set<Item>> byTrader, Order order) {
+        byTrader.computeIfPresent(order.getTraderName(), (n, own) -> {
+            own.remove(order.getItem());
+            return own.isEmpty() ? null : own;
+        });
+    }
+
+    // Items on sale
+
+    /**
+     * @return the order already on the market for the same item, the order itself if dropped (its session
+     *         is closed), null if the order has been added
+     */
+    Order putItem(Order order) {
+        String name = order.getItem().getName();
+        Order previous;
+        synchronized (sequencer(name)) {
+            Book b = book(name);
+            previous = b.items.putIfAbsent(order.getItem(), order);
+            if (previous == null) {
+                index(itemsByTrader, order);
+                // Trader gone ? Checked once indexed : removeTrader (after close) sees the order, or it is dropped here
+                if (order.getSession().isClosed()) {
+                    b.items.remove(order.getItem(), order);
+                    unindex(itemsByTrader, order);
+                    dropEmpty(name, b);
+                    return order;
+                }
+            }
+        }
+        if (previous == null) {
+            itemCount.increment();
+            for (Listener l : listeners)
+                l.itemAdded(order);
+        }
+        return previous;
+    }
+
+    Order getItem(Item item) {
+        Book b = books.get(item.getName());
+        return (b == null) ? null : b.items.get(item);
+    }
+
+    boolean containsItem(Item item) {
+        return getItem(item) != null;
+    }
+
+    /**
+     * Removes the order only if it is still on the market
+     * @return true if this call removed it
+     */
+    boolean removeItem(Order order) {
+        String name = order.getItem().getName();
+        synchronized (sequencer(name)) {
+            Book b = books.get(name);
+            if (b == null || !b.items.remove(order.getItem(), order))
+                return false;
+            unindex(itemsByTrader, order);
+            dropEmpty(name, b);
+        }
+        itemCount.decrement();
+        for (Listener l : listeners)
+            l.itemRemoved(order);
+        return true;
+    }
+
+    // Wishes
+
+    /**
+     * @return the wish already placed on the same item, the wish itself if dropped (its session is closed),
+     *         null if the wish has been added
+     */
+    Order putWish(Order order) {
+        String name = order.getItem().getName();
+        Order previous;
+        synchronized (sequencer(name)) {
+            Book b = book(name);
+            previous = b.wishes.putIfAbsent(order.getItem(), order);
+            if (previous == null) {
+                index(wishesByTrader, order);
+                // Trader gone ? Checked once indexed : removeTrader (after close) sees the order, or it is dropped here
+                if (order.getSession().isClosed()) {
+                    b.wishes.remove(order.getItem(), order);
+                    unindex(wishesByTrader, order);
+                    dropEmpty(name, b);
+                    return order;
+                }
+            }
+        }
+        if (previous == null) {
+            wishCount.increment();
+            for (Listener l : listeners)
+                l.wishAdded(order);
+        }
+        return previous;
+    }
+
+    /**
+     * Removes the wish only if it is still placed
+     * @return true if this call removed it
+     */
+    boolean removeWish(Order order) {
+        String name = order.getItem().getName();
+        synchronized (sequencer(name)) {
+            Book b = books.get(name);
+            if (b == null || !b.wishes.remove(order.getItem(), order))
+                return false;
+            unindex(wishesByTrader, order);
+            dropEmpty(name, b);
+        }
+        wishCount.decrement();
+        for (Listener l : listeners)
+            l.wishRemoved(order);
+        return true;
+    }
+
+    /**
+     * @return the wishes placed on that name
+     */
+    NavigableMap<Item, Order> wishesFor(String name) {
+        Book b = books.get(name);
+        return (b == null) ? Collections.emptyNavigableMap() : b.wishes;
+    }
+
+    /**
+     * @return the wishes on the same name whose price is at least the price of the item
+     */
+    NavigableMap<Item, Order> wishesMatching(Item item) {
+        return wishesFor(item.getName()).tailMap(item, true);
+    }
+
+    /**
+     * @return the items on sale on the same name whose price is at most the price of the wish, cheapest first
+     */
+    NavigableMap<Item, Order> itemsMatching(Item wish) {
+        Book b = books.get(wish.getName());
+        return (b == null) ? Collections.emptyNavigableMap() : b.items.headMap(wish, true);
+    }
+
+    /**
+     * @return true if that trader already placed a wish on that name
+     */
+    boolean hasWished(String traderName, String name) {
+        Set<Item> own = wishesByTrader.get(traderName);
+        if (own == null)
+            return false;
+        for (Item wish : own) {
+            if (wish.getName().equals(name))
+                return true;
+        }
+        return false;
+    }
+
+    // Trader
+
+    /**
+     * Removes all the items and wishes placed during a session of a trader.
+     * Only the orders of that trader are looked at. The session must be closed first :
+     * an order put meanwhile is either seen here or dropped by putItem / putWish.
+     */
+    void removeTrader(TraderSession session) {
+        Set<Item> own = itemsByTrader.get(session.getName());
+        if (own != null) {
+            for (Item item : own) {
+                Order order = getItem(item);
+                if (order != null && order.getSession() == session)
+                    removeItem(order); // Its set removed with its last item
+            }
+        }
+
+        own = wishesByTrader.get(session.getName());
+        if (own != null) {
+            for (Item item : own) {
+                Order order = wishesFor(item.getName()).get(item);
+                if (order != null && order.getSession() == session)
+                    removeWish(order);
+            }
+        }
+    }
+
+    /**
+     * Gives the orders of a session to another session of the same trader : each order is replaced
+     * by a new one (new sequence number), told to the listeners as removed then added
+     */
+    void reassign(TraderSession from, TraderSession to) {
+        Set<Item> own = itemsByTrader.get(from.getName());
+        if (own != null) {
+            for (Item item : own) {
+                Order order;
+                Order moved = new Order(item, to);
+                synchronized (sequencer(item.getName())) {
+                    order = getItem(item);
+                    if (order == null || order.getSession() != from
+                            || !book(item.getName()).items.replace(item, order, moved))
+                        continue;
+                }
+                for (Listener l : listeners) {
+                    l.itemRemoved(order);
+                    l.itemAdded(moved);
+                }
+            }
+        }
+
+        own = wishesByTrader.get(from.getName());
+        if (own != null) {
+            for (Item item : own) {
+                Order order;
+                Order moved = new Order(item, to);
+                synchronized (sequencer(item.getName())) {
+                    order = wishesFor(item.getName()).get(item);
+                    if (order == null || order.getSession() != from
+                            || !book(item.getName()).wishes.replace(item, order, moved))
+                        continue;
+                }
+                for (Listener l : listeners) {
+                    l.wishRemoved(order);
+                    l.wishAdded(moved);
+                }
+            }
+        }
+    }
+
+    // Whole market
+
+    /**
+     * @return all items on sale, sorted by name then price
+     */
+    Iterable<Item> items() {
+        return () -> new Iterator<Item>() {
+            private final Iterator<Book> bookIt = books.values().iterator();
+            private Iterator<Item> itemIt = null;
+
+            @Override
+            public boolean hasNext() {
+                while ((itemIt == null || !itemIt.hasNext()) && bookIt.hasNext())
+                    itemIt = bookIt.next().items.keySet().iterator();
+                return itemIt != null && itemIt.hasNext();
+            }
+
+            @Override
+            public Item next() {
+                if (!hasNext())
+                    throw new NoSuchElementException();
+                return itemIt.next();
+            }
+        };
+    }
+
+    /**
+     * Items on sale matching a query, taken from the price ranges of the matching names
+     * @param namePrefix null = all names
+     * @param after only the items after this one (null = from the first one)
+     * @param limit max number of items returned
+     */
+    List<Item> items(String namePrefix, float minPrice, float maxPrice, Item after, int limit) {
+        List<Item> found = new ArrayList<>(Math.min(limit, 64));
+        String fromName = (namePrefix == null) ? "" : namePrefix;
+        if (after != null && after.getName().compareTo(fromName) > 0)
+            fromName = after.getName();
+
+        for (Map.Entry<String, Book> entry : books.tailMap(fromName, true).entrySet()) {
+            String name = entry.getKey();
+            if (namePrefix != null && !name.startsWith(namePrefix))
+                break; // Sorted by name => no more matching name
+
+            Item lower = new Item(name, minPrice);
+            boolean lowerIncluded = true;
+            if (after != null && after.getName().equals(name) && after.compareTo(lower) >= 0) {
+                lower = after;
+                lowerIncluded = false;
+            }
+            Item upper = new Item(name, maxPrice);
+            if (lower.compareTo(upper) > 0)
+                continue;
+
+            for (Item item : entry.getValue().items.subMap(lower, lowerIncluded, upper, true).keySet()) {
+                if (found.size() == limit)
+                    return found;
+                found.add(item);
+            }
+        }
+        return found;
+    }
+
+    long getItemCount() {
+        return itemCount.sum();
+    }
+
+    long getWishCount() {
+        return wishCount.sum();
+    }
+
+    /**
+     * @return number of item names with a book (walks through the names)
+     */
+    int getNameCount() {
+        return books.size();
+    }
+
+    boolean hasItems() {
+        for (Book b : books.values()) {
+            if (!b.items.isEmpty())
+                return true;
+        }
+        return false;
+    }
+}
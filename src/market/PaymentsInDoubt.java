@@ -0,0 +1,203 @@
+package market;
+
+
+import bank.Bank;
+import log.Logger;
+
+import java.rmi.RemoteException;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Payments of trades whose outcome is unknown : the bank failed (RemoteException) while transferring
+ * the money, which may have moved or not (answer lost, journal failed, cross-shard transfer left to
+ * the reconciliation). The item of the trade stays off the market meanwhile : neither sold again
+ * nor put back.
+ *
+ * A payment in doubt is sent again to the bank with the same transfer id (done at most once, see
+ * Bank.transfer) until the bank answers : done, or rejected (never done). Its outcome then runs once :
+ * the trade goes on, or its orders go back on the market. The call sent again by the trader (same
+ * request key) resolves the payment at once, and gets its outcome ; outcomes are kept a while for it.
+ */
+class PaymentsInDoubt {
+    private static final Logger LOG = Logger.getLogger(PaymentsInDoubt.class);
+
+    /**
+     * What to do once the bank tells (run once, by the thread which got the answer)
+     */
+    interface Outcome {
+        // The money has been transferred
+        void paid();
+
+        // The transfer has been rejected : it has never been done.
+        // Returns what the call sent again throws (RejectedException or bank.RejectedException), null if nothing
+        Exception rejected(bank.RejectedException e);
+    }
+
+    // Outcome of a payment for the call sent again
+    enum Settled {
+        NONE, // No payment in doubt for that call
+        PAID,
+        NOT_PAID
+    }
+
+    private static final class Payment {
+        final String key;
+        final String transferId;
+        final String from;
+        final String to;
+        final Item item;
+        final Outcome outcome;
+        // Set by the thread which got the answer of the bank
+        final AtomicBoolean told = new AtomicBoolean();
+        // Completes once told and its outcome run
+        final CompletableFuture<Settled> settled = new CompletableFuture<>();
+        volatile Exception failure; // Thrown by the call sent again
+
+        Payment(String key, String transferId, String from, String to, Item item, Outcome outcome) {
+            this.key = key;
+            this.transferId = transferId;
+            this.from = from;
+            this.to = to;
+            this.item = item;
+            this.outcome = outcome;
+        }
+    }
+
+    private final Bank bank;
+    private final long retryMillis;
+    private final long keepMillis;
+    // By request key of the call which paid (transfer id if none)
+    private final Map<String, Payment> payments = new ConcurrentHashMap<>();
+    // Items of the payments still in doubt : not on sale again meanwhile
+    private final Set<Item> items = ConcurrentHashMap.newKeySet();
+    private final ScheduledExecutorService retries = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "market-payments-in-doubt");
+        t.setDaemon(true);
+        return t;
+    });
+
+    /**
+     * @param bank
+     * @param retryMillis time between two tries of a payment in doubt
+     * @param keepMillis how long the outcome of a payment is kept for the call sent again
+     */
+    PaymentsInDoubt(Bank bank, long retryMillis, long keepMillis) {
+        this.bank = bank;
+        this.retryMillis = Math.max(retryMillis, 1);
+        this.keepMillis = keepMillis;
+    }
+
+    /**
+     * Adds a payment whose transfer failed remotely : sent again until the bank tells
+     * @param key request key of the call which paid (MarketServer), null if none
+     * @param transferId transfer id of the payment (the same when sent again)
+     * @param from buyer
+     * @param to seller
+     * @param item item sold, paid its price
+     * @param outcome run once the bank tells
+     */
+    void add(String key, String transferId, String from, String to, Item item, Outcome outcome) {
+        Payment payment = new Payment(key, transferId, from, to, item, outcome);
+        items.add(item);
+        payments.put((key == null) ? transferId : key, payment);
+        LOG.warn("Payment of {} by {} to {} in doubt (transfer {})", item, from, to, transferId);
+        retries.schedule(() -> retry(payment), retryMillis, TimeUnit.MILLISECONDS);
+    }
+
+    private void retry(Payment payment) {
+        try {
+            resolve(payment);
+        } catch (RemoteException | RuntimeException e) {
+            // Still in doubt (or outcome failed : logged, the payment is known)
+            if (!payment.told.get()) {
+                LOG.warn("Payment of {} still in doubt : {}", payment.item, e.getMessage());
+                retries.schedule(() -> retry(payment), retryMillis, TimeUnit.MILLISECONDS);
+            } else {
+                LOG.error("Outcome of the payment of {} failed : {}", payment.item, e);
+            }
+        }
+    }
+
+    /**
+     * Sends the payment again (unless already known), then runs its outcome if this thread got the answer
+     * @throws RemoteException if the bank still cannot tell
+     */
+    private void resolve(Payment payment) throws RemoteException {
+        if (payment.told.get())
+            return;
+        bank.RejectedException rejection = null;
+        try {
+            bank.transfer(payment.from, payment.to, payment.item.getPrice(), payment.transferId);
+        } catch (bank.RejectedException e) {
+            rejection = e;
+        }
+        if (!payment.told.compareAndSet(false, true))
+            return; // Told to another thread first
+        items.remove(payment.item);
+        retries.schedule(() -> payments.remove((payment.key == null) ? payment.transferId : payment.key, payment),
+                keepMillis, TimeUnit.MILLISECONDS);
+        LOG.info("Payment of {} by {} to {} {}", payment.item, payment.from, payment.to,
+                (rejection == null) ? "done" : "rejected : " + rejection.getMessage());
+        try {
+            if (rejection == null) {
+                payment.outcome.paid();
+                payment.settled.complete(Settled.PAID);
+            } else {
+                payment.failure = payment.outcome.rejected(rejection);
+                payment.settled.complete(Settled.NOT_PAID);
+            }
+        } catch (RuntimeException e) {
+            payment.settled.completeExceptionally(e);
+            throw e;
+        }
+    }
+
+    /**
+     * Resolves at once the payment in doubt of a call sent again (same request key), and waits for its outcome
+     * @param key request key of the call, null if none
+     * @return NONE if the call has no payment in doubt (nor recently resolved), otherwise whether it has been paid
+     * @throws RejectedException if the outcome of its payment rejects the call
+     * @throws bank.RejectedException if the outcome of its payment rejects the call
+     * @throws RemoteException if the bank still cannot tell
+     */
+    Settled settle(String key) throws RemoteException, RejectedException, bank.RejectedException {
+        Payment payment = (key == null) ? null : payments.get(key);
+        if (payment == null)
+            return Settled.NONE;
+        resolve(payment);
+        Settled settled;
+        try {
+            settled = payment.settled.join();
+        } catch (CompletionException e) {
+            throw (RuntimeException) e.getCause(); // Outcome failed
+        }
+        Exception failure = payment.failure;
+        if (failure instanceof RejectedException)
+            throw (RejectedException) failure;
+        if (failure instanceof bank.RejectedException)
+            throw (bank.RejectedException) failure;
+        return settled;
+    }
+
+    /**
+     * @return true if the item is off the market, its payment in doubt
+     */
+    boolean containsItem(Item item) {
+        return items.contains(item);
+    }
+
+    /**
+     * @return number of payments in doubt
+     */
+    int size() {
+        return items.size();
+    }
+}
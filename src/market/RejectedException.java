@@ -3,7 +3,38 @@ package market;
 final public class RejectedException extends Exception {
     private static final long serialVersionUID = -314439670131687936L;
 
-    public RejectedException(String reason) {
-        super(reason);
+    // Reasons of a rejection : short codes, stable (metrics...)
+    public static final String OTHER = "other";
+    public static final String ALREADY_REGISTERED = "already-registered";
+    public static final String NOT_REGISTERED = "not-registered";
+    public static final String NO_ACCOUNT = "no-account";
+    public static final String ALREADY_ON_MARKET = "already-on-market";
+    public static final String NOT_ON_MARKET = "not-on-market";
+    public static final String ALREADY_WISHED = "already-wished";
+    public static final String ILLEGAL_ARGUMENT = "illegal-argument";
+    public static final String WRONG_SHARD = "wrong-shard";
+    // Nothing done : the trader or the market is over its limits (admission control), try again later
+    public static final String OVERLOADED = "overloaded";
+
+    private final String reason;
+
+    public RejectedException(String message) {
+        this(OTHER, message);
+    }
+
+    /**
+     * @param reason one of the reason codes
+     * @param message
+     */
+    public RejectedException(String reason, String message) {
+        super(message);
+        this.reason = reason;
+    }
+
+    /**
+     * @return the reason code (OTHER if not given, or sent by an older market)
+     */
+    public String getReason() {
+        return (reason == null) ? OTHER : reason;
     }
 }
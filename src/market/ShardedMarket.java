@@ -0,0 +1,363 @@
+package market;
+
+
+import client.Trader;
+
+import java.rmi.NotBoundException;
+import java.rmi.RemoteException;
+import java.rmi.registry.Registry;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A market made of several shards (MarketServer -Dmarket.shards=N), seen as a single market.
+ *
+ * Each shard owns a range of hashes of the item names : the items and wishes of a name are
+ * all on the same shard, matched there. Orders go to the shard of their item name, the
+ * traders register on every shard, and the listings ask every shard then merge the answers.
+ * The shards are bound in the registry as <market>-0, <market>-1...
+ *
+ * Not a remote object : it lives in the client, and calls the shards through RMI.
+ */
+public class ShardedMarket implements Market {
+    private static final int LISTING_PAGE_SIZE = 1000;
+    // Calls to the shards run in parallel
+    private static final ExecutorService EXECUTOR;
+    static {
+        AtomicInteger threadNo = new AtomicInteger();
+        EXECUTOR = Executors.newCachedThreadPool(r -> {
+            Thread t = new Thread(r, "market-shard-" + threadNo.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    private final Market[] shards;
+
+    /**
+     * @param shards shard i owns the item names such that shardOf(name, shards.length) == i
+     */
+    public ShardedMarket(Market[] shards) {
+        if (shards.length < 1)
+            throw new IllegalArgumentException("No shard");
+        this.shards = shards.clone();
+    }
+
+    /**
+     * Looks up a market : the market bound under that name, or else all its shards
+     * @param registry
+     * @param marketName
+     * @return the market, or a ShardedMarket over <marketName>-0, <marketName>-1...
+     * @throws NotBoundException if neither the market nor its first shard is bound
+     */
+    public static Market lookup(Registry registry, String marketName) throws RemoteException,
+            NotBoundException {
+        try {
+            return (Market) registry.lookup(marketName);
+        } catch (NotBoundException e) {
+            // Sharded ?
+        }
+        Set<String> bound = new HashSet<>(Arrays.asList(registry.list()));
+        List<Market> shards = new ArrayList<>();
+        while (bound.contains(shardName(marketName, shards.size())))
+            shards.add((Market) registry.lookup(shardName(marketName, shards.size())));
+        if (shards.isEmpty())
+            throw new NotBoundException(marketName);
+        return new ShardedMarket(shards.toArray(new Market[0]));
+    }
+
+    static String shardName(String marketName, int shard) {
+        return marketName + "-" + shard;
+    }
+
+    /**
+     * @return the shard owning that item name, among shards
+     */
+    static int shardOf(String itemName, int shards) {
+        // Spread the hash codes (Fibonacci hashing), then one range of hashes per shard
+        long hash = (itemName.hashCode() * 0x9E3779B9) & 0xFFFFFFFFL;
+        return (int) ((hash * shards) >>> 32);
+    }
+
+    private Market shardOf(Item item) {
+        return shards[shardOf(item.getName(), shards.length)];
+    }
+
+    public int getShardCount() {
+        return shards.length;
+    }
+
+    // Registration : on every shard
+
+    @Override
+    public long register(String traderName, Trader trader) throws RemoteException, RejectedException {
+        // All or nothing : a trader registered on some shards only could not sell everything
+        long lease = Long.MAX_VALUE; // The shortest one : heartbeats go to every shard
+        for (int i = 0; i < shards.length; i++) {
+            try {
+                lease = Math.min(lease, shards[i].register(traderName, trader));
+            } catch (RemoteException | RejectedException e) {
+                for (int j = 0; j < i; j++) {
+                    try {
+                        shards[j].unregister(traderName);
+                    } catch (RemoteException | RejectedException ignored) {
+                        // Lease expires
+                    }
+                }
+                throw e;
+            }
+        }
+        return lease;
+    }
+
+    @Override
+    public void unregister(String traderName) throws RemoteException, RejectedException {
+        onAll(i -> {
+            shards[i].unregister(traderName);
+            return null;
+        });
+    }
+
+    @Override
+    public void heartbeat(Trader trader) throws RemoteException, RejectedException {
+        onAll(i -> {
+            shards[i].heartbeat(trader);
+            return null;
+        });
+    }
+
+    // Orders : on the shard of the item name
+
+    @Override
+    public void sell(Item item, Trader trader) throws RemoteException, RejectedException {
+        shardOf(item).sell(item, trader);
+    }
+
+    @Override
+    public void sell(Item item, Trader trader, String requestId) throws RemoteException, RejectedException {
+        shardOf(item).sell(item, trader, requestId);
+    }
+
+    @Override
+    public void buy(Item item, Trader trader) throws RemoteException, RejectedException, bank.RejectedException {
+        shardOf(item).buy(item, trader);
+    }
+
+    @Override
+    public void buy(Item item, Trader trader, String requestId) throws RemoteException, RejectedException,
+            bank.RejectedException {
+        shardOf(item).buy(item, trader, requestId);
+    }
+
+    @Override
+    public void wish(Item item, Trader trader) throws RemoteException, RejectedException, bank.RejectedException {
+        shardOf(item).wish(item, trader);
+    }
+
+    @Override
+    public void wish(Item item, Trader trader, String requestId) throws RemoteException, RejectedException,
+            bank.RejectedException {
+        shardOf(item).wish(item, trader, requestId);
+    }
+
+    @Override
+    public ItemResult[] sellAll(List<Item> items, Trader trader) throws RemoteException, RejectedException {
+        return batch(items, (shard, part) -> shard.sellAll(part, trader));
+    }
+
+    @Override
+    public ItemResult[] buyAll(List<Item> items, Trader trader) throws RemoteException, RejectedException {
+        return batch(items, (shard, part) -> shard.buyAll(part, trader));
+    }
+
+    @Override
+    public ItemResult[] wishAll(List<Item> items, Trader trader) throws RemoteException, RejectedException {
+        return batch(items, (shard, part) -> shard.wishAll(part, trader));
+    }
+
+    // Body of a batch on one shard
+    private interface BatchCall {
+        ItemResult[] run(Market shard, List<Item> items) throws RemoteException, RejectedException;
+    }
+
+    /**
+     * Splits a batch by shard, sends the parts in parallel and puts the results back in order.
+     * A shard which failed does not hide what the other shards did : its items get a failed result
+     * (outcome unknown if the shard could not be reached). The batch only throws if every shard failed.
+     */
+    private ItemResult[] batch(List<Item> items, BatchCall call) throws RemoteException, RejectedException {
+        List<List<Item>> parts = new ArrayList<>(shards.length);
+        List<List<Integer>> positions = new ArrayList<>(shards.length);
+        for (int i = 0; i < shards.length; i++) {
+            parts.add(new ArrayList<>());
+            positions.add(new ArrayList<>());
+        }
+        int i = 0;
+        for (Item item : items) {
+            int shard = shardOf(item.getName(), shards.length);
+            parts.get(shard).add(item);
+            positions.get(shard).add(i++);
+        }
+
+        // Only the shards with items (an empty batch still checks the registration)
+        List<Future<ItemResult[]>> futures = submitAll(shard -> (parts.get(shard).isEmpty()
+                && (shard > 0 || !items.isEmpty())) ? null : call.run(shards[shard], parts.get(shard)));
+        ItemResult[] merged = new ItemResult[items.size()];
+        Throwable failure = null;
+        boolean done = false; // At least one shard answered for its items
+        for (int shard = 0; shard < shards.length; shard++) {
+            List<Integer> at = positions.get(shard);
+            ItemResult[] results;
+            try {
+                results = futures.get(shard).get();
+                if (results == null)
+                    continue; // No item there
+                done = true;
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof Error)
+                    throw (Error) e.getCause();
+                if (failure == null)
+                    failure = e.getCause();
+                String reason = (e.getCause() instanceof RejectedException)
+                        ? e.getCause().getMessage()
+                        : "Shard " + shard + " failed, outcome unknown : " + e.getCause();
+                results = new ItemResult[at.size()];
+                for (int j = 0; j < at.size(); j++)
+                    results[j] = ItemResult.rejected(items.get(at.get(j)), reason);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RemoteException("Interrupted while waiting for the shards", e);
+            }
+            for (int j = 0; j < at.size(); j++)
+                merged[at.get(j)] = results[j];
+        }
+        if (failure != null && !done)
+            rethrow(failure); // Nothing done anywhere : failed as a whole
+        return merged;
+    }
+
+    // Feed : every shard pushes its own updates, numbered on their own (MarketReplica)
+
+    @Override
+    public MarketUpdate subscribe(Trader trader) throws RemoteException, RejectedException {
+        return MarketUpdate.merge(onAll(i -> shards[i].subscribe(trader)).toArray(new MarketUpdate[0]));
+    }
+
+    @Override
+    public void unsubscribe(Trader trader) throws RemoteException, RejectedException {
+        onAll(i -> {
+            shards[i].unsubscribe(trader);
+            return null;
+        });
+    }
+
+    // Listings : every shard, merged
+
+    @Override
+    public String getAllItems() throws RemoteException {
+        List<Item> items = new ArrayList<>();
+        try {
+            for (List<Item> part : onAll(i -> allItems(shards[i])))
+                items.addAll(part);
+        } catch (RejectedException e) {
+            // Shard overloaded... : failed like an unreachable shard, the caller may retry
+            throw new RemoteException("Listing rejected by a shard : " + e.getMessage(), e);
+        }
+        Collections.sort(items);
+        return MarketServer.listing(items);
+    }
+
+    private static List<Item> allItems(Market shard) throws RemoteException, RejectedException {
+        List<Item> items = new ArrayList<>();
+        Item cursor = null;
+        do {
+            ItemPage page = shard.getItems(null, 0, Float.MAX_VALUE, cursor, LISTING_PAGE_SIZE);
+            Collections.addAll(items, page.getItems());
+            cursor = page.getCursor();
+        } while (cursor != null);
+        return items;
+    }
+
+    @Override
+    public ItemPage getItems(String namePrefix, float minPrice, float maxPrice, Item cursor, int pageSize)
+            throws RemoteException, RejectedException {
+        List<ItemPage> pages = onAll(i -> shards[i].getItems(namePrefix, minPrice, maxPrice, cursor, pageSize));
+
+        // A shard with more items only answered up to its cursor : beyond, items may be missing
+        Item end = null;
+        List<Item> items = new ArrayList<>();
+        for (ItemPage page : pages) {
+            Collections.addAll(items, page.getItems());
+            if (page.hasNext() && (end == null || page.getCursor().compareTo(end) < 0))
+                end = page.getCursor();
+        }
+        Collections.sort(items);
+        int size = 0;
+        while (size < items.size() && size < pageSize && (end == null || items.get(size).compareTo(end) <= 0))
+            size++;
+
+        Item[] page = items.subList(0, size).toArray(new Item[0]);
+        boolean more = end != null || size < items.size();
+        return new ItemPage(page, more ? page[size - 1] : null);
+    }
+
+    // Body of a call on one shard, given its index
+    private interface ShardCall<T> {
+        T run(int shard) throws RemoteException, RejectedException;
+    }
+
+    /**
+     * Calls every shard in parallel, and waits for all the answers
+     * @return the answers, in the order of the shards
+     * @throws RemoteException, RejectedException the failure of the first shard which failed
+     */
+    private <T> List<T> onAll(ShardCall<T> call) throws RemoteException, RejectedException {
+        List<T> results = new ArrayList<>(shards.length);
+        Throwable failure = null;
+        for (Future<T> future : submitAll(call)) {
+            try {
+                results.add(future.get());
+            } catch (ExecutionException e) {
+                if (failure == null)
+                    failure = e.getCause();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RemoteException("Interrupted while waiting for the shards", e);
+            }
+        }
+        if (failure != null)
+            rethrow(failure);
+        return results;
+    }
+
+    // Calls every shard in parallel : futures in the order of the shards
+    private <T> List<Future<T>> submitAll(ShardCall<T> call) {
+        List<Future<T>> futures = new ArrayList<>(shards.length);
+        for (int i = 0; i < shards.length; i++) {
+            int shard = i;
+            futures.add(EXECUTOR.submit(() -> call.run(shard)));
+        }
+        return futures;
+    }
+
+    private static void rethrow(Throwable failure) throws RemoteException, RejectedException {
+        if (failure instanceof RemoteException)
+            throw (RemoteException) failure;
+        if (failure instanceof RejectedException)
+            throw (RejectedException) failure;
+        if (failure instanceof RuntimeException)
+            throw (RuntimeException) failure;
+        if (failure instanceof Error)
+            throw (Error) failure;
+        throw new RemoteException("Shard failed", failure);
+    }
+}
@@ -0,0 +1,94 @@
+package market;
+
+
+import client.Trader;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Traders registered on the market, hashed by name and by remote object.
+ * Each trader holds a lease, renewed by its heartbeats and by any market
+ * operation. A trader whose lease has expired (crashed client...) can be
+ * removed with {@link #removeExpired()}.
+ * Both maps change together, under the lock of the name in byName : an unregister or the
+ * reaper cannot leave a stub mapped to a session gone.
+ */
+class TraderRegistry {
+    private final ConcurrentHashMap<String, TraderSession> byName = new ConcurrentHashMap<>();
+    // Stubs equality = local check (same remote reference), no callback
+    private final ConcurrentHashMap<Trader, TraderSession> byTrader = new ConcurrentHashMap<>();
+    private final long leaseNanos;
+
+    TraderRegistry(long leaseMillis) {
+        this.leaseNanos = TimeUnit.MILLISECONDS.toNanos(leaseMillis);
+    }
+
+    TraderSession register(String traderName, Trader trader) throws RejectedException {
+        TraderSession session = new TraderSession(traderName, trader);
+        session.renew(System.nanoTime() + leaseNanos);
+        TraderSession registered = byName.compute(traderName, (name, current) -> {
+            if (current != null)
+                return current;
+            byTrader.put(trader, session);
+            return session;
+        });
+        if (registered != session)
+            throw new RejectedException(RejectedException.ALREADY_REGISTERED,
+                    "Trader " + traderName + " already registered");
+        return session;
+    }
+
+    TraderSession unregister(String traderName) throws RejectedException {
+        TraderSession[] removed = new TraderSession[1];
+        byName.computeIfPresent(traderName, (name, session) -> {
+            byTrader.remove(session.getTrader(), session);
+            removed[0] = session;
+            return null;
+        });
+        if (removed[0] == null)
+            throw new RejectedException(RejectedException.NOT_REGISTERED,
+                    "Trader " + traderName + " not registered");
+        return removed[0];
+    }
+
+    /**
+     * Gets the session of a registered trader, and renews its lease
+     * @throws RejectedException if the trader is not registered (or no longer)
+     */
+    TraderSession lookup(Trader trader) throws RejectedException {
+        TraderSession session = byTrader.get(trader);
+        if (session == null)
+            throw new RejectedException(RejectedException.NOT_REGISTERED,
+                    "You are not registered on the market");
+        session.renew(System.nanoTime() + leaseNanos);
+        return session;
+    }
+
+    /**
+     * Removes the traders whose lease has expired
+     * @return their sessions
+     */
+    List<TraderSession> removeExpired() {
+        long now = System.nanoTime();
+        List<TraderSession> expired = new ArrayList<>();
+        for (TraderSession session : byName.values()) {
+            if (!session.isExpired(now))
+                continue;
+            byName.computeIfPresent(session.getName(), (name, current) -> {
+                if (current != session)
+                    return current; // Registered again meanwhile
+                byTrader.remove(session.getTrader(), session);
+                expired.add(session);
+                return null;
+            });
+        }
+        return expired;
+    }
+
+    int size() {
+        return byName.size();
+    }
+}
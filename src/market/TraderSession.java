@@ -0,0 +1,57 @@
+package market;
+
+
+import client.Trader;
+
+/**
+ * Server side view of a registered trader.
+ * Created at registration, it caches the name of the trader and its remote
+ * object (--> callback), so that market operations never have to call the
+ * trader back just to know who it is.
+ * Sessions are looked up with the Trader stub received on each call :
+ * equality of stubs is checked locally (same remote reference), no remote call.
+ * The session also holds the lease of the trader on the market.
+ * A session is closed when its trader leaves (unregistered, lease expired) : nothing is
+ * queued for it any more.
+ */
+class TraderSession {
+    private final String name;
+    private final Trader trader;
+    private volatile long leaseExpiry; // System.nanoTime()
+    private volatile boolean closed = false;
+
+    TraderSession(String name, Trader trader) {
+        this.name = name;
+        this.trader = trader;
+    }
+
+    String getName() {
+        return name;
+    }
+
+    Trader getTrader() {
+        return trader;
+    }
+
+    void renew(long expiry) {
+        leaseExpiry = expiry;
+    }
+
+    boolean isExpired(long now) {
+        return now - leaseExpiry > 0;
+    }
+
+    void close() {
+        closed = true;
+    }
+
+    boolean isClosed() {
+        return closed;
+    }
+
+    // Thrown to a call whose order came after the trader left (dropped by the order book)
+    RejectedException closedException() {
+        return new RejectedException(RejectedException.NOT_REGISTERED,
+                "Trader " + name + " left the market meanwhile");
+    }
+}
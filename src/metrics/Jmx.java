@@ -0,0 +1,44 @@
+package metrics;
+
+import log.Logger;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+
+/**
+ * Registration of the MBeans in the platform MBean server (jconsole, VisualVM...)
+ */
+public final class Jmx {
+    private static final Logger LOG = Logger.getLogger(Jmx.class);
+
+    private Jmx() {
+    }
+
+    /**
+     * Registers an MBean, replacing the one already registered under that name (server created again).
+     * A failure is only logged : metrics never stop a server.
+     * @param name object name, e.g. "market:type=Operation,name=sell"
+     */
+    public static void register(String name, Object mbean) {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName objectName = new ObjectName(name);
+            if (server.isRegistered(objectName))
+                server.unregisterMBean(objectName);
+            server.registerMBean(mbean, objectName);
+        } catch (JMException e) {
+            LOG.warn("MBean {} not registered : {}", name, e);
+        }
+    }
+
+    /**
+     * Registers the stats of each operation under <baseName>,name=<operation>
+     * @param baseName e.g. "market:type=Operation"
+     */
+    public static void registerOperations(String baseName, OperationStats... operations) {
+        for (OperationStats operation : operations)
+            register(baseName + ",name=" + operation.getName(), operation);
+    }
+}
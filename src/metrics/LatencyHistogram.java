@@ -0,0 +1,103 @@
+package metrics;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Histogram of latencies in nanoseconds, cheap to record from many threads.
+ * Each power of 2 is split in SUB_BUCKETS linear buckets : values are kept with a
+ * relative error below 1 %, from 1 ns up to 2^(MAX_MAGNITUDE+1) (about 36 minutes, longer
+ * latencies fall in the last bucket), in a fixed amount of memory.
+ *
+ * Counts are striped by thread : threads recording at the same time mostly write
+ * different stripes (no lock, little cache line sharing). Reading sums the stripes.
+ */
+public class LatencyHistogram {
+    private static final int SUB_BITS = 7;
+    private static final int SUB_BUCKETS = 1 << SUB_BITS; // 128 => error < 0.8 %
+    private static final int MAX_MAGNITUDE = 40; // 2^40 ns
+    // Block 0 (values below SUB_BUCKETS), then one block per magnitude from SUB_BITS to MAX_MAGNITUDE
+    private static final int BUCKETS = (MAX_MAGNITUDE - SUB_BITS + 2) * SUB_BUCKETS;
+    private static final int STRIPES = Math.min(Integer.highestOneBit(
+            Math.max(Runtime.getRuntime().availableProcessors(), 1) * 2 - 1), 8);
+
+    private final AtomicLongArray[] stripes = new AtomicLongArray[STRIPES];
+    private final LongAdder count = new LongAdder();
+    private final LongAdder sum = new LongAdder();
+    private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+    public LatencyHistogram() {
+        for (int i = 0; i < STRIPES; i++)
+            stripes[i] = new AtomicLongArray(BUCKETS);
+    }
+
+    public void record(long nanos) {
+        long value = Math.max(nanos, 0);
+        int stripe = (int) Thread.currentThread().getId() & (STRIPES - 1);
+        stripes[stripe].incrementAndGet(index(value));
+        count.increment();
+        sum.add(value);
+        max.accumulate(value);
+    }
+
+    public long getCount() {
+        return count.sum();
+    }
+
+    public long getMax() {
+        return max.get();
+    }
+
+    public long getMean() {
+        long n = count.sum();
+        return (n == 0) ? 0 : sum.sum() / n;
+    }
+
+    /**
+     * @param percentile e.g. 99.9
+     * @return the highest value of the bucket holding that percentile (0 if nothing recorded)
+     */
+    public long getValueAt(double percentile) {
+        long[] counts = new long[BUCKETS];
+        long total = 0;
+        for (AtomicLongArray stripe : stripes) {
+            for (int i = 0; i < BUCKETS; i++) {
+                long c = stripe.get(i);
+                counts[i] += c;
+                total += c;
+            }
+        }
+        if (total == 0)
+            return 0;
+
+        long rank = Math.max(1, (long) Math.ceil(percentile / 100 * total));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts[i];
+            if (seen >= rank)
+                return Math.min(lowestValue(i + 1) - 1, max.get());
+        }
+        return max.get();
+    }
+
+    // Buckets 0..SUB_BUCKETS-1 hold 0..SUB_BUCKETS-1, then SUB_BUCKETS buckets per power of 2
+    static int index(long value) {
+        if (value < SUB_BUCKETS)
+            return (int) value;
+        int magnitude = Math.min(63 - Long.numberOfLeadingZeros(value), MAX_MAGNITUDE); // >= SUB_BITS
+        int shift = magnitude - SUB_BITS;
+        long top = Math.min(value >>> shift, 2 * SUB_BUCKETS - 1);
+        return (shift + 1) * SUB_BUCKETS + (int) (top - SUB_BUCKETS);
+    }
+
+    static long lowestValue(int index) {
+        if (index >= BUCKETS)
+            return Long.MAX_VALUE; // After the last bucket
+        int block = index / SUB_BUCKETS;
+        long sub = index % SUB_BUCKETS;
+        if (block == 0)
+            return sub;
+        return (SUB_BUCKETS + sub) << (block - 1);
+    }
+}
@@ -0,0 +1,114 @@
+package metrics;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counts and latencies of the calls of one remote operation.
+ * Recording only touches striped counters (no lock) : meant to stay on in production.
+ *
+ * Usage :
+ *     long start = System.nanoTime();
+ *     ... then one of succeeded(start), rejected(start, reason), failed(start)
+ */
+public class OperationStats implements OperationStatsMXBean {
+    private final String name;
+    private final LongAdder succeeded = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+    private final LongAdder failed = new LongAdder();
+    private final Map<String, LongAdder> rejections = new ConcurrentHashMap<>();
+    private final LatencyHistogram latencies = new LatencyHistogram();
+
+    public OperationStats(String name) {
+        this.name = name;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public void succeeded(long start) {
+        latencies.record(System.nanoTime() - start);
+        succeeded.increment();
+    }
+
+    /**
+     * @param reason short code of the rejection (e.g. "not-registered")
+     */
+    public void rejected(long start, String reason) {
+        latencies.record(System.nanoTime() - start);
+        rejected.increment();
+        rejectedItem(reason);
+    }
+
+    public void failed(long start) {
+        latencies.record(System.nanoTime() - start);
+        failed.increment();
+    }
+
+    /**
+     * Counts the rejection of one item of a batch (the batch itself succeeded)
+     */
+    public void rejectedItem(String reason) {
+        rejections.computeIfAbsent(reason, r -> new LongAdder()).increment();
+    }
+
+    @Override
+    public long getCalls() {
+        return succeeded.sum() + rejected.sum() + failed.sum();
+    }
+
+    @Override
+    public long getSucceeded() {
+        return succeeded.sum();
+    }
+
+    @Override
+    public long getRejected() {
+        return rejected.sum();
+    }
+
+    @Override
+    public long getFailed() {
+        return failed.sum();
+    }
+
+    @Override
+    public Map<String, Long> getRejectionsByReason() {
+        Map<String, Long> counts = new TreeMap<>();
+        for (Map.Entry<String, LongAdder> entry : rejections.entrySet())
+            counts.put(entry.getKey(), entry.getValue().sum());
+        return counts;
+    }
+
+    @Override
+    public double getLatencyMeanMillis() {
+        return millis(latencies.getMean());
+    }
+
+    @Override
+    public double getLatencyP50Millis() {
+        return millis(latencies.getValueAt(50));
+    }
+
+    @Override
+    public double getLatencyP99Millis() {
+        return millis(latencies.getValueAt(99));
+    }
+
+    @Override
+    public double getLatencyP999Millis() {
+        return millis(latencies.getValueAt(99.9));
+    }
+
+    @Override
+    public double getLatencyMaxMillis() {
+        return millis(latencies.getMax());
+    }
+
+    private static double millis(long nanos) {
+        return nanos / 1e6;
+    }
+}
@@ -0,0 +1,34 @@
+package metrics;
+
+import java.util.Map;
+
+/**
+ * JMX view of the calls of one remote operation
+ */
+public interface OperationStatsMXBean {
+    long getCalls();
+
+    long getSucceeded();
+
+    long getRejected();
+
+    /**
+     * @return calls which failed without rejection (RemoteException, bug...)
+     */
+    long getFailed();
+
+    /**
+     * @return rejection reason -> number of rejections (items of a batch included)
+     */
+    Map<String, Long> getRejectionsByReason();
+
+    double getLatencyMeanMillis();
+
+    double getLatencyP50Millis();
+
+    double getLatencyP99Millis();
+
+    double getLatencyP999Millis();
+
+    double getLatencyMaxMillis();
+}